@@ -1,12 +1,30 @@
 package com.leonovus.lbc.engine.api;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface Engine{
 
     void init(Ledger ledger);
 
+    /**
+     * Processes {@code resource} and returns once it is done; same as waiting for
+     * {@link #onResourceCreatedAsync(Resource)}.
+     */
     void onResourceCreated(Resource resource);
 
+    /**
+     * Queues {@code resource} for processing. Blocks while the engine's ingestion queue is full, so fast
+     * producers are held back rather than piling up work; the engine may process several queued resources
+     * together.
+     *
+     * @return a future completed with a resource of the same kind holding the accepted part of {@code resource}
+     */
+    CompletableFuture<Resource> onResourceCreatedAsync(Resource resource);
+
     void printLedger();
 
+    /** @return a snapshot of the engine's counters and latencies, or null if the engine does not keep metrics */
+    EngineMetrics getMetrics();
+
     void destroy();
 }
@@ -0,0 +1,40 @@
+package com.leonovus.lbc.engine.api;
+
+import javax.management.MXBean;
+import java.util.Map;
+
+/**
+ * Counters and latencies of an {@link Engine}. Also registered as a JMX MXBean by engines which support it,
+ * in which case the getters read the current values.
+ */
+@MXBean
+public interface EngineMetrics {
+
+    /** @return the number of epochs validated and applied */
+    long getEpochsProcessed();
+
+    long getTransactionsAccepted();
+
+    long getTransactionsRejected();
+
+    /** @return the number of rejected transactions for every rejection reason seen so far */
+    Map<String, Long> getTransactionsRejectedByReason();
+
+    /** @return the number of unspent outputs in the ledger */
+    long getUtxoPoolSize();
+
+    /** @return the number of bytes fed to digests while checking transactions */
+    long getBytesHashed();
+
+    /** @return the share of signature checks answered by the cache of verified signatures, 0 without one */
+    double getSignatureCacheHitRatio();
+
+    /** @return latency of validating the transactions of an epoch, signatures excluded */
+    LatencySnapshot getValidationLatency();
+
+    /** @return latency of checking the signatures of an epoch */
+    LatencySnapshot getSignatureVerificationLatency();
+
+    /** @return latency of applying an accepted epoch to the ledger */
+    LatencySnapshot getPoolApplyLatency();
+}
@@ -0,0 +1,235 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/**
+ * Interned address (public key) of an output.
+ *
+ * Every distinct key maps to one canonical {@code Address} holding the key, its X.509 encoding and a 64-bit
+ * fingerprint, all computed once: serializing an output no longer encodes its key, decoding an output
+ * whose address was seen before does not decode the key again, and outputs paying the same recipient share
+ * one key object. Addresses are only held weakly by the intern tables, so the ones no longer referenced by
+ * any output are dropped.
+ */
+public final class Address {
+
+    private static final int STRIPES = 64;
+
+    private static final ThreadLocal<KeyFactory> KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * Intern tables, striped to keep concurrent decoders apart: keys and encodings to their address. The
+     * table keys are the key and encoding held by the address itself, so an entry lives as long as its
+     * address.
+     */
+    private static final Stripe[] TABLE = new Stripe[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            TABLE[i] = new Stripe();
+        }
+    }
+
+    private static final class Stripe {
+        final WeakHashMap<PublicKey, WeakReference<Address>> byKey = new WeakHashMap<>();
+        final WeakHashMap<Encoding, WeakReference<Address>> byEncoding = new WeakHashMap<>();
+    }
+
+    /**
+     * An encoded key, hashed and compared in place eight bytes at a time, so that looking up a key which
+     * sits in a buffer allocates nothing but the probe.
+     */
+    private static final class Encoding {
+        final ByteBuffer bytes;
+        final int offset;
+        final int length;
+        final boolean swapped;
+        final int hash;
+
+        Encoding(ByteBuffer bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.swapped = bytes.order() != ByteOrder.BIG_ENDIAN;
+            long h = length;
+            int i = 0;
+            for (; i + Long.BYTES <= length; i += Long.BYTES) {
+                h = (h ^ word(i)) * 0x9E3779B97F4A7C15L;
+            }
+            for (; i < length; i++) {
+                h = (h ^ bytes.get(offset + i)) * 0x9E3779B97F4A7C15L;
+            }
+            this.hash = (int) (h ^ (h >>> 32));
+        }
+
+        /** @return the eight bytes at {@code i}, big endian whatever the order of the buffer */
+        long word(int i) {
+            long word = bytes.getLong(offset + i);
+            return swapped ? Long.reverseBytes(word) : word;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Encoding)) {
+                return false;
+            }
+            Encoding that = (Encoding) other;
+            if (hash != that.hash || length != that.length) {
+                return false;
+            }
+            int i = 0;
+            for (; i + Long.BYTES <= length; i += Long.BYTES) {
+                if (word(i) != that.word(i)) {
+                    return false;
+                }
+            }
+            for (; i < length; i++) {
+                if (bytes.get(offset + i) != that.bytes.get(that.offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final PublicKey key;
+    private final byte[] encoded;
+    private final Encoding encoding;
+    private final long fingerprint;
+
+    private Address(PublicKey key, byte[] encoded, Encoding encoding) {
+        this.key = key;
+        this.encoded = encoded;
+        this.encoding = encoding;
+        byte[] digest = MerkleTree.sha256().digest(encoded);
+        this.fingerprint = ByteBuffer.wrap(digest).getLong();
+    }
+
+    /** @return the canonical address of {@code key} */
+    public static Address of(PublicKey key) {
+        Stripe stripe = TABLE[(key.hashCode() >>> 8) & (STRIPES - 1)];
+        synchronized (stripe) {
+            Address address = get(stripe.byKey.get(key));
+            if (address != null) {
+                return address;
+            }
+        }
+        // a key equal to an interned one has the same encoding, so this finds the interned one if any
+        byte[] encoded = key.getEncoded();
+        Address address = intern(key, encoded, new Encoding(ByteBuffer.wrap(encoded), 0, encoded.length));
+        synchronized (stripe) {
+            stripe.byKey.put(address.key, new WeakReference<>(address));
+        }
+        return address;
+    }
+
+    /**
+     * @return the canonical address whose X.509 encoding is {@code encoded}, an Ed25519 or else an RSA key
+     * @throws IllegalArgumentException if {@code encoded} is not an encoded key
+     */
+    public static Address decode(byte[] encoded) {
+        if (encoded == null) {
+            throw new IllegalArgumentException("Output without address");
+        }
+        return decode(ByteBuffer.wrap(encoded), 0, encoded.length);
+    }
+
+    /** Same as {@link #decode(byte[])} for the {@code length} bytes of {@code buffer} at {@code offset} */
+    static Address decode(ByteBuffer buffer, int offset, int length) {
+        Encoding probe = new Encoding(buffer, offset, length);
+        Stripe stripe = TABLE[(probe.hash >>> 16) & (STRIPES - 1)];
+        synchronized (stripe) {
+            Address address = get(stripe.byEncoding.get(probe));
+            if (address != null) {
+                return address;
+            }
+        }
+        byte[] encoded = new byte[length];
+        for (int i = 0; i < length; i++) {
+            encoded[i] = buffer.get(offset + i);
+        }
+        PublicKey key;
+        if (Ed25519SignatureScheme.isEncodedPublicKey(encoded)) {
+            key = Ed25519SignatureScheme.decodePublicKey(encoded);
+        } else {
+            try {
+                key = KEY_FACTORY.get().generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (InvalidKeySpecException e) {
+                throw new IllegalArgumentException("Invalid address encoding", e);
+            }
+        }
+        return of(key);
+    }
+
+    /** Adds an address for {@code key} unless one with the same encoding exists, and returns the interned one */
+    private static Address intern(PublicKey key, byte[] encoded, Encoding encoding) {
+        Stripe stripe = TABLE[(encoding.hash >>> 16) & (STRIPES - 1)];
+        synchronized (stripe) {
+            Address address = get(stripe.byEncoding.get(encoding));
+            if (address == null) {
+                address = new Address(key, encoded, encoding);
+                stripe.byEncoding.put(address.encoding, new WeakReference<>(address));
+            }
+            return address;
+        }
+    }
+
+    private static Address get(WeakReference<Address> reference) {
+        return reference == null ? null : reference.get();
+    }
+
+    public PublicKey getKey() {
+        return key;
+    }
+
+    /** @return a copy of the X.509 encoding of the key */
+    public byte[] getEncoded() {
+        return encoded.clone();
+    }
+
+    /** @return the X.509 encoding of the key, not to be modified */
+    byte[] encoded() {
+        return encoded;
+    }
+
+    /** @return the first 64 bits of the SHA-256 of the encoded key */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x", fingerprint);
+    }
+
+    /** Addresses are interned, identity is equality; this only guards against stray equal copies */
+    @Override
+    public boolean equals(Object other) {
+        return this == other || other instanceof Address && Arrays.equals(encoded, ((Address) other).encoded);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) fingerprint;
+    }
+}
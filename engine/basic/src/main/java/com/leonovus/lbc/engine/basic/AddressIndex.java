@@ -0,0 +1,124 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary index of a {@link UTXOPool} by address: the unspent outputs of every address and their total.
+ *
+ * The index listens to the pool, so it follows every epoch at the cost of one map update per output
+ * created or spent. A balance is kept as a running total and read in constant time; listing the outputs
+ * of an address takes time proportional to their number. Queries may run on any thread while the pool is
+ * being changed; each one sees the address either before or after a change, never half way through.
+ */
+public class AddressIndex implements UTXOPoolListener {
+
+    /** What an address holds; guarded by itself */
+    private static final class Holdings {
+        final Set<UTXO> utxos = new HashSet<>();
+        long balance;
+    }
+
+    private final UTXOPool pool;
+    private final ConcurrentHashMap<Address, Holdings> holdings = new ConcurrentHashMap<>();
+
+    /** Indexes the current content of {@code pool} and follows its changes from now on */
+    public AddressIndex(UTXOPool pool) {
+        this(pool, true);
+    }
+
+    /** Indexes {@code pool} as above if {@code index}, else starts empty and leaves it to {@link #follow()} */
+    AddressIndex(UTXOPool pool, boolean index) {
+        this.pool = pool;
+        if (index) {
+            for (UTXO utxo : pool.getAllUTXO()) {
+                utxoAdded(utxo, pool.getTxOutput(utxo));
+            }
+            follow();
+        }
+    }
+
+    /** Follows the changes of the pool from now on */
+    void follow() {
+        pool.addListener(this);
+    }
+
+    /** Stops following the pool */
+    public void detach() {
+        pool.removeListener(this);
+    }
+
+    @Override
+    public void utxoAdded(UTXO utxo, Transaction.Output txOut) {
+        Address address = txOut.getAddress();
+        if (address == null) {
+            return;
+        }
+        holdings.compute(address, (a, h) -> {
+            if (h == null) {
+                h = new Holdings();
+            }
+            synchronized (h) {
+                if (h.utxos.add(utxo)) {
+                    h.balance += txOut.value;
+                }
+            }
+            return h;
+        });
+    }
+
+    @Override
+    public void utxoRemoved(UTXO utxo, Transaction.Output txOut) {
+        Address address = txOut.getAddress();
+        if (address == null) {
+            return;
+        }
+        holdings.computeIfPresent(address, (a, h) -> {
+            synchronized (h) {
+                if (h.utxos.remove(utxo)) {
+                    h.balance -= txOut.value;
+                }
+                return h.utxos.isEmpty() ? null : h;
+            }
+        });
+    }
+
+    /** @return the total value of the unspent outputs of {@code address}, in base units */
+    public long getBalance(PublicKey address) {
+        return getBalance(Address.of(address));
+    }
+
+    public long getBalance(Address address) {
+        Holdings h = holdings.get(address);
+        if (h == null) {
+            return 0;
+        }
+        synchronized (h) {
+            return h.balance;
+        }
+    }
+
+    /** @return the unspent outputs of {@code address}, in no particular order */
+    public List<UTXO> getUTXOs(PublicKey address) {
+        return getUTXOs(Address.of(address));
+    }
+
+    public List<UTXO> getUTXOs(Address address) {
+        Holdings h = holdings.get(address);
+        if (h == null) {
+            return new ArrayList<>();
+        }
+        synchronized (h) {
+            return new ArrayList<>(h.utxos);
+        }
+    }
+
+    /** @return the number of addresses holding at least one unspent output */
+    public int getAddressCount() {
+        return holdings.size();
+    }
+}
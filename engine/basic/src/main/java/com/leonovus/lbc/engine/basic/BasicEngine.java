@@ -1,43 +1,583 @@
 package com.leonovus.lbc.engine.basic;
 
 import com.leonovus.lbc.engine.api.Engine;
+import com.leonovus.lbc.engine.api.EngineMetrics;
 import com.leonovus.lbc.engine.api.Ledger;
 import com.leonovus.lbc.engine.api.Resource;
-//import org.slf4j.Logger;
-//import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class BasicEngine implements Engine {
 
-    //private static final Logger LOG = LoggerFactory.getLogger(BasicEngine.class);
+    static final String LOG_FILE = "epochs.log";
+
+    private static final Logger LOG = LoggerFactory.getLogger(BasicEngine.class);
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+    private final BasicEngineConfig config;
+    private final BasicEngineMetrics metrics;
+    private ObjectName metricsName;
     private TxHandler txHandler;
+    private EpochLog epochLog;
+    private BlockStore blockStore;
+    private BlockMiner blockMiner;
+    private ExecutorService miningExecutor;
+    private AddressIndex addressIndex;
+    private UTXOFilter utxoFilter;
+    private UTXOCommitment utxoCommitment;
+    private UndoJournal undoJournal;
+    private Mempool mempool;
+    private SnapshotIndexer snapshotIndexer;
+    /** false while the indexes of a lazily started snapshot are filled; read and written on the pipeline thread */
+    private boolean indexed = true;
+    private volatile CompletableFuture<Void> indexing = CompletableFuture.completedFuture(null);
+    /** epoch sequence of the configured snapshot, -1 if there is none; read and written on the pipeline thread */
+    private long snapshotSequence = -1;
+    private volatile byte[] stateRoot;
+    private volatile IngestionPipeline pipeline;
+
+    public BasicEngine() {
+        this(new BasicEngineConfig());
+    }
 
+    public BasicEngine(BasicEngineConfig config) {
+        this.config = config;
+        this.metrics = config.isMetricsEnabled() ? new BasicEngineMetrics() : null;
+    }
+
+    /**
+     * Starts the engine on {@code ledger}. If an epoch log is configured, the epochs it holds are applied
+     * on top of the ledger (so the ledger should be the same initial one the log was started with) and new
+     * epochs are appended to it. Without a ledger, the engine starts from the configured snapshot if there is
+     * one, and only the epochs logged after the snapshot are applied.
+     *
+     * @throws IllegalStateException if the engine is initialized already and not destroyed since
+     */
     @Override
     public void init(Ledger ledger) {
+        if(pipeline != null) {
+            throw new IllegalStateException("Engine is already initialized");
+        }
         //initial pool
         UTXOPool pool;
+        long fromSequence = 0;
+        LedgerSnapshot lazySnapshot = null;
 
+        File snapshotFile = config.getSnapshotFile();
         if(ledger != null) {
             pool = (UTXOPool)ledger;
         }
+        else if(snapshotFile != null && snapshotFile.isFile()) {
+            long start = System.nanoTime();
+            LedgerSnapshot snapshot;
+            try {
+                snapshot = LedgerSnapshot.open(snapshotFile);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the ledger snapshot " + snapshotFile, e);
+            }
+            if(config.isSnapshotLazy()) {
+                SnapshotUTXOStore store = new SnapshotUTXOStore(snapshot);
+                pool = new UTXOPool(store);
+                lazySnapshot = snapshot;
+                CompletableFuture.runAsync(store::warmUp).whenComplete((done, e) -> {
+                    if(e != null) {
+                        LOG.error("Ledger snapshot {} is corrupt", snapshotFile, e);
+                    }
+                });
+            }
+            else {
+                pool = new UTXOPool(snapshot.load());
+            }
+            fromSequence = snapshot.getSequence();
+            snapshotSequence = fromSequence;
+            LOG.info("Opened the ledger snapshot {} of {} unspent outputs in {} ms", snapshotFile, snapshot.size(),
+                    (System.nanoTime() - start) / 1000000);
+        }
         else {
-            pool = new UTXOPool();
+            pool = config.getApplyParallelism() > 1 ? new UTXOPool(new StripedUTXOStore()) : new UTXOPool();
+        }
+        if(snapshotSequence < 0 && snapshotFile != null && snapshotFile.isFile()) {
+            // a later start may be from it, so rollbacks must not go past it
+            try {
+                snapshotSequence = LedgerSnapshot.readSequence(snapshotFile);
+            } catch (IOException e) {
+                LOG.warn("Could not read the ledger snapshot {}", snapshotFile, e);
+            }
+        }
+        int parallelism = config.getVerificationParallelism();
+        SignatureCache signatureCache = config.getSignatureCacheSize() > 0
+                ? new SignatureCache(config.getSignatureCacheSize()) : null;
+        SignatureVerifier verifier = new SignatureVerifier(parallelism > 1 ? ForkJoinPool.commonPool() : null,
+                Math.max(parallelism, 1), signatureCache, config.getSignatureScheme());
+        int applyParallelism = config.getApplyParallelism();
+        txHandler = new TxHandler(pool, verifier, metrics, applyParallelism > 1 ? ForkJoinPool.commonPool() : null,
+                Math.max(applyParallelism, 1));
+
+        if(config.getMempoolBytes() > 0) {
+            mempool = new Mempool(pool, config.getMempoolBytes(), config.getSignatureScheme());
+        }
+        // a lazily started snapshot is not walked here, its indexes are filled in the background
+        boolean index = lazySnapshot == null;
+        if(config.isAddressIndexEnabled()) {
+            addressIndex = new AddressIndex(pool, index);
+        }
+        if(config.isUtxoFilterEnabled()) {
+            utxoFilter = new UTXOFilter(pool, index);
+        }
+        if(config.isUtxoCommitmentEnabled()) {
+            utxoCommitment = new UTXOCommitment(pool, config.getUtxoCommitmentDepth(), index);
+        }
+        indexed = true;
+        indexing = CompletableFuture.completedFuture(null);
+        if(!index && (addressIndex != null || utxoFilter != null || utxoCommitment != null)) {
+            snapshotIndexer = new SnapshotIndexer(pool, lazySnapshot, addressIndex, utxoFilter, utxoCommitment);
+            indexed = false;
+        }
+
+        File logDirectory = config.getLogDirectory();
+        if(logDirectory != null) {
+            try {
+                if(!logDirectory.isDirectory() && !logDirectory.mkdirs()) {
+                    throw new IOException("Could not create " + logDirectory);
+                }
+                epochLog = new EpochLog(new File(logDirectory, LOG_FILE), config.getLogCommitDelayMillis());
+                epochLog.replay(fromSequence, (sequence, txs) -> txHandler.applyTxs(txs));
+                LOG.info("Replayed {} epochs from {}", epochLog.getNextSequence() - fromSequence, logDirectory);
+                if(indexed && utxoFilter != null) {
+                    utxoFilter.resizeIfNeeded();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the epoch log in " + logDirectory, e);
+            }
+        }
+
+        File blockDirectory = config.getBlockDirectory();
+        if(blockDirectory != null) {
+            try {
+                if(!blockDirectory.isDirectory() && !blockDirectory.mkdirs()) {
+                    throw new IOException("Could not create " + blockDirectory);
+                }
+                blockStore = new BlockStore(blockDirectory, config.getBlockSegmentSize());
+                if(config.getBlockDifficulty() > 0) {
+                    // workers of its own: they keep their threads until a block is sealed, and the common
+                    // pool verifies and applies transactions meanwhile
+                    int miningParallelism = config.getMiningParallelism();
+                    if(miningParallelism > 1) {
+                        AtomicInteger workers = new AtomicInteger();
+                        miningExecutor = Executors.newFixedThreadPool(miningParallelism - 1, r -> {
+                            Thread thread = new Thread(r, "block-miner-" + workers.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                    }
+                    blockMiner = new BlockMiner(miningExecutor, Math.max(miningParallelism, 1));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the block store in " + blockDirectory, e);
+            }
+        }
+
+        // with a log, the changes of an epoch are kept until it is logged, so that a failed append can undo them
+        if(config.getUndoHistory() > 0 || epochLog != null) {
+            try {
+                undoJournal = new UndoJournal(pool, logDirectory, config.getUndoHistory(),
+                        epochLog == null ? fromSequence : epochLog.getNextSequence());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the undo journal in " + logDirectory, e);
+            }
+        }
+
+        if(metrics != null && config.isJmxEnabled()) {
+            try {
+                metricsName = new ObjectName("com.leonovus.lbc.engine:type=BasicEngine,id="
+                        + INSTANCES.incrementAndGet());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+            } catch (JMException e) {
+                LOG.warn("Could not register the engine metrics with JMX", e);
+                metricsName = null;
+            }
+        }
+
+        if(indexed && utxoCommitment != null) {
+            stateRoot = utxoCommitment.commit();
+        }
+        LOG.info("Engine started with {} unspent outputs", pool.size());
+
+        pipeline = new IngestionPipeline(this::processEpoch, config.getIngestionQueueCapacity(),
+                config.getEpochMaxTransactions(), config.getEpochMaxDelayMillis());
+        if(snapshotIndexer != null) {
+            long start = System.nanoTime();
+            indexing = snapshotIndexer.start(pipeline, () -> {
+                indexed = true;
+                if(utxoFilter != null) {
+                    utxoFilter.resizeIfNeeded();
+                }
+                if(utxoCommitment != null) {
+                    stateRoot = utxoCommitment.commit();
+                }
+                LOG.info("Indexed the ledger snapshot in {} ms", (System.nanoTime() - start) / 1000000);
+            });
+            indexing.whenComplete((done, e) -> {
+                if(e != null) {
+                    LOG.warn("Could not index the ledger snapshot", e);
+                }
+            });
         }
-        txHandler = new TxHandler(pool);
     }
 
     @Override
     public void onResourceCreated(Resource resource) {
+        try {
+            onResourceCreatedAsync(resource).join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Queues the transactions of {@code resource} on the ingestion pipeline, which processes them in an epoch
+     * together with the other resources queued around the same time.
+     *
+     * @return a future completed with a {@link BasicResource} of the accepted transactions of {@code resource}
+     */
+    @Override
+    public CompletableFuture<Resource> onResourceCreatedAsync(Resource resource) {
 
         BasicResource basicResource = (BasicResource) resource;
 
         Transaction [] proposedTxs = basicResource.getProposedTransactions();
 
         if(proposedTxs == null || proposedTxs.length == 0) {
-            throw new RuntimeException("Transaction is empty or invalid");
+            CompletableFuture<Resource> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new RuntimeException("Transaction is empty or invalid"));
+            return failed;
         }
 
+        IngestionPipeline pipeline = this.pipeline;
+        if(pipeline == null) {
+            CompletableFuture<Resource> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("Engine is not initialized"));
+            return failed;
+        }
+        return pipeline.submit(proposedTxs);
+    }
+
+    /** Validates and applies an epoch, then logs and stores what was accepted; runs on the pipeline thread */
+    private Transaction[] processEpoch(Transaction[] proposedTxs) {
         //good transaction to be consumed by somebody?
         Transaction [] goodTxs = txHandler.handleTxs(proposedTxs);
+        if(goodTxs.length > 0) {
+            logEpoch(goodTxs);
+        }
+        if(mempool != null && goodTxs.length > 0) {
+            mempool.removeConflicts(goodTxs);
+        }
+        if(indexed && utxoFilter != null) {
+            utxoFilter.resizeIfNeeded();
+        }
+        if(indexed && utxoCommitment != null) {
+            stateRoot = utxoCommitment.commit();
+        }
+
+        if(blockStore != null && goodTxs.length > 0) {
+            try {
+                if(blockMiner != null) {
+                    blockStore.append(goodTxs, System.currentTimeMillis(), config.getBlockDifficulty(), blockMiner);
+                }
+                else {
+                    blockStore.append(goodTxs, System.currentTimeMillis());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not store the accepted epoch", e);
+            }
+        }
+        return goodTxs;
+    }
+
+    /**
+     * Appends an applied epoch to the log, then seals its undo record. If the append fails, the changes of the
+     * epoch are undone on the ledger, so that the ledger, the log and the journal stay at the same epoch.
+     */
+    private void logEpoch(Transaction[] goodTxs) {
+        long end = -1;
+        if(epochLog != null) {
+            try {
+                end = epochLog.append(goodTxs);
+            } catch (IOException | RuntimeException e) {
+                undoJournal.discard();
+                if(e instanceof IOException) {
+                    throw new UncheckedIOException("Could not log the accepted epoch", (IOException) e);
+                }
+                throw (RuntimeException) e;
+            }
+        }
+        if(undoJournal != null) {
+            try {
+                undoJournal.seal(blockStore == null ? -1 : blockStore.getHeight());
+            } catch (IOException e) {
+                // the epoch stands, it only can not be rolled back
+                LOG.warn("Could not journal epoch {}, it can not be rolled back", undoJournal.getNextSequence() - 1, e);
+            }
+        }
+        if(epochLog != null && config.isLogSyncCommit()) {
+            try {
+                epochLog.awaitDurable(end);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not log the accepted epoch", e);
+            }
+        }
+    }
+
+    /**
+     * Writes a {@link LedgerSnapshot} of the ledger to {@code file}, between two epochs: the resources
+     * submitted before are in the snapshot, the ones submitted after are not. An engine configured with the
+     * snapshot and the same epoch log starts from it and replays only the epochs logged after it.
+     */
+    public void writeSnapshot(File file) throws IOException {
+        IngestionPipeline pipeline = this.pipeline;
+        if(pipeline == null) {
+            throw new IllegalStateException("Engine is not initialized");
+        }
+        try {
+            pipeline.execute(() -> {
+                try {
+                    long sequence = epochLog == null ? 0 : epochLog.getNextSequence();
+                    LedgerSnapshot.write(txHandler.getUTXOPool(), sequence, file);
+                    File snapshotFile = config.getSnapshotFile();
+                    if(snapshotFile != null && snapshotFile.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+                        snapshotSequence = sequence;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Rolls back the last {@code epochs} epochs which accepted transactions, between two epochs: their changes
+     * are undone on the ledger from the {@link UndoJournal}, in time proportional to them, then their records
+     * dropped from the epoch log and their blocks from the block store, so that the engine restarts from the
+     * rolled back ledger. The undo records are dropped last; if the log can not be truncated, its epochs are
+     * applied again and the journal keeps them. A ledger snapshot written after the first epoch rolled back
+     * no longer matches the log; the engine does not roll back past the configured one.
+     *
+     * @throws IllegalArgumentException if {@code epochs} is negative or more than the journal holds
+     * @throws IllegalStateException if the undo journal is disabled in the configuration, or the configured
+     *                               snapshot was written after the first epoch to roll back
+     */
+    public void rollback(int epochs) throws IOException {
+        IngestionPipeline pipeline = this.pipeline;
+        if(pipeline == null) {
+            throw new IllegalStateException("Engine is not initialized");
+        }
+        if(config.getUndoHistory() == 0) {
+            throw new IllegalStateException("Undo journal is disabled");
+        }
+        try {
+            pipeline.execute(() -> {
+                long sequence = undoJournal.getNextSequence() - epochs;
+                if(epochs > 0 && epochs <= undoJournal.size() && snapshotSequence > sequence) {
+                    throw new IllegalStateException("Ledger snapshot " + config.getSnapshotFile()
+                            + " was written after epoch " + sequence);
+                }
+                try {
+                    // undo in memory first, drop the records only once the log and the blocks are truncated
+                    long blockHeight = undoJournal.rollback(epochs);
+                    try {
+                        truncate(sequence, blockHeight);
+                    } finally {
+                        if(epochLog != null && epochLog.getNextSequence() > sequence) {
+                            // the log still holds the epochs, so the ledger must too
+                            epochLog.replay(sequence, (s, txs) -> txHandler.applyTxs(txs));
+                            undoJournal.cancelRollback();
+                        } else {
+                            undoJournal.confirmRollback();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    if(indexed && utxoFilter != null) {
+                        utxoFilter.resizeIfNeeded();
+                    }
+                    if(indexed && utxoCommitment != null) {
+                        stateRoot = utxoCommitment.commit();
+                    }
+                }
+                LOG.info("Rolled back {} epochs", epochs);
+            }).join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void truncate(long sequence, long blockHeight) throws IOException {
+        if(epochLog != null) {
+            epochLog.truncate(sequence);
+        }
+        if(blockStore != null && blockHeight >= 0) {
+            blockStore.truncate(blockHeight);
+        }
+    }
+
+    /**
+     * @return the root of the {@link UTXOCommitment} of the ledger after the last epoch, or null if it is
+     *         disabled in the configuration or the ledger is not {@link #whenIndexed indexed} yet
+     */
+    public byte[] getStateRoot() {
+        byte[] root = stateRoot;
+        return root == null ? null : root.clone();
+    }
+
+    /**
+     * Proves that {@code utxo} is in the ledger, between two epochs: the proof is against the
+     * {@link #getStateRoot state root} of the epoch before. Waits for the ledger to be {@link #whenIndexed indexed}
+     * first.
+     *
+     * @return the proof, or null if {@code utxo} is not in the ledger
+     * @throws IllegalStateException if the commitment is disabled in the configuration
+     */
+    public UTXOCommitment.Proof proveUTXO(UTXO utxo) {
+        IngestionPipeline pipeline = this.pipeline;
+        if(pipeline == null) {
+            throw new IllegalStateException("Engine is not initialized");
+        }
+        if(utxoCommitment == null) {
+            throw new IllegalStateException("UTXO commitment is disabled");
+        }
+        indexing.join();
+        UTXOCommitment.Proof[] proof = new UTXOCommitment.Proof[1];
+        pipeline.execute(() -> proof[0] = utxoCommitment.prove(utxo)).join();
+        return proof[0];
+    }
+
+    /**
+     * Admits {@code tx} to the mempool, between two epochs, for a later {@link #proposeFromMempool}
+     *
+     * @return false if the mempool refused it, see {@link Mempool#add}
+     * @throws IllegalStateException if the mempool is disabled in the configuration
+     */
+    public boolean submit(Transaction tx) {
+        IngestionPipeline pipeline = this.pipeline;
+        if(pipeline == null) {
+            throw new IllegalStateException("Engine is not initialized");
+        }
+        if(mempool == null) {
+            throw new IllegalStateException("Mempool is disabled");
+        }
+        boolean[] admitted = new boolean[1];
+        pipeline.execute(() -> admitted[0] = mempool.add(tx)).join();
+        return admitted[0];
+    }
+
+    /**
+     * Proposes the highest fee pending transactions of the mempool as an epoch, see {@link Mempool#takeResource}.
+     * Pending transactions which conflict with the transactions any epoch accepts are dropped from the mempool.
+     *
+     * @return the future of the epoch, completed with null if no transaction is pending
+     * @throws IllegalStateException if the mempool is disabled in the configuration
+     */
+    public CompletableFuture<Resource> proposeFromMempool(int maxCount, long maxBytes) {
+        if(pipeline == null) {
+            throw new IllegalStateException("Engine is not initialized");
+        }
+        if(mempool == null) {
+            throw new IllegalStateException("Mempool is disabled");
+        }
+        BasicResource resource = mempool.takeResource(maxCount, maxBytes);
+        if(resource == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return onResourceCreatedAsync(resource);
+    }
+
+    /** @return the pending transactions, or null if the mempool is disabled in the configuration */
+    public Mempool getMempool() {
+        return mempool;
+    }
+
+    /** @return the store of the blocks sealed by this engine, or null if no block directory is configured */
+    public BlockStore getBlockStore() {
+        return blockStore;
+    }
+
+    /** @return the miner sealing the stored blocks, or null if no block difficulty is configured */
+    public BlockMiner getBlockMiner() {
+        return blockMiner;
+    }
+
+    /**
+     * @return a future completed once the address index, the UTXO filter and the UTXO commitment cover the
+     *         whole ledger: at once, unless the engine started lazily from a snapshot and fills them in the
+     *         background, see {@link BasicEngineConfig#setSnapshotLazy}
+     */
+    public CompletableFuture<Void> whenIndexed() {
+        return indexing;
+    }
+
+    /**
+     * @return the index of the unspent outputs and balances by address, or null if it is disabled in the
+     *         configuration; partial until the ledger is {@link #whenIndexed indexed}
+     */
+    public AddressIndex getAddressIndex() {
+        return addressIndex;
+    }
+
+    /**
+     * @return the filter of the unspent outputs, or null if it is disabled in the configuration; the pool does
+     *         not consult it until the ledger is {@link #whenIndexed indexed}
+     */
+    public UTXOFilter getUTXOFilter() {
+        return utxoFilter;
+    }
+
+    /**
+     * @return the commitment of the ledger, or null if it is disabled in the configuration; partial until the
+     *         ledger is {@link #whenIndexed indexed}
+     */
+    public UTXOCommitment getUTXOCommitment() {
+        return utxoCommitment;
+    }
+
+    /**
+     * @return the journal of the last epochs, or null if it is disabled in the configuration and there is no
+     *         epoch log; with a log it holds the changes of the current epoch until it is logged
+     */
+    public UndoJournal getUndoJournal() {
+        return undoJournal;
+    }
+
+    /** @return a snapshot of the engine metrics, or null if they are disabled in the configuration */
+    @Override
+    public EngineMetrics getMetrics() {
+        return metrics == null ? null : metrics.snapshot();
     }
 
     @Override
@@ -55,6 +595,61 @@ public class BasicEngine implements Engine {
 
     @Override
     public void destroy() {
-
+        if(pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+        blockMiner = null;
+        if(miningExecutor != null) {
+            miningExecutor.shutdownNow();
+            miningExecutor = null;
+        }
+        if(snapshotIndexer != null) {
+            snapshotIndexer.detach();
+            snapshotIndexer = null;
+        }
+        if(addressIndex != null) {
+            addressIndex.detach();
+            addressIndex = null;
+        }
+        if(utxoFilter != null) {
+            utxoFilter.detach();
+            utxoFilter = null;
+        }
+        if(utxoCommitment != null) {
+            utxoCommitment.detach();
+            utxoCommitment = null;
+        }
+        if(undoJournal != null) {
+            undoJournal.detach();
+            undoJournal = null;
+        }
+        if(metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                LOG.warn("Could not unregister the engine metrics from JMX", e);
+            } finally {
+                metricsName = null;
+            }
+        }
+        if(blockStore != null) {
+            try {
+                blockStore.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not close the block store", e);
+            } finally {
+                blockStore = null;
+            }
+        }
+        if(epochLog != null) {
+            try {
+                epochLog.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not close the epoch log", e);
+            } finally {
+                epochLog = null;
+            }
+        }
     }
 }
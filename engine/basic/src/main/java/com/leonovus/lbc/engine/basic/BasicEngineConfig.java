@@ -0,0 +1,316 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.io.File;
+
+/**
+ * Settings of a {@link BasicEngine}. The defaults give an in-memory engine which verifies signatures on
+ * all cores and keeps nothing across restarts.
+ */
+public class BasicEngineConfig {
+
+    private int verificationParallelism = Runtime.getRuntime().availableProcessors();
+    private int applyParallelism = Runtime.getRuntime().availableProcessors();
+    private int signatureCacheSize = 100000;
+    private SignatureScheme signatureScheme = new RsaSignatureScheme();
+    private File logDirectory;
+    private long logCommitDelayMillis = 10;
+    private boolean logSyncCommit = true;
+    private File snapshotFile;
+    private boolean snapshotLazy = true;
+    private File blockDirectory;
+    private int blockSegmentSize = 64 << 20;
+    private int blockDifficulty;
+    private int miningParallelism = Runtime.getRuntime().availableProcessors();
+    private int ingestionQueueCapacity = 1024;
+    private int epochMaxTransactions = 10000;
+    private long epochMaxDelayMillis = 5;
+    private boolean metricsEnabled = true;
+    private boolean jmxEnabled = true;
+    private boolean addressIndexEnabled = true;
+    private boolean utxoFilterEnabled = true;
+    private boolean utxoCommitmentEnabled;
+    private int utxoCommitmentDepth = 16;
+    private int undoHistory;
+    private long mempoolBytes;
+
+    public int getVerificationParallelism() {
+        return verificationParallelism;
+    }
+
+    /** Number of threads checking the signatures of an epoch, 1 verifies on the calling thread */
+    public void setVerificationParallelism(int verificationParallelism) {
+        this.verificationParallelism = verificationParallelism;
+    }
+
+    public int getApplyParallelism() {
+        return applyParallelism;
+    }
+
+    /**
+     * Number of threads validating and applying the independent transactions of large epochs, 1 does it on
+     * the calling thread. Applying is only spread over the threads when the ledger is concurrent, which is
+     * the case of the ledger the engine creates when it is not given one (see {@link StripedUTXOStore}).
+     */
+    public void setApplyParallelism(int applyParallelism) {
+        this.applyParallelism = applyParallelism;
+    }
+
+    public int getSignatureCacheSize() {
+        return signatureCacheSize;
+    }
+
+    /**
+     * Number of verified signatures remembered, so that transactions submitted again are not verified
+     * again; 0 turns the cache off
+     */
+    public void setSignatureCacheSize(int signatureCacheSize) {
+        this.signatureCacheSize = signatureCacheSize;
+    }
+
+    public SignatureScheme getSignatureScheme() {
+        return signatureScheme;
+    }
+
+    /**
+     * Scheme of the signatures of the inputs, {@link RsaSignatureScheme} by default. The
+     * {@link Ed25519SignatureScheme} has keys and signatures several times smaller, but verifies more slowly
+     * than RSA even in batches.
+     */
+    public void setSignatureScheme(SignatureScheme signatureScheme) {
+        this.signatureScheme = signatureScheme;
+    }
+
+    public File getLogDirectory() {
+        return logDirectory;
+    }
+
+    /**
+     * Directory of the epoch log. When set, every accepted epoch is appended to the log and the ledger is
+     * rebuilt from it on {@link BasicEngine#init}; when null (the default) nothing is persisted.
+     */
+    public void setLogDirectory(File logDirectory) {
+        this.logDirectory = logDirectory;
+    }
+
+    public long getLogCommitDelayMillis() {
+        return logCommitDelayMillis;
+    }
+
+    /**
+     * Upper bound on the time an appended epoch waits for the fsync which makes it durable. Epochs appended
+     * within that window share one fsync.
+     */
+    public void setLogCommitDelayMillis(long logCommitDelayMillis) {
+        this.logCommitDelayMillis = logCommitDelayMillis;
+    }
+
+    public boolean isLogSyncCommit() {
+        return logSyncCommit;
+    }
+
+    /**
+     * When true (the default), processing a resource returns, and its future completes, only once its epoch
+     * is durable; the resources queued during the sync make up the next epoch and share the next sync. When
+     * false it returns as soon as the epoch is written, and a crash may lose the epochs of the last commit
+     * delay although they were reported accepted.
+     */
+    public void setLogSyncCommit(boolean logSyncCommit) {
+        this.logSyncCommit = logSyncCommit;
+    }
+
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * {@link LedgerSnapshot} to start from. When set and the file exists, {@link BasicEngine#init} without a
+     * ledger starts from the snapshot and only replays the epochs logged after it was written (see
+     * {@link BasicEngine#writeSnapshot}); null by default.
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public boolean isSnapshotLazy() {
+        return snapshotLazy;
+    }
+
+    /**
+     * When true (the default), the ledger reads the snapshot in place through a {@link SnapshotUTXOStore},
+     * so the engine starts right away whatever the size of the snapshot, but applies epochs on one thread.
+     * When false the snapshot is loaded into a concurrent ledger on all cores before the engine starts.
+     * When true, the address index, the UTXO filter and the UTXO commitment are filled in the background, a
+     * chunk of the snapshot between two epochs, see {@link BasicEngine#whenIndexed}.
+     */
+    public void setSnapshotLazy(boolean snapshotLazy) {
+        this.snapshotLazy = snapshotLazy;
+    }
+
+    public File getBlockDirectory() {
+        return blockDirectory;
+    }
+
+    /**
+     * Directory of the {@link BlockStore}. When set, every accepted epoch is sealed into a block and kept
+     * there, so blocks and transactions can be looked up by hash; when null (the default) no blocks are kept.
+     */
+    public void setBlockDirectory(File blockDirectory) {
+        this.blockDirectory = blockDirectory;
+    }
+
+    public int getBlockSegmentSize() {
+        return blockSegmentSize;
+    }
+
+    /** Size of the block segment files, 64 MB by default */
+    public void setBlockSegmentSize(int blockSegmentSize) {
+        this.blockSegmentSize = blockSegmentSize;
+    }
+
+    public int getBlockDifficulty() {
+        return blockDifficulty;
+    }
+
+    /**
+     * Number of leading zero bits the hash of a stored block must have. Above 0 every block is sealed by a
+     * {@link BlockMiner} before it is stored, which delays the next epoch by the time it takes; 0 (the
+     * default) stores blocks unsealed.
+     */
+    public void setBlockDifficulty(int blockDifficulty) {
+        this.blockDifficulty = blockDifficulty;
+    }
+
+    public int getMiningParallelism() {
+        return miningParallelism;
+    }
+
+    /**
+     * Number of threads sealing a block, the number of processors by default: the pipeline thread and workers
+     * of the engine's own, so mining does not hold up the pool verifying signatures
+     */
+    public void setMiningParallelism(int miningParallelism) {
+        this.miningParallelism = miningParallelism;
+    }
+
+    public int getIngestionQueueCapacity() {
+        return ingestionQueueCapacity;
+    }
+
+    /** Number of resources which may wait for processing before submitting blocks the producer */
+    public void setIngestionQueueCapacity(int ingestionQueueCapacity) {
+        this.ingestionQueueCapacity = ingestionQueueCapacity;
+    }
+
+    public int getEpochMaxTransactions() {
+        return epochMaxTransactions;
+    }
+
+    /** Number of transactions after which queued resources stop being coalesced into the same epoch */
+    public void setEpochMaxTransactions(int epochMaxTransactions) {
+        this.epochMaxTransactions = epochMaxTransactions;
+    }
+
+    public long getEpochMaxDelayMillis() {
+        return epochMaxDelayMillis;
+    }
+
+    /**
+     * Time an epoch stays open for more queued resources after its first one, while resources are being
+     * submitted; it closes as soon as none is queued or being queued. 0 only coalesces the resources which
+     * are already queued.
+     */
+    public void setEpochMaxDelayMillis(long epochMaxDelayMillis) {
+        this.epochMaxDelayMillis = epochMaxDelayMillis;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /** Whether the engine counts epochs and rejections and records latencies, true by default */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /** Whether the metrics are registered with the platform MBean server, true by default */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    public boolean isAddressIndexEnabled() {
+        return addressIndexEnabled;
+    }
+
+    /**
+     * Whether the engine keeps the unspent outputs and balance of every address, see {@link AddressIndex};
+     * true by default
+     */
+    public void setAddressIndexEnabled(boolean addressIndexEnabled) {
+        this.addressIndexEnabled = addressIndexEnabled;
+    }
+
+    public boolean isUtxoFilterEnabled() {
+        return utxoFilterEnabled;
+    }
+
+    /**
+     * Whether inputs spending outputs which are not in the ledger are turned down by a {@link UTXOFilter},
+     * without looking them up; true by default. The filter takes 2 to 4 bytes per unspent output.
+     */
+    public void setUtxoFilterEnabled(boolean utxoFilterEnabled) {
+        this.utxoFilterEnabled = utxoFilterEnabled;
+    }
+
+    public boolean isUtxoCommitmentEnabled() {
+        return utxoCommitmentEnabled;
+    }
+
+    /**
+     * Whether the engine keeps a {@link UTXOCommitment} of the ledger and a state root after every epoch;
+     * false by default. It costs a hash per output created or spent and about 60 bytes per unspent output.
+     */
+    public void setUtxoCommitmentEnabled(boolean utxoCommitmentEnabled) {
+        this.utxoCommitmentEnabled = utxoCommitmentEnabled;
+    }
+
+    public int getUtxoCommitmentDepth() {
+        return utxoCommitmentDepth;
+    }
+
+    /**
+     * Depth of the {@link UTXOCommitment} tree, 16 (65536 buckets) by default. Engines comparing state roots
+     * must use the same depth.
+     */
+    public void setUtxoCommitmentDepth(int utxoCommitmentDepth) {
+        this.utxoCommitmentDepth = utxoCommitmentDepth;
+    }
+
+    public int getUndoHistory() {
+        return undoHistory;
+    }
+
+    /**
+     * Number of the last epochs kept in an {@link UndoJournal}, which {@link BasicEngine#rollback} can undo;
+     * 0 (the default) keeps none. The journal is kept next to the epoch log if one is configured, in memory
+     * otherwise.
+     */
+    public void setUndoHistory(int undoHistory) {
+        this.undoHistory = undoHistory;
+    }
+
+    public long getMempoolBytes() {
+        return mempoolBytes;
+    }
+
+    /**
+     * Memory cap of the {@link Mempool} holding the transactions given to {@link BasicEngine#submit}, in
+     * bytes; 0 (the default) disables it.
+     */
+    public void setMempoolBytes(long mempoolBytes) {
+        this.mempoolBytes = mempoolBytes;
+    }
+}
@@ -4,6 +4,18 @@ import com.leonovus.lbc.engine.api.Engine;
 import com.leonovus.lbc.engine.api.EngineFactory;
 
 public class BasicEngineFactory implements EngineFactory {
+
+    private final BasicEngineConfig config;
+
+    public BasicEngineFactory() {
+        this(new BasicEngineConfig());
+    }
+
+    /** Creates a factory whose engines are all set up according to {@code config} */
+    public BasicEngineFactory(BasicEngineConfig config) {
+        this.config = config;
+    }
+
     @Override
     public String getName() {
         return "basic";
@@ -12,7 +24,7 @@ public class BasicEngineFactory implements EngineFactory {
     @Override
     public Engine createEngine() {
         //We do not want the engine instance to be reassigned (precautionary).
-        final BasicEngine engine = new BasicEngine();
+        final BasicEngine engine = new BasicEngine(config);
         //TODO Do we really want to initialize the engine here?
         //engine.init(null);
 
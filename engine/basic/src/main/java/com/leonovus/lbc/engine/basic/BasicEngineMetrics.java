@@ -0,0 +1,199 @@
+package com.leonovus.lbc.engine.basic;
+
+import com.leonovus.lbc.engine.api.EngineMetrics;
+import com.leonovus.lbc.engine.api.LatencySnapshot;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live metrics of a {@link BasicEngine}, updated by its {@link TxHandler}. The getters read the current
+ * values (this is the object registered with JMX); {@link #snapshot()} freezes them.
+ *
+ * Everything is recorded once per epoch except rejections, which cost one atomic increment each, so keeping
+ * metrics does not show on the cost of an epoch.
+ */
+public class BasicEngineMetrics implements EngineMetrics {
+
+    private static final RejectionReason[] REASONS = RejectionReason.values();
+
+    private final AtomicLong epochsProcessed = new AtomicLong();
+    private final AtomicLong transactionsAccepted = new AtomicLong();
+    private final AtomicLongArray rejections = new AtomicLongArray(REASONS.length);
+    private final LatencyHistogram validationLatency = new LatencyHistogram();
+    private final LatencyHistogram signatureVerificationLatency = new LatencyHistogram();
+    private final LatencyHistogram poolApplyLatency = new LatencyHistogram();
+
+    private volatile UTXOPool utxoPool;
+    private volatile SignatureVerifier verifier;
+
+    /** Reports the size of {@code pool} and the bytes hashed by {@code verifier} */
+    void attach(UTXOPool pool, SignatureVerifier verifier) {
+        this.utxoPool = pool;
+        this.verifier = verifier;
+    }
+
+    void recordEpoch(int accepted, long verificationNanos, long validationNanos, long applyNanos) {
+        epochsProcessed.incrementAndGet();
+        transactionsAccepted.addAndGet(accepted);
+        signatureVerificationLatency.record(verificationNanos);
+        validationLatency.record(validationNanos);
+        poolApplyLatency.record(applyNanos);
+    }
+
+    void recordRejection(RejectionReason reason) {
+        rejections.incrementAndGet(reason.ordinal());
+    }
+
+    @Override
+    public long getEpochsProcessed() {
+        return epochsProcessed.get();
+    }
+
+    @Override
+    public long getTransactionsAccepted() {
+        return transactionsAccepted.get();
+    }
+
+    @Override
+    public long getTransactionsRejected() {
+        long total = 0;
+        for (int i = 0; i < REASONS.length; i++) {
+            total += rejections.get(i);
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getTransactionsRejectedByReason() {
+        Map<String, Long> byReason = new LinkedHashMap<>();
+        for (RejectionReason reason : REASONS) {
+            long count = rejections.get(reason.ordinal());
+            if (count > 0) {
+                byReason.put(reason.name(), count);
+            }
+        }
+        return byReason;
+    }
+
+    @Override
+    public long getUtxoPoolSize() {
+        UTXOPool pool = utxoPool;
+        return pool == null ? 0 : pool.size();
+    }
+
+    @Override
+    public long getBytesHashed() {
+        SignatureVerifier verifier = this.verifier;
+        return verifier == null ? 0 : verifier.getBytesHashed();
+    }
+
+    @Override
+    public double getSignatureCacheHitRatio() {
+        SignatureVerifier verifier = this.verifier;
+        return verifier == null || verifier.getCache() == null ? 0 : verifier.getCache().getHitRatio();
+    }
+
+    @Override
+    public LatencySnapshot getValidationLatency() {
+        return validationLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getSignatureVerificationLatency() {
+        return signatureVerificationLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getPoolApplyLatency() {
+        return poolApplyLatency.snapshot();
+    }
+
+    /** @return the current values, which do not change any more */
+    public EngineMetrics snapshot() {
+        return new Snapshot(this);
+    }
+
+    private static final class Snapshot implements EngineMetrics {
+        private final long epochsProcessed;
+        private final long transactionsAccepted;
+        private final long transactionsRejected;
+        private final Map<String, Long> transactionsRejectedByReason;
+        private final long utxoPoolSize;
+        private final long bytesHashed;
+        private final double signatureCacheHitRatio;
+        private final LatencySnapshot validationLatency;
+        private final LatencySnapshot signatureVerificationLatency;
+        private final LatencySnapshot poolApplyLatency;
+
+        Snapshot(EngineMetrics live) {
+            epochsProcessed = live.getEpochsProcessed();
+            transactionsAccepted = live.getTransactionsAccepted();
+            transactionsRejectedByReason = Collections.unmodifiableMap(live.getTransactionsRejectedByReason());
+            long rejected = 0;
+            for (long count : transactionsRejectedByReason.values()) {
+                rejected += count;
+            }
+            transactionsRejected = rejected;
+            utxoPoolSize = live.getUtxoPoolSize();
+            bytesHashed = live.getBytesHashed();
+            signatureCacheHitRatio = live.getSignatureCacheHitRatio();
+            validationLatency = live.getValidationLatency();
+            signatureVerificationLatency = live.getSignatureVerificationLatency();
+            poolApplyLatency = live.getPoolApplyLatency();
+        }
+
+        @Override
+        public long getEpochsProcessed() {
+            return epochsProcessed;
+        }
+
+        @Override
+        public long getTransactionsAccepted() {
+            return transactionsAccepted;
+        }
+
+        @Override
+        public long getTransactionsRejected() {
+            return transactionsRejected;
+        }
+
+        @Override
+        public Map<String, Long> getTransactionsRejectedByReason() {
+            return transactionsRejectedByReason;
+        }
+
+        @Override
+        public long getUtxoPoolSize() {
+            return utxoPoolSize;
+        }
+
+        @Override
+        public long getBytesHashed() {
+            return bytesHashed;
+        }
+
+        @Override
+        public double getSignatureCacheHitRatio() {
+            return signatureCacheHitRatio;
+        }
+
+        @Override
+        public LatencySnapshot getValidationLatency() {
+            return validationLatency;
+        }
+
+        @Override
+        public LatencySnapshot getSignatureVerificationLatency() {
+            return signatureVerificationLatency;
+        }
+
+        @Override
+        public LatencySnapshot getPoolApplyLatency() {
+            return poolApplyLatency;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * An accepted epoch sealed into the chain: a header and the transactions it commits to.
+ *
+ * The header holds the height, the hash of the previous block, the Merkle root over the transaction hashes
+ * (see {@link MerkleTree}), a timestamp, and the proof of work: a difficulty and a nonce. The block hash is the
+ * SHA-256 of the encoded header; a block is valid if its hash starts with at least {@code difficulty} zero
+ * bits, which {@link BlockMiner} finds a nonce for. Blocks of difficulty 0 need no work.
+ */
+public class Block {
+
+    /** height, timestamp, previous hash, Merkle root, difficulty, nonce */
+    static final int HEADER_SIZE = Long.BYTES + Long.BYTES + MerkleTree.HASH_SIZE + MerkleTree.HASH_SIZE
+            + Integer.BYTES + Long.BYTES;
+    /** the nonce is the end of the header */
+    static final int NONCE_OFFSET = HEADER_SIZE - Long.BYTES;
+    /** largest difficulty, a hash of zeros only */
+    public static final int MAX_DIFFICULTY = MerkleTree.HASH_SIZE * 8;
+
+    private final long height;
+    private final long timestamp;
+    private final byte[] prevHash;
+    private final byte[] merkleRoot;
+    private final int difficulty;
+    private final long nonce;
+    private final byte[] hash;
+    private final Transaction[] transactions;
+
+    /** Seals {@code transactions} into the block following the one with hash {@code prevHash} */
+    public Block(long height, long timestamp, byte[] prevHash, Transaction[] transactions) {
+        this(height, timestamp, prevHash, MerkleTree.root(transactions), 0, 0, transactions);
+    }
+
+    Block(long height, long timestamp, byte[] prevHash, byte[] merkleRoot, int difficulty, long nonce,
+            Transaction[] transactions) {
+        if (prevHash.length != MerkleTree.HASH_SIZE) {
+            throw new IllegalArgumentException("Previous block hash must be " + MerkleTree.HASH_SIZE + " bytes");
+        }
+        if (difficulty < 0 || difficulty > MAX_DIFFICULTY) {
+            throw new IllegalArgumentException("Difficulty must be between 0 and " + MAX_DIFFICULTY + ": " + difficulty);
+        }
+        this.height = height;
+        this.timestamp = timestamp;
+        this.prevHash = prevHash.clone();
+        this.merkleRoot = merkleRoot;
+        this.difficulty = difficulty;
+        this.nonce = nonce;
+        this.transactions = transactions;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        writeHeader(header);
+        MessageDigest md = MerkleTree.sha256();
+        md.update(header.array());
+        this.hash = md.digest();
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    /** @return the time the block was sealed, in milliseconds since the epoch */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public byte[] getPrevHash() {
+        return prevHash.clone();
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot.clone();
+    }
+
+    public byte[] getHash() {
+        return hash.clone();
+    }
+
+    /** @return the number of leading zero bits the hash must have */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** @return true if the hash meets the difficulty, i.e. the nonce is a proof of work */
+    public boolean isSealed() {
+        return leadingZeroBits(hash) >= difficulty;
+    }
+
+    public Transaction[] getTransactions() {
+        return transactions;
+    }
+
+    /** @return the encoded header with a zero nonce, to be mined */
+    byte[] unsealedHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        writeHeader(header);
+        header.putLong(NONCE_OFFSET, 0);
+        return header.array();
+    }
+
+    void writeHeader(ByteBuffer out) {
+        out.putLong(height).putLong(timestamp).put(prevHash).put(merkleRoot).putInt(difficulty).putLong(nonce);
+    }
+
+    /** @return the number of zero bits {@code hash} starts with */
+    static int leadingZeroBits(byte[] hash) {
+        int bits = 0;
+        for (byte b : hash) {
+            if (b != 0) {
+                return bits + Integer.numberOfLeadingZeros(b & 0xFF) - 24;
+            }
+            bits += 8;
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,197 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Proof of work: searches the nonce which gives a block header a SHA-256 hash starting with a given number of
+ * zero bits (see {@link Block}).
+ *
+ * The header ends with its 8 byte nonce; everything before it is the same for every attempt, so each worker
+ * feeds it once to a digest (the midstate) and an attempt clones that digest and only hashes the nonce and
+ * the padding: one compression instead of two for a {@link Block} header. Workers are the caller thread plus up to
+ * {@code parallelism - 1} tasks of the executor, claiming ranges of nonces from a shared counter. They check
+ * for a solution, or {@link #cancel}, after every small batch of attempts, so the search stops within
+ * microseconds once it is over.
+ */
+public class BlockMiner {
+
+    /** number of nonces a worker claims at once */
+    private static final int BATCH = 1024;
+
+    /** A nonce meeting the difficulty, and what it took to find it */
+    public static final class Result {
+        private final long nonce;
+        private final byte[] hash;
+        private final long attempts;
+        private final long elapsedNanos;
+
+        Result(long nonce, byte[] hash, long attempts, long elapsedNanos) {
+            this.nonce = nonce;
+            this.hash = hash;
+            this.attempts = attempts;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getNonce() {
+            return nonce;
+        }
+
+        public byte[] getHash() {
+            return hash.clone();
+        }
+
+        /** @return the number of headers hashed by all workers */
+        public long getAttempts() {
+            return attempts;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getHashesPerSecond() {
+            return elapsedNanos == 0 ? 0 : attempts * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("nonce %d after %d hashes in %.1f ms (%.0f hashes/s)", nonce, attempts,
+                    elapsedNanos / 1e6, getHashesPerSecond());
+        }
+    }
+
+    /** A search in progress */
+    private static final class Search {
+        final AtomicLong nextNonce = new AtomicLong();
+        final AtomicLong attempts = new AtomicLong();
+        final AtomicReference<Result> solution = new AtomicReference<>();
+        volatile boolean cancelled;
+
+        boolean isOver() {
+            return cancelled || solution.get() != null;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private volatile Search current;
+    private volatile double hashesPerSecond;
+
+    /**
+     * Creates a miner which uses {@code executor} for up to {@code parallelism} concurrent workers (the caller
+     * thread included). A null executor or parallelism of 1 mines on the caller thread. Workers keep their
+     * thread busy until the search is over, so the executor should not be one other work depends on.
+     */
+    public BlockMiner(ExecutorService executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.executor = executor;
+        this.parallelism = executor == null ? 1 : parallelism;
+    }
+
+    /**
+     * Searches a nonce for {@code header}, whose last 8 bytes are the nonce, such that its SHA-256 starts with
+     * {@code difficulty} zero bits. One search runs at a time.
+     *
+     * @return the solution, or null if the search was {@link #cancel cancelled}
+     * @throws IllegalArgumentException if the header is shorter than a nonce or the difficulty is not between 0
+     *         and {@link Block#MAX_DIFFICULTY}
+     */
+    public synchronized Result mine(byte[] header, int difficulty) {
+        if (header.length < Long.BYTES) {
+            throw new IllegalArgumentException("Header too short for a nonce: " + header.length);
+        }
+        if (difficulty < 0 || difficulty > Block.MAX_DIFFICULTY) {
+            throw new IllegalArgumentException("Difficulty must be between 0 and " + Block.MAX_DIFFICULTY + ": "
+                    + difficulty);
+        }
+        Search search = new Search();
+        current = search;
+        long start = System.nanoTime();
+        try {
+            Runnable worker = () -> search(header, difficulty, search);
+            List<Future<?>> futures = new ArrayList<>(parallelism - 1);
+            for (int w = 1; w < parallelism; w++) {
+                futures.add(executor.submit(worker));
+            }
+            try {
+                worker.run();
+            } catch (RuntimeException e) {
+                // the other workers must not keep searching
+                search.cancelled = true;
+                throw e;
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    search.cancelled = true;
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while mining", e);
+                } catch (ExecutionException e) {
+                    search.cancelled = true;
+                    throw new IllegalStateException("Mining failed", e.getCause());
+                }
+            }
+        } finally {
+            current = null;
+        }
+        long elapsed = System.nanoTime() - start;
+        hashesPerSecond = elapsed == 0 ? 0 : search.attempts.get() * 1e9 / elapsed;
+        Result found = search.solution.get();
+        return found == null ? null
+                : new Result(found.nonce, found.hash, search.attempts.get(), elapsed);
+    }
+
+    /** Stops the search in progress, if any, which then returns null */
+    public void cancel() {
+        Search search = current;
+        if (search != null) {
+            search.cancelled = true;
+        }
+    }
+
+    /** @return the hash rate of the last search, over all workers */
+    public double getHashesPerSecond() {
+        return hashesPerSecond;
+    }
+
+    /** One worker: hashes the claimed nonces from its own midstate until the search is over */
+    private static void search(byte[] header, int difficulty, Search search) {
+        int nonceOffset = header.length - Long.BYTES;
+        MessageDigest midstate = MerkleTree.sha256();
+        midstate.update(header, 0, nonceOffset);
+        byte[] nonceBytes = new byte[Long.BYTES];
+        byte[] hash = new byte[32];
+        try {
+            while (!search.isOver()) {
+                long from = search.nextNonce.getAndAdd(BATCH);
+                for (long nonce = from; nonce < from + BATCH; nonce++) {
+                    for (int i = 0; i < Long.BYTES; i++) {
+                        nonceBytes[i] = (byte) (nonce >>> (56 - 8 * i));
+                    }
+                    MessageDigest md = (MessageDigest) midstate.clone();
+                    md.update(nonceBytes);
+                    md.digest(hash, 0, hash.length);
+                    if (Block.leadingZeroBits(hash) >= difficulty) {
+                        search.attempts.addAndGet(nonce - from + 1);
+                        search.solution.compareAndSet(null, new Result(nonce, hash.clone(), 0, 0));
+                        return;
+                    }
+                }
+                search.attempts.addAndGet(BATCH);
+            }
+        } catch (CloneNotSupportedException | DigestException e) {
+            throw new IllegalStateException("SHA-256 digest can not be resumed", e);
+        }
+    }
+}
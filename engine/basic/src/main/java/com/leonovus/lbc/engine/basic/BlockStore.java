@@ -0,0 +1,572 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongPredicate;
+import java.util.zip.CRC32;
+
+/**
+ * Chain of {@link Block}s kept in memory-mapped segment files, with an in-memory index giving the location
+ * of every block and transaction.
+ *
+ * Blocks are appended to {@code blocks-NNNNN.dat} segments of a fixed size; a block which does not fit the
+ * current segment starts a new one. Each segment is mapped once, blocks are written into and read from the
+ * mapping, so fetching a block or transaction by hash is one lookup in the index and one read of the
+ * mapped record. A segment starts with a header (magic, version) followed by the records; a record is
+ * <pre>
+ *   int  payload length
+ *   int  CRC32 of the payload
+ *   long height, long timestamp, previous hash, Merkle root,  \
+ *   int difficulty, long nonce                                  |
+ *   block hash                                                  |
+ *   int  number of transactions                                 } payload
+ *   int  offset of every transaction from the record start      |
+ *   transactions, framed layout (see {@link TransactionCodec})  /
+ * </pre>
+ * The index is rebuilt from the segments when the store is opened; records stay durable on the mapping's
+ * own schedule, or after {@link #flush()}, so a crash may lose the last blocks. Opening drops a torn record
+ * at the end of the last segment, checks that the blocks chain up, and fails on a segment of another layout.
+ */
+public class BlockStore implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "blocks-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int MAGIC = 0x4C424342; // "LBCB"
+    /** 1: first versioned layout, with difficulty and nonce, domain separated Merkle roots, long values */
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int FIXED_PAYLOAD_SIZE = Block.HEADER_SIZE + MerkleTree.HASH_SIZE + Integer.BYTES;
+
+    /** A segment file and its mapping; {@code end} is the offset after its last record */
+    private static final class Segment {
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        int end;
+
+        Segment(FileChannel channel, MappedByteBuffer map) {
+            this.channel = channel;
+            this.map = map;
+        }
+    }
+
+    /**
+     * Open-addressing map from a 64-bit fingerprint of a hash to record locations. Distinct hashes may share
+     * a fingerprint, so lookups confirm a candidate location against the hash stored in the record.
+     */
+    private static final class HashIndex {
+        private long[] fingerprints = new long[1024];
+        private long[] locations = new long[1024];
+        private int size;
+
+        void put(long fingerprint, long location) {
+            if (size + 1 > fingerprints.length * 0.7) {
+                long[] oldFingerprints = fingerprints;
+                long[] oldLocations = locations;
+                fingerprints = new long[oldFingerprints.length * 2];
+                locations = new long[oldLocations.length * 2];
+                for (int i = 0; i < oldFingerprints.length; i++) {
+                    if (oldFingerprints[i] != 0) {
+                        insert(oldFingerprints[i], oldLocations[i]);
+                    }
+                }
+            }
+            insert(fingerprint, location);
+            size++;
+        }
+
+        /** @return the first location of {@code fingerprint} accepted by {@code matches}, or -1 */
+        long get(long fingerprint, LongPredicate matches) {
+            int mask = fingerprints.length - 1;
+            for (int slot = slot(fingerprint, mask); fingerprints[slot] != 0; slot = (slot + 1) & mask) {
+                if (fingerprints[slot] == fingerprint && matches.test(locations[slot])) {
+                    return locations[slot];
+                }
+            }
+            return -1;
+        }
+
+        /** Removes the entry of {@code fingerprint} at {@code location}, if any */
+        void remove(long fingerprint, long location) {
+            int mask = fingerprints.length - 1;
+            int hole = slot(fingerprint, mask);
+            while (fingerprints[hole] != 0 && (fingerprints[hole] != fingerprint || locations[hole] != location)) {
+                hole = (hole + 1) & mask;
+            }
+            if (fingerprints[hole] == 0) {
+                return;
+            }
+            // move back the later entries of the run which would no longer be reached past the hole
+            for (int slot = (hole + 1) & mask; fingerprints[slot] != 0; slot = (slot + 1) & mask) {
+                int home = slot(fingerprints[slot], mask);
+                if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                    fingerprints[hole] = fingerprints[slot];
+                    locations[hole] = locations[slot];
+                    hole = slot;
+                }
+            }
+            fingerprints[hole] = 0;
+            locations[hole] = 0;
+            size--;
+        }
+
+        private void insert(long fingerprint, long location) {
+            int mask = fingerprints.length - 1;
+            int slot = slot(fingerprint, mask);
+            while (fingerprints[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            fingerprints[slot] = fingerprint;
+            locations[slot] = location;
+        }
+
+        private static int slot(long fingerprint, int mask) {
+            return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private final HashIndex blockIndex = new HashIndex();
+    private final HashIndex txIndex = new HashIndex();
+    private final CRC32 crc = new CRC32();
+
+    /** guarded by this */
+    private long[] blockLocations = new long[1024];
+    private long height;
+    private byte[] tipHash = new byte[MerkleTree.HASH_SIZE];
+
+    /**
+     * Opens (or creates) the block store in {@code directory}, with new segments of {@code segmentSize} bytes.
+     */
+    public BlockStore(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + FIXED_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " is too small");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            throw new IOException("Could not list " + directory);
+        }
+        Arrays.sort(files);
+        try {
+            for (int i = 0; i < files.length; i++) {
+                if (!files[i].getName().equals(segmentName(i))) {
+                    throw new IOException("Block segment " + segmentName(i) + " is missing in " + directory);
+                }
+                FileChannel channel = FileChannel.open(files[i].toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                segments.add(new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size())));
+                scan(i, i == files.length - 1);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeSegments();
+            throw e;
+        }
+    }
+
+    /**
+     * Seals {@code txs} into the next block of the chain and writes it.
+     *
+     * @return the new block
+     */
+    public synchronized Block append(Transaction[] txs, long timestamp) throws IOException {
+        Block block = new Block(height, timestamp, tipHash, txs);
+        write(block);
+        return block;
+    }
+
+    /**
+     * Seals {@code txs} into the next block of the chain under a proof of work of {@code difficulty} found by
+     * {@code miner}, and writes it. Readers are not held up while mining, but no other block may be appended
+     * meanwhile.
+     *
+     * @return the new block
+     * @throws InterruptedIOException if the miner was cancelled
+     */
+    public Block append(Transaction[] txs, long timestamp, int difficulty, BlockMiner miner) throws IOException {
+        long height;
+        byte[] prevHash;
+        synchronized (this) {
+            height = this.height;
+            prevHash = tipHash;
+        }
+        Block block = new Block(height, timestamp, prevHash, MerkleTree.root(txs), difficulty, 0, txs);
+        if (difficulty > 0) {
+            BlockMiner.Result result = miner.mine(block.unsealedHeader(), difficulty);
+            if (result == null) {
+                throw new InterruptedIOException("Mining of block " + height + " was cancelled");
+            }
+            block = new Block(height, timestamp, prevHash, block.getMerkleRoot(), difficulty, result.getNonce(), txs);
+        }
+        synchronized (this) {
+            if (this.height != height) {
+                throw new IllegalStateException("Block " + height + " was appended while mining it");
+            }
+            write(block);
+        }
+        return block;
+    }
+
+    private void write(Block block) throws IOException {
+        Transaction[] txs = block.getTransactions();
+        int recordSize = RECORD_HEADER_SIZE + FIXED_PAYLOAD_SIZE + txs.length * Integer.BYTES;
+        for (Transaction tx : txs) {
+            recordSize += TransactionCodec.encodedSize(tx);
+        }
+        if (segments.isEmpty() || last().map.capacity() - last().end < recordSize) {
+            addSegment(Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize));
+        }
+        int segmentId = segments.size() - 1;
+        Segment segment = last();
+        int start = segment.end;
+
+        ByteBuffer out = segment.map.duplicate();
+        out.position(start + RECORD_HEADER_SIZE);
+        block.writeHeader(out);
+        out.put(block.getHash()).putInt(txs.length);
+        int offsets = out.position();
+        out.position(offsets + txs.length * Integer.BYTES);
+        for (int i = 0; i < txs.length; i++) {
+            out.putInt(offsets + i * Integer.BYTES, out.position() - start);
+            TransactionCodec.encode(txs[i], out);
+        }
+
+        ByteBuffer payload = segment.map.duplicate();
+        payload.position(start + RECORD_HEADER_SIZE).limit(start + recordSize);
+        crc.reset();
+        crc.update(payload);
+        out.putInt(start, recordSize - RECORD_HEADER_SIZE).putInt(start + 4, (int) crc.getValue());
+        segment.end = start + recordSize;
+
+        index(segmentId, start, block.getHash(), segment.map, offsets, txs.length);
+        tipHash = block.getHash();
+    }
+
+    /** @return the block with hash {@code hash}, or null if there is none */
+    public Block getBlock(byte[] hash) {
+        if (hash.length != MerkleTree.HASH_SIZE) {
+            return null;
+        }
+        ByteBuffer in;
+        synchronized (this) {
+            long location = blockIndex.get(fingerprint(hash),
+                    l -> matches(mapOf(l), offsetOf(l) + RECORD_HEADER_SIZE + Block.HEADER_SIZE, hash));
+            if (location < 0) {
+                return null;
+            }
+            in = reader(location);
+        }
+        return readBlock(in);
+    }
+
+    /** @return the block at {@code height}, or null if the chain is not that long */
+    public Block getBlock(long height) {
+        ByteBuffer in;
+        synchronized (this) {
+            if (height < 0 || height >= this.height) {
+                return null;
+            }
+            in = reader(blockLocations[(int) height]);
+        }
+        return readBlock(in);
+    }
+
+    /** @return the transaction with hash {@code hash} from any block of the chain, or null if there is none */
+    public Transaction getTransaction(byte[] hash) {
+        ByteBuffer in;
+        synchronized (this) {
+            long location = txIndex.get(fingerprint(hash), l -> mapOf(l).getInt(offsetOf(l)) == hash.length
+                    && matches(mapOf(l), offsetOf(l) + Integer.BYTES, hash));
+            if (location < 0) {
+                return null;
+            }
+            in = reader(location);
+        }
+        return TransactionCodec.decode(in);
+    }
+
+    /** @return the number of blocks in the chain */
+    public synchronized long getHeight() {
+        return height;
+    }
+
+    /** @return the hash of the last block, or 32 zero bytes if the chain is empty */
+    public synchronized byte[] getTipHash() {
+        return tipHash.clone();
+    }
+
+    /**
+     * Drops the blocks from {@code height} on, e.g. after their epochs were rolled back, so that the next
+     * block appended is at {@code height}. Their records are cleared, and the segments after the one holding
+     * block {@code height} deleted; the time taken is proportional to the blocks dropped.
+     *
+     * @throws IllegalArgumentException if {@code height} is negative or above the height of the chain
+     */
+    public synchronized void truncate(long height) throws IOException {
+        if (height < 0 || height > this.height) {
+            throw new IllegalArgumentException("Cannot truncate the chain of " + this.height + " blocks to " + height);
+        }
+        if (height == this.height) {
+            return;
+        }
+        for (long h = height; h < this.height; h++) {
+            unindex(blockLocations[(int) h]);
+        }
+        long location = blockLocations[(int) height];
+        int segmentId = segmentOf(location);
+        while (segments.size() > segmentId + 1) {
+            Segment removed = segments.remove(segments.size() - 1);
+            removed.channel.close();
+            File file = new File(directory, segmentName(segments.size()));
+            if (!file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+        }
+        Segment segment = last();
+        for (int i = offsetOf(location); i < segment.end; i++) {
+            segment.map.put(i, (byte) 0);
+        }
+        segment.end = offsetOf(location);
+        segment.map.force();
+
+        this.height = height;
+        tipHash = new byte[MerkleTree.HASH_SIZE];
+        if (height > 0) {
+            ByteBuffer in = reader(blockLocations[(int) height - 1]);
+            in.position(in.position() + RECORD_HEADER_SIZE + Block.HEADER_SIZE);
+            in.get(tipHash);
+        }
+    }
+
+    /** Writes the blocks appended so far to disk */
+    public synchronized void flush() {
+        if (!segments.isEmpty()) {
+            last().map.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        closeSegments();
+    }
+
+    /** Walks the records of segment {@code segmentId}, indexing them, and drops a torn tail if it is the last */
+    private void scan(int segmentId, boolean lastSegment) throws IOException {
+        Segment segment = segments.get(segmentId);
+        ByteBuffer map = segment.map;
+        if (lastSegment && map.capacity() >= SEGMENT_HEADER_SIZE && map.getLong(0) == 0) {
+            // created just before a crash, before its header reached the disk
+            map.putInt(0, MAGIC).putInt(4, VERSION);
+            segment.map.force();
+        }
+        if (map.capacity() < SEGMENT_HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException(segmentName(segmentId) + " in " + directory
+                    + " is not a block segment of a supported version");
+        }
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE + FIXED_PAYLOAD_SIZE <= map.capacity()) {
+            int payloadSize = map.getInt(offset);
+            if (payloadSize < FIXED_PAYLOAD_SIZE || offset + RECORD_HEADER_SIZE + payloadSize > map.capacity()) {
+                break;
+            }
+            ByteBuffer payload = map.duplicate();
+            payload.position(offset + RECORD_HEADER_SIZE).limit(offset + RECORD_HEADER_SIZE + payloadSize);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != map.getInt(offset + 4)) {
+                break;
+            }
+
+            int header = offset + RECORD_HEADER_SIZE;
+            byte[] prevHash = new byte[MerkleTree.HASH_SIZE];
+            byte[] hash = new byte[MerkleTree.HASH_SIZE];
+            ByteBuffer in = map.duplicate();
+            in.position(header + 2 * Long.BYTES);
+            in.get(prevHash).position(header + Block.HEADER_SIZE);
+            in.get(hash);
+            if (map.getLong(header) != height || !Arrays.equals(prevHash, tipHash)) {
+                throw new IOException("Block " + height + " in " + segmentName(segmentId) + " does not chain up");
+            }
+            if (Block.leadingZeroBits(hash) < map.getInt(header + Block.NONCE_OFFSET - Integer.BYTES)) {
+                throw new IOException("Block " + height + " in " + segmentName(segmentId) + " lacks its proof of work");
+            }
+            int count = in.getInt();
+            index(segmentId, offset, hash, map, in.position(), count);
+            tipHash = hash;
+            offset += RECORD_HEADER_SIZE + payloadSize;
+        }
+        segment.end = offset;
+
+        // a crash while appending leaves a partly written record, clear it so it cannot be taken for one later
+        if (lastSegment && offset + RECORD_HEADER_SIZE <= map.capacity() && map.getLong(offset) != 0) {
+            for (int i = offset; i < map.capacity(); i++) {
+                map.put(i, (byte) 0);
+            }
+            segment.map.force();
+        }
+    }
+
+    /** Adds a block record and its transactions to the indexes; {@code offsets} is where its offset table starts */
+    private void index(int segmentId, int start, byte[] hash, ByteBuffer map, int offsets, int count) {
+        long blockLocation = location(segmentId, start);
+        blockIndex.put(fingerprint(hash), blockLocation);
+        if (height == blockLocations.length) {
+            blockLocations = Arrays.copyOf(blockLocations, blockLocations.length * 2);
+        }
+        blockLocations[(int) height++] = blockLocation;
+
+        ByteBuffer in = map.duplicate();
+        for (int i = 0; i < count; i++) {
+            int txOffset = start + map.getInt(offsets + i * Integer.BYTES);
+            int hashLength = map.getInt(txOffset);
+            if (hashLength > 0) {
+                byte[] txHash = new byte[hashLength];
+                in.position(txOffset + Integer.BYTES);
+                in.get(txHash);
+                txIndex.put(fingerprint(txHash), location(segmentId, txOffset));
+            }
+        }
+    }
+
+    /** Removes the block record at {@code location} and its transactions from the indexes */
+    private void unindex(long location) {
+        ByteBuffer map = mapOf(location);
+        int start = offsetOf(location);
+        int header = start + RECORD_HEADER_SIZE;
+        byte[] hash = new byte[MerkleTree.HASH_SIZE];
+        ByteBuffer in = map.duplicate();
+        in.position(header + Block.HEADER_SIZE);
+        in.get(hash);
+        blockIndex.remove(fingerprint(hash), location);
+
+        int count = in.getInt();
+        int offsets = in.position();
+        for (int i = 0; i < count; i++) {
+            int txOffset = start + map.getInt(offsets + i * Integer.BYTES);
+            int hashLength = map.getInt(txOffset);
+            if (hashLength > 0) {
+                byte[] txHash = new byte[hashLength];
+                in.position(txOffset + Integer.BYTES);
+                in.get(txHash);
+                txIndex.remove(fingerprint(txHash), location(segmentOf(location), txOffset));
+            }
+        }
+    }
+
+    /** @return true if {@code hash} is stored at {@code offset} of {@code map} */
+    private static boolean matches(ByteBuffer map, int offset, byte[] hash) {
+        for (int i = 0; i < hash.length; i++) {
+            if (map.get(offset + i) != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Decodes the block record at the position of {@code in} */
+    private static Block readBlock(ByteBuffer in) {
+        in.position(in.position() + RECORD_HEADER_SIZE);
+        long height = in.getLong();
+        long timestamp = in.getLong();
+        byte[] prevHash = new byte[MerkleTree.HASH_SIZE];
+        byte[] merkleRoot = new byte[MerkleTree.HASH_SIZE];
+        in.get(prevHash).get(merkleRoot);
+        int difficulty = in.getInt();
+        long nonce = in.getLong();
+        in.position(in.position() + MerkleTree.HASH_SIZE);
+        Transaction[] txs = new Transaction[in.getInt()];
+        in.position(in.position() + txs.length * Integer.BYTES);
+        for (int i = 0; i < txs.length; i++) {
+            txs[i] = TransactionCodec.decode(in);
+        }
+        return new Block(height, timestamp, prevHash, merkleRoot, difficulty, nonce, txs);
+    }
+
+    private void addSegment(int size) throws IOException {
+        File file = new File(directory, segmentName(segments.size()));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        Segment segment;
+        try {
+            segment = new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        segment.map.putInt(0, MAGIC).putInt(4, VERSION);
+        segment.end = SEGMENT_HEADER_SIZE;
+        segments.add(segment);
+        if (segments.size() > 1) {
+            segments.get(segments.size() - 2).map.force();
+        }
+    }
+
+    private ByteBuffer mapOf(long location) {
+        return segments.get(segmentOf(location)).map;
+    }
+
+    /** @return a buffer of its own positioned at {@code location}, for reading outside the lock */
+    private ByteBuffer reader(long location) {
+        ByteBuffer in = mapOf(location).duplicate();
+        in.position(offsetOf(location));
+        return in;
+    }
+
+    private Segment last() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private void closeSegments() throws IOException {
+        IOException failure = null;
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static String segmentName(int segmentId) {
+        return String.format("%s%05d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX);
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    /** @return a non-zero 64-bit fingerprint of {@code hash}; hashes are uniform, so their first bytes will do */
+    private static long fingerprint(byte[] hash) {
+        long fingerprint = 0;
+        for (int i = 0; i < Math.min(hash.length, Long.BYTES); i++) {
+            fingerprint = (fingerprint << 8) | (hash[i] & 0xFF);
+        }
+        fingerprint ^= hash.length;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+}
@@ -0,0 +1,157 @@
+package com.leonovus.lbc.engine.basic;
+
+import com.leonovus.lbc.engine.api.Engine;
+import com.leonovus.lbc.engine.api.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Feeds a transaction file (see {@link TransactionFileWriter}) to an {@link Engine}.
+ *
+ * Transactions are decoded one by one from the memory-mapped file (see {@link TransactionFileReader}) and
+ * submitted in {@link BasicResource}s of {@code batchSize} transactions, in file order, without waiting
+ * for the engine: decoding overlaps with validation, and the engine's ingestion queue holds the loader back
+ * when it gets ahead. Only the batches in flight are kept in memory, whatever the size of the file.
+ */
+public class BulkLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkLoader.class);
+
+    /** Outcome of a load */
+    public static final class Result {
+        private final long transactions;
+        private final long accepted;
+        private final long bytes;
+        private final long nanos;
+
+        Result(long transactions, long accepted, long bytes, long nanos) {
+            this.transactions = transactions;
+            this.accepted = accepted;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /** @return the number of transactions read from the file */
+        public long getTransactions() {
+            return transactions;
+        }
+
+        /** @return the number of transactions accepted by the engine */
+        public long getAccepted() {
+            return accepted;
+        }
+
+        /** @return the size of the file */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** @return the time from opening the file to the engine's answer to the last batch */
+        public long getElapsedNanos() {
+            return nanos;
+        }
+
+        /** @return the number of transactions read per second, accepted or not */
+        public double getTransactionsPerSecond() {
+            return nanos == 0 ? 0 : transactions * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d transactions (%d accepted, %d MB) in %d ms: %.0f tx/s", transactions, accepted,
+                    bytes >> 20, TimeUnit.NANOSECONDS.toMillis(nanos), getTransactionsPerSecond());
+        }
+    }
+
+    private final Engine engine;
+    private final int batchSize;
+    private final int maxInFlight;
+
+    /**
+     * Creates a loader which submits resources of {@code batchSize} transactions to {@code engine}, with up to
+     * {@code maxInFlight} of them not processed yet
+     */
+    public BulkLoader(Engine engine, int batchSize, int maxInFlight) {
+        if (batchSize < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Batch size and batches in flight must be positive: " + batchSize
+                    + ", " + maxInFlight);
+        }
+        this.engine = engine;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Submits every transaction of {@code file} to the engine and waits for the engine to process them
+     *
+     * @throws IOException if the file can not be read or holds a malformed record; the batches submitted up
+     *         to that point are processed anyway
+     */
+    public Result load(File file) throws IOException {
+        long start = System.nanoTime();
+        long transactions = 0;
+        long accepted = 0;
+        ArrayDeque<CompletableFuture<Resource>> inFlight = new ArrayDeque<>();
+        try (TransactionFileReader reader = new TransactionFileReader(file)) {
+            try {
+                Transaction[] batch = new Transaction[batchSize];
+                int n = 0;
+                Transaction tx;
+                while ((tx = reader.next()) != null) {
+                    batch[n++] = tx;
+                    transactions++;
+                    if (n == batchSize) {
+                        accepted += submit(batch, inFlight);
+                        batch = new Transaction[batchSize];
+                        n = 0;
+                    }
+                }
+                if (n > 0) {
+                    accepted += submit(Arrays.copyOf(batch, n), inFlight);
+                }
+            } finally {
+                while (!inFlight.isEmpty()) {
+                    accepted += acceptedCount(inFlight.poll());
+                }
+            }
+            Result result = new Result(transactions, accepted, reader.getSize(), System.nanoTime() - start);
+            LOG.info("Loaded {}: {}", file, result);
+            return result;
+        }
+    }
+
+    /**
+     * Submits {@code batch}, first waiting for the oldest batch in flight if there are too many
+     *
+     * @return the number of transactions accepted in the batches waited for
+     */
+    private long submit(Transaction[] batch, ArrayDeque<CompletableFuture<Resource>> inFlight) {
+        long accepted = 0;
+        if (inFlight.size() >= maxInFlight) {
+            accepted = acceptedCount(inFlight.poll());
+        }
+        BasicResource resource = new BasicResource();
+        resource.setProposedTransactions(batch);
+        inFlight.add(engine.onResourceCreatedAsync(resource));
+        return accepted;
+    }
+
+    private static long acceptedCount(CompletableFuture<Resource> future) {
+        try {
+            return ((BasicResource) future.join()).getProposedTransactions().length;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,766 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Ed25519 signatures (RFC 8032) in plain Java, as there is no EdDSA provider before Java 15.
+ *
+ * Field elements of GF(2^255 - 19) are ten signed limbs of alternately 26 and 25 bits in a {@code long[]},
+ * so that limb products and their sums fit in a {@code long}; the multiplication and squaring are fully
+ * unrolled. Points are kept in extended twisted Edwards coordinates. Scalar multiplication interleaves
+ * the sliding windows of all scalars over one chain of doublings (Straus), with precomputed odd multiples
+ * of the base point, which is what makes batches cheaper than separate verifications: the doublings are
+ * shared by the whole batch.
+ *
+ * Verification checks the cofactored equation {@code [8][S]B = [8]R + [8][k]A}, which RFC 8032 allows, so
+ * that a batch accepts exactly the signatures that verify one by one. Scalars mod L use
+ * {@link BigInteger}, a few operations per signature against thousands of field operations.
+ */
+final class Ed25519 {
+
+    static final int KEY_SIZE = 32;
+    static final int SIGNATURE_SIZE = 64;
+
+    /** order of the base point */
+    static final BigInteger L = BigInteger.ONE.shiftLeft(252)
+            .add(new BigInteger("27742317777372353535851937790883648493"));
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+
+    /** width of the sliding windows over variable points (8 odd multiples) and over the base point (64) */
+    private static final int WINDOW = 5;
+    private static final int BASE_WINDOW = 8;
+
+    /** bit offsets of the field element limbs */
+    private static final int[] LIMB_OFFSET = {0, 26, 51, 77, 102, 128, 153, 179, 204, 230};
+
+    private static final long[] ONE = fe();
+    private static final long[] D;
+    private static final long[] D2;
+    private static final long[] SQRT_M1;
+    private static final Cached[] BASE_MULTIPLES;
+
+    private static final ThreadLocal<MessageDigest> SHA512 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    static {
+        ONE[0] = 1;
+        BigInteger d = BigInteger.valueOf(-121665).multiply(BigInteger.valueOf(121666).modInverse(P)).mod(P);
+        D = fromBigInteger(d);
+        D2 = fromBigInteger(d.shiftLeft(1).mod(P));
+        SQRT_M1 = fromBigInteger(BigInteger.valueOf(2).modPow(P.subtract(BigInteger.ONE).shiftRight(2), P));
+        // the base point has y = 4/5 and a positive x
+        byte[] base = new byte[KEY_SIZE];
+        Arrays.fill(base, (byte) 0x66);
+        base[0] = 0x58;
+        BASE_MULTIPLES = oddMultiples(new Work(), decode(base, 0), 1 << (BASE_WINDOW - 2));
+    }
+
+    private Ed25519() {
+    }
+
+    /** @return the public key of the private key {@code seed} */
+    static byte[] publicKey(byte[] seed) {
+        byte[] h = sha512(seed);
+        Work w = new Work();
+        Point a = new Point();
+        scalarMult(w, a, new byte[0][], new Cached[0][], slide(clampedScalar(h), BASE_WINDOW));
+        byte[] encoded = new byte[KEY_SIZE];
+        encode(encoded, 0, a);
+        return encoded;
+    }
+
+    /** @return the signature of {@code message} under the private key {@code seed}, whose public key is {@code publicKey} */
+    static byte[] sign(byte[] seed, byte[] publicKey, byte[] message) {
+        byte[] h = sha512(seed);
+        BigInteger a = new BigInteger(1, reverse(clampedScalar(h)));
+        BigInteger r = hashToScalar(Arrays.copyOfRange(h, 32, 64), message);
+
+        Work w = new Work();
+        Point rPoint = new Point();
+        scalarMult(w, rPoint, new byte[0][], new Cached[0][], slide(scalarBytes(r), BASE_WINDOW));
+        byte[] signature = new byte[SIGNATURE_SIZE];
+        encode(signature, 0, rPoint);
+
+        BigInteger k = hashToScalar(Arrays.copyOf(signature, KEY_SIZE), publicKey, message);
+        System.arraycopy(scalarBytes(r.add(k.multiply(a)).mod(L)), 0, signature, KEY_SIZE, KEY_SIZE);
+        return signature;
+    }
+
+    /**
+     * @param point {@code publicKey} already decoded, or null
+     * @return true if {@code signature} is a valid signature of {@code message} under {@code publicKey}
+     */
+    static boolean verify(byte[] publicKey, Point point, byte[] message, byte[] signature) {
+        if (publicKey.length != KEY_SIZE || signature.length != SIGNATURE_SIZE || !isCanonicalScalar(signature)) {
+            return false;
+        }
+        Point a = point != null ? point : decode(publicKey, 0);
+        Point r = decode(signature, 0);
+        if (a == null || r == null) {
+            return false;
+        }
+        BigInteger k = hashToScalar(Arrays.copyOf(signature, KEY_SIZE), publicKey, message);
+
+        // [S]B - [k]A - R, times the cofactor
+        Work w = new Work();
+        Point sum = new Point();
+        scalarMult(w, sum, new byte[][] {slide(scalarBytes(k), WINDOW)},
+                new Cached[][] {oddMultiples(w, negate(a), 1 << (WINDOW - 2))},
+                slide(Arrays.copyOfRange(signature, KEY_SIZE, SIGNATURE_SIZE), BASE_WINDOW));
+        w.sub(sum, sum, cached(r));
+        return isSmallOrder(w, sum);
+    }
+
+    /**
+     * Checks all signatures at once with a random linear combination of their equations:
+     * {@code [8]([sum z_i S_i]B - sum [z_i]R_i - sum [z_i k_i]A_i) = 0} with random 128-bit {@code z_i}.
+     * If the combination fails, every signature is verified on its own to tell which ones are invalid.
+     *
+     * @param points the public keys already decoded, null where not
+     * @return for every signature, whether it is valid
+     */
+    static boolean[] verifyBatch(byte[][] publicKeys, Point[] points, byte[][] messages, byte[][] signatures) {
+        int n = publicKeys.length;
+        boolean[] valid = new boolean[n];
+        Work w = new Work();
+        byte[][] slides = new byte[2 * n][];
+        Cached[][] tables = new Cached[2 * n][];
+        BigInteger baseScalar = BigInteger.ZERO;
+        byte[] z = new byte[16];
+        SecureRandom random = RANDOM.get();
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            byte[] signature = signatures[i];
+            if (publicKeys[i].length != KEY_SIZE || signature.length != SIGNATURE_SIZE
+                    || !isCanonicalScalar(signature)) {
+                continue;
+            }
+            Point a = points[i] != null ? points[i] : decode(publicKeys[i], 0);
+            Point r = decode(signature, 0);
+            if (a == null || r == null) {
+                continue;
+            }
+            valid[i] = true;
+            BigInteger k = hashToScalar(Arrays.copyOf(signature, KEY_SIZE), publicKeys[i], messages[i]);
+            random.nextBytes(z);
+            BigInteger zi = new BigInteger(1, z);
+            baseScalar = baseScalar.add(zi.multiply(new BigInteger(1, reverse(
+                    Arrays.copyOfRange(signature, KEY_SIZE, SIGNATURE_SIZE)))));
+            slides[count] = slide(scalarBytes(zi), WINDOW);
+            tables[count++] = oddMultiples(w, negate(r), 1 << (WINDOW - 2));
+            slides[count] = slide(scalarBytes(zi.multiply(k).mod(L)), WINDOW);
+            tables[count++] = oddMultiples(w, negate(a), 1 << (WINDOW - 2));
+        }
+        if (count == 0) {
+            return valid;
+        }
+        Point sum = new Point();
+        scalarMult(w, sum, Arrays.copyOf(slides, count), Arrays.copyOf(tables, count),
+                slide(scalarBytes(baseScalar.mod(L)), BASE_WINDOW));
+        if (!isSmallOrder(w, sum)) {
+            for (int i = 0; i < n; i++) {
+                if (valid[i]) {
+                    valid[i] = verify(publicKeys[i], points[i], messages[i], signatures[i]);
+                }
+            }
+        }
+        return valid;
+    }
+
+    /** @return the point encoded in the 32 bytes of {@code s} at {@code offset}, or null if they encode none */
+    static Point decode(byte[] s, int offset) {
+        if (!isCanonicalField(s, offset)) {
+            return null;
+        }
+        Point p = new Point();
+        fromBytes(p.y, s, offset);
+        p.z[0] = 1;
+        long[] u = fe();
+        long[] v = fe();
+        long[] v3 = fe();
+        long[] check = fe();
+        sq(u, p.y);
+        mul(v, u, D);
+        sub(u, u, ONE);
+        add(v, v, ONE);
+        // x = u v^3 (u v^7)^((p - 5) / 8) is a square root of u / v if there is one
+        sq(v3, v);
+        mul(v3, v3, v);
+        sq(p.x, v3);
+        mul(p.x, p.x, v);
+        mul(p.x, p.x, u);
+        pow22523(p.x, p.x);
+        mul(p.x, p.x, v3);
+        mul(p.x, p.x, u);
+
+        sq(check, p.x);
+        mul(check, check, v);
+        sub(v3, check, u);
+        if (!isZero(v3)) {
+            add(v3, check, u);
+            if (!isZero(v3)) {
+                return null;
+            }
+            mul(p.x, p.x, SQRT_M1);
+        }
+        int sign = (s[offset + 31] >> 7) & 1;
+        if (isZero(p.x) && sign == 1) {
+            return null;
+        }
+        if (isNegative(p.x) != sign) {
+            neg(p.x, p.x);
+            carry(p.x);
+        }
+        mul(p.t, p.x, p.y);
+        return p;
+    }
+
+    static void encode(byte[] s, int offset, Point p) {
+        long[] zInverse = fe();
+        long[] x = fe();
+        long[] y = fe();
+        invert(zInverse, p.z);
+        mul(x, p.x, zInverse);
+        mul(y, p.y, zInverse);
+        toBytes(s, offset, y);
+        s[offset + 31] |= isNegative(x) << 7;
+    }
+
+    /** A point in extended coordinates: x = X/Z, y = Y/Z, x * y = T/Z */
+    static final class Point {
+        final long[] x = fe();
+        final long[] y = fe();
+        final long[] z = fe();
+        final long[] t = fe();
+    }
+
+    /** A point prepared for additions: (Y + X, Y - X, 2dT, 2Z) */
+    private static final class Cached {
+        final long[] yPlusX = fe();
+        final long[] yMinusX = fe();
+        final long[] t2d = fe();
+        final long[] z2 = fe();
+    }
+
+    /** Scratch field elements of the point formulas (a = -1 twisted Edwards, Hisil et al. 2008) */
+    private static final class Work {
+        final long[] a = fe();
+        final long[] b = fe();
+        final long[] c = fe();
+        final long[] d = fe();
+        final long[] e = fe();
+        final long[] f = fe();
+        final long[] g = fe();
+        final long[] h = fe();
+
+        /** r = p + q; r may be p */
+        void add(Point r, Point p, Cached q) {
+            Ed25519.sub(a, p.y, p.x);
+            mul(a, a, q.yMinusX);
+            Ed25519.add(b, p.y, p.x);
+            mul(b, b, q.yPlusX);
+            mul(c, p.t, q.t2d);
+            mul(d, p.z, q.z2);
+            finish(r, true);
+        }
+
+        /** r = p - q; r may be p */
+        void sub(Point r, Point p, Cached q) {
+            Ed25519.sub(a, p.y, p.x);
+            mul(a, a, q.yPlusX);
+            Ed25519.add(b, p.y, p.x);
+            mul(b, b, q.yMinusX);
+            mul(c, p.t, q.t2d);
+            neg(c, c);
+            mul(d, p.z, q.z2);
+            finish(r, true);
+        }
+
+        /** r = 2p; r may be p. T is only needed by additions, so a doubling followed by a doubling skips it */
+        void dbl(Point r, Point p, boolean withT) {
+            sq(a, p.x);
+            sq(b, p.y);
+            sq(c, p.z);
+            Ed25519.add(c, c, c);
+            Ed25519.add(e, p.x, p.y);
+            sq(e, e);
+            Ed25519.sub(e, e, a);
+            Ed25519.sub(e, e, b);
+            carry(e);
+            Ed25519.sub(g, b, a);
+            Ed25519.sub(f, g, c);
+            carry(f);
+            Ed25519.add(h, a, b);
+            neg(h, h);
+            mul(r.x, e, f);
+            mul(r.y, g, h);
+            if (withT) {
+                mul(r.t, e, h);
+            }
+            mul(r.z, f, g);
+        }
+
+        private void finish(Point r, boolean withT) {
+            Ed25519.sub(e, b, a);
+            Ed25519.sub(f, d, c);
+            Ed25519.add(g, d, c);
+            Ed25519.add(h, b, a);
+            mul(r.x, e, f);
+            mul(r.y, g, h);
+            if (withT) {
+                mul(r.t, e, h);
+            }
+            mul(r.z, f, g);
+        }
+    }
+
+    /**
+     * r = sum of [scalar_i]P_i + [base]B, the scalars given as sliding windows ({@link #slide}) and the
+     * points as their odd multiples ({@link #oddMultiples}), all sharing one chain of doublings
+     */
+    private static void scalarMult(Work w, Point r, byte[][] slides, Cached[][] tables, byte[] baseSlide) {
+        Arrays.fill(r.x, 0);
+        Arrays.fill(r.y, 0);
+        Arrays.fill(r.z, 0);
+        Arrays.fill(r.t, 0);
+        r.y[0] = 1;
+        r.z[0] = 1;
+        int top = 255;
+        while (top >= 0 && baseSlide[top] == 0 && allZero(slides, top)) {
+            top--;
+        }
+        for (int i = top; i >= 0; i--) {
+            if (i < top) {
+                // the result must be complete, elsewhere T is only needed by an addition right after
+                w.dbl(r, r, i == 0 || baseSlide[i] != 0 || !allZero(slides, i));
+            }
+            for (int j = 0; j < slides.length; j++) {
+                addDigit(w, r, tables[j], slides[j][i]);
+            }
+            addDigit(w, r, BASE_MULTIPLES, baseSlide[i]);
+        }
+    }
+
+    private static void addDigit(Work w, Point r, Cached[] multiples, int digit) {
+        if (digit > 0) {
+            w.add(r, r, multiples[digit >> 1]);
+        } else if (digit < 0) {
+            w.sub(r, r, multiples[-digit >> 1]);
+        }
+    }
+
+    private static boolean allZero(byte[][] slides, int i) {
+        for (byte[] slide : slides) {
+            if (slide[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return true if [8]p is the neutral element; p is overwritten */
+    private static boolean isSmallOrder(Work w, Point p) {
+        w.dbl(p, p, false);
+        w.dbl(p, p, false);
+        w.dbl(p, p, false);
+        long[] diff = w.a;
+        sub(diff, p.y, p.z);
+        return isZero(p.x) && isZero(diff);
+    }
+
+    /** @return p, 3p, 5p, ... ({@code count} odd multiples) prepared for additions */
+    private static Cached[] oddMultiples(Work w, Point p, int count) {
+        Cached[] multiples = new Cached[count];
+        multiples[0] = cached(p);
+        if (count > 1) {
+            Point doubled = new Point();
+            w.dbl(doubled, p, true);
+            Cached twice = cached(doubled);
+            Point multiple = new Point();
+            copy(multiple.x, p.x);
+            copy(multiple.y, p.y);
+            copy(multiple.z, p.z);
+            copy(multiple.t, p.t);
+            for (int i = 1; i < count; i++) {
+                w.add(multiple, multiple, twice);
+                multiples[i] = cached(multiple);
+            }
+        }
+        return multiples;
+    }
+
+    private static Cached cached(Point p) {
+        Cached c = new Cached();
+        add(c.yPlusX, p.y, p.x);
+        sub(c.yMinusX, p.y, p.x);
+        mul(c.t2d, p.t, D2);
+        add(c.z2, p.z, p.z);
+        return c;
+    }
+
+    private static Point negate(Point p) {
+        Point n = new Point();
+        neg(n.x, p.x);
+        carry(n.x);
+        copy(n.y, p.y);
+        copy(n.z, p.z);
+        neg(n.t, p.t);
+        carry(n.t);
+        return n;
+    }
+
+    /**
+     * @return the 256 signed digits of the 32 byte little endian scalar {@code a}, every non-zero digit odd and
+     *         below 2^(width-1) in absolute value, and followed by at least {@code width - 1} zero digits
+     */
+    private static byte[] slide(byte[] a, int width) {
+        byte[] r = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            r[i] = (byte) ((a[i >> 3] >> (i & 7)) & 1);
+        }
+        int max = (1 << (width - 1)) - 1;
+        for (int i = 0; i < 256; i++) {
+            if (r[i] == 0) {
+                continue;
+            }
+            for (int b = 1; b <= width && i + b < 256; b++) {
+                if (r[i + b] == 0) {
+                    continue;
+                }
+                int shifted = r[i + b] << b;
+                if (r[i] + shifted <= max) {
+                    r[i] += shifted;
+                    r[i + b] = 0;
+                } else if (r[i] - shifted >= -max) {
+                    r[i] -= shifted;
+                    for (int k = i + b; k < 256; k++) {
+                        if (r[k] == 0) {
+                            r[k] = 1;
+                            break;
+                        }
+                        r[k] = 0;
+                    }
+                } else {
+                    break;
+                }
+            }
+        }
+        return r;
+    }
+
+    // scalars
+
+    /** @return the scalar of the private key hash {@code h}, reduced mod L (which does not change [a]B) */
+    private static byte[] clampedScalar(byte[] h) {
+        byte[] a = Arrays.copyOf(h, 32);
+        a[0] &= (byte) 248;
+        a[31] &= 127;
+        a[31] |= 64;
+        return scalarBytes(new BigInteger(1, reverse(a)).mod(L));
+    }
+
+    private static BigInteger hashToScalar(byte[]... parts) {
+        MessageDigest md = SHA512.get();
+        for (byte[] part : parts) {
+            md.update(part);
+        }
+        return new BigInteger(1, reverse(md.digest())).mod(L);
+    }
+
+    /** @return true if the S half of {@code signature} is below L, as RFC 8032 requires */
+    private static boolean isCanonicalScalar(byte[] signature) {
+        return new BigInteger(1, reverse(Arrays.copyOfRange(signature, KEY_SIZE, SIGNATURE_SIZE))).compareTo(L) < 0;
+    }
+
+    /** @return {@code k}, which must be below 2^256, as 32 little endian bytes */
+    private static byte[] scalarBytes(BigInteger k) {
+        byte[] big = k.toByteArray();
+        byte[] le = new byte[32];
+        for (int i = 0; i < le.length && i < big.length; i++) {
+            le[i] = big[big.length - 1 - i];
+        }
+        return le;
+    }
+
+    private static byte[] sha512(byte[] data) {
+        return SHA512.get().digest(data);
+    }
+
+    private static byte[] reverse(byte[] bytes) {
+        byte[] reversed = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            reversed[i] = bytes[bytes.length - 1 - i];
+        }
+        return reversed;
+    }
+
+    // field arithmetic; the result may be any of the arguments
+
+    private static long[] fe() {
+        return new long[10];
+    }
+
+    private static long[] fromBigInteger(BigInteger value) {
+        long[] h = fe();
+        fromBytes(h, scalarBytes(value), 0);
+        return h;
+    }
+
+    private static void copy(long[] h, long[] f) {
+        System.arraycopy(f, 0, h, 0, 10);
+    }
+
+    private static void add(long[] h, long[] f, long[] g) {
+        for (int i = 0; i < 10; i++) {
+            h[i] = f[i] + g[i];
+        }
+    }
+
+    private static void sub(long[] h, long[] f, long[] g) {
+        for (int i = 0; i < 10; i++) {
+            h[i] = f[i] - g[i];
+        }
+    }
+
+    private static void neg(long[] h, long[] f) {
+        for (int i = 0; i < 10; i++) {
+            h[i] = -f[i];
+        }
+    }
+
+    /**
+     * h = f * g. The limbs of the arguments must stay below 2^27 in absolute value (the sum or difference of
+     * two results of mul, sq or carry), so that no sum of products overflows; results are below 2^26.
+     */
+    static void mul(long[] h, long[] f, long[] g) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4], f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4], g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+        long g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4, g5_19 = 19 * g5, g6_19 = 19 * g6, g7_19 = 19 * g7, g8_19 = 19 * g8, g9_19 = 19 * g9;
+        long f1_2 = 2 * f1, f3_2 = 2 * f3, f5_2 = 2 * f5, f7_2 = 2 * f7, f9_2 = 2 * f9;
+        long h0 = f0 * g0 + f1_2 * g9_19 + f2 * g8_19 + f3_2 * g7_19 + f4 * g6_19 + f5_2 * g5_19 + f6 * g4_19 + f7_2 * g3_19 + f8 * g2_19 + f9_2 * g1_19;
+        long h1 = f0 * g1 + f1 * g0 + f2 * g9_19 + f3 * g8_19 + f4 * g7_19 + f5 * g6_19 + f6 * g5_19 + f7 * g4_19 + f8 * g3_19 + f9 * g2_19;
+        long h2 = f0 * g2 + f1_2 * g1 + f2 * g0 + f3_2 * g9_19 + f4 * g8_19 + f5_2 * g7_19 + f6 * g6_19 + f7_2 * g5_19 + f8 * g4_19 + f9_2 * g3_19;
+        long h3 = f0 * g3 + f1 * g2 + f2 * g1 + f3 * g0 + f4 * g9_19 + f5 * g8_19 + f6 * g7_19 + f7 * g6_19 + f8 * g5_19 + f9 * g4_19;
+        long h4 = f0 * g4 + f1_2 * g3 + f2 * g2 + f3_2 * g1 + f4 * g0 + f5_2 * g9_19 + f6 * g8_19 + f7_2 * g7_19 + f8 * g6_19 + f9_2 * g5_19;
+        long h5 = f0 * g5 + f1 * g4 + f2 * g3 + f3 * g2 + f4 * g1 + f5 * g0 + f6 * g9_19 + f7 * g8_19 + f8 * g7_19 + f9 * g6_19;
+        long h6 = f0 * g6 + f1_2 * g5 + f2 * g4 + f3_2 * g3 + f4 * g2 + f5_2 * g1 + f6 * g0 + f7_2 * g9_19 + f8 * g8_19 + f9_2 * g7_19;
+        long h7 = f0 * g7 + f1 * g6 + f2 * g5 + f3 * g4 + f4 * g3 + f5 * g2 + f6 * g1 + f7 * g0 + f8 * g9_19 + f9 * g8_19;
+        long h8 = f0 * g8 + f1_2 * g7 + f2 * g6 + f3_2 * g5 + f4 * g4 + f5_2 * g3 + f6 * g2 + f7_2 * g1 + f8 * g0 + f9_2 * g9_19;
+        long h9 = f0 * g9 + f1 * g8 + f2 * g7 + f3 * g6 + f4 * g5 + f5 * g4 + f6 * g3 + f7 * g2 + f8 * g1 + f9 * g0;
+        store(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    /** h = f * f, with the bounds of {@link #mul} */
+    static void sq(long[] h, long[] f) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4], f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long f1_2 = 2 * f1, f2_2 = 2 * f2, f3_2 = 2 * f3, f3_4 = 4 * f3, f4_2 = 2 * f4, f5_2 = 2 * f5, f5_4 = 4 * f5, f5_38 = 38 * f5, f6_2 = 2 * f6, f6_19 = 19 * f6, f6_38 = 38 * f6, f7_2 = 2 * f7, f7_4 = 4 * f7, f7_38 = 38 * f7, f7_76 = 76 * f7, f8_2 = 2 * f8, f8_19 = 19 * f8, f8_38 = 38 * f8, f9_2 = 2 * f9, f9_38 = 38 * f9, f9_76 = 76 * f9;
+        long h0 = f0 * f0 + f1 * f9_76 + f2 * f8_38 + f3 * f7_76 + f4 * f6_38 + f5 * f5_38;
+        long h1 = f0 * f1_2 + f2 * f9_38 + f3 * f8_38 + f4 * f7_38 + f5 * f6_38;
+        long h2 = f0 * f2_2 + f1 * f1_2 + f3 * f9_76 + f4 * f8_38 + f5 * f7_76 + f6 * f6_19;
+        long h3 = f0 * f3_2 + f1 * f2_2 + f4 * f9_38 + f5 * f8_38 + f6 * f7_38;
+        long h4 = f0 * f4_2 + f1 * f3_4 + f2 * f2 + f5 * f9_76 + f6 * f8_38 + f7 * f7_38;
+        long h5 = f0 * f5_2 + f1 * f4_2 + f2 * f3_2 + f6 * f9_38 + f7 * f8_38;
+        long h6 = f0 * f6_2 + f1 * f5_4 + f2 * f4_2 + f3 * f3_2 + f7 * f9_76 + f8 * f8_19;
+        long h7 = f0 * f7_2 + f1 * f6_2 + f2 * f5_2 + f3 * f4_2 + f8 * f9_38;
+        long h8 = f0 * f8_2 + f1 * f7_4 + f2 * f6_2 + f3 * f5_4 + f4 * f4 + f9 * f9_38;
+        long h9 = f0 * f9_2 + f1 * f8_2 + f2 * f7_2 + f3 * f6_2 + f4 * f5_2;
+        store(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    private static void sqN(long[] h, long[] f, int n) {
+        sq(h, f);
+        for (int i = 1; i < n; i++) {
+            sq(h, h);
+        }
+    }
+
+    /** Brings the limbs of h back within the bounds of a multiplication result */
+    private static void carry(long[] h) {
+        store(h, h[0], h[1], h[2], h[3], h[4], h[5], h[6], h[7], h[8], h[9]);
+    }
+
+    /** Carries the limbs into h: the low ones into the next, the top one times 19 into the lowest */
+    private static void store(long[] h, long h0, long h1, long h2, long h3, long h4, long h5, long h6, long h7,
+                              long h8, long h9) {
+        long c;
+        c = h0 >> 26; h1 += c; h0 -= c << 26;
+        c = h1 >> 25; h2 += c; h1 -= c << 25;
+        c = h2 >> 26; h3 += c; h2 -= c << 26;
+        c = h3 >> 25; h4 += c; h3 -= c << 25;
+        c = h4 >> 26; h5 += c; h4 -= c << 26;
+        c = h5 >> 25; h6 += c; h5 -= c << 25;
+        c = h6 >> 26; h7 += c; h6 -= c << 26;
+        c = h7 >> 25; h8 += c; h7 -= c << 25;
+        c = h8 >> 26; h9 += c; h8 -= c << 26;
+        c = h9 >> 25; h0 += c * 19; h9 -= c << 25;
+        c = h0 >> 26; h1 += c; h0 -= c << 26;
+        h[0] = h0;
+        h[1] = h1;
+        h[2] = h2;
+        h[3] = h3;
+        h[4] = h4;
+        h[5] = h5;
+        h[6] = h6;
+        h[7] = h7;
+        h[8] = h8;
+        h[9] = h9;
+    }
+
+    /** @return the limbs of f fully reduced mod p: every limb within its width, and the value below p */
+    private static long[] reduce(long[] f) {
+        long[] h = f.clone();
+        long c;
+        do {
+            for (int i = 0; i < 9; i++) {
+                int width = (i & 1) == 0 ? 26 : 25;
+                c = h[i] >> width;
+                h[i + 1] += c;
+                h[i] -= c << width;
+            }
+            c = h[9] >> 25;
+            h[9] -= c << 25;
+            h[0] += c * 19;
+        } while (c != 0);
+        // h is now below 2^255, and at least p exactly when h + 19 reaches 2^255
+        long q = (h[0] + 19) >> 26;
+        for (int i = 1; i < 10; i++) {
+            q = (h[i] + q) >> ((i & 1) == 0 ? 26 : 25);
+        }
+        h[0] += 19 * q;
+        for (int i = 0; i < 9; i++) {
+            int width = (i & 1) == 0 ? 26 : 25;
+            c = h[i] >> width;
+            h[i + 1] += c;
+            h[i] -= c << width;
+        }
+        h[9] &= (1 << 25) - 1;
+        return h;
+    }
+
+    private static boolean isZero(long[] f) {
+        long[] h = reduce(f);
+        long bits = 0;
+        for (long limb : h) {
+            bits |= limb;
+        }
+        return bits == 0;
+    }
+
+    private static int isNegative(long[] f) {
+        return (int) (reduce(f)[0] & 1);
+    }
+
+    /** Reads the 255 low bits of the 32 little endian bytes of {@code s} at {@code offset} */
+    private static void fromBytes(long[] h, byte[] s, int offset) {
+        for (int i = 0; i < 10; i++) {
+            int bit = LIMB_OFFSET[i];
+            int width = (i & 1) == 0 ? 26 : 25;
+            long v = 0;
+            for (int k = 0, at = offset + (bit >> 3); k < 5 && at < offset + 32; k++, at++) {
+                v |= (s[at] & 0xFFL) << (8 * k);
+            }
+            h[i] = (v >>> (bit & 7)) & ((1L << width) - 1);
+        }
+    }
+
+    /** Writes f, fully reduced, as 32 little endian bytes at {@code offset} of {@code s} */
+    private static void toBytes(byte[] s, int offset, long[] f) {
+        long[] h = reduce(f);
+        long acc = 0;
+        int bits = 0;
+        int at = offset;
+        for (int i = 0; i < 10; i++) {
+            acc |= h[i] << bits;
+            bits += (i & 1) == 0 ? 26 : 25;
+            while (bits >= 8) {
+                s[at++] = (byte) acc;
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        s[at] = (byte) acc;
+    }
+
+    /** @return true if the 32 bytes of {@code s} at {@code offset}, top bit aside, are below p */
+    private static boolean isCanonicalField(byte[] s, int offset) {
+        if ((s[offset + 31] & 0x7F) != 0x7F) {
+            return true;
+        }
+        for (int i = 30; i > 0; i--) {
+            if ((s[offset + i] & 0xFF) != 0xFF) {
+                return true;
+            }
+        }
+        return (s[offset] & 0xFF) < 0xED;
+    }
+
+    /** h = z^(p - 2) = 1 / z */
+    private static void invert(long[] h, long[] z) {
+        long[] t0 = fe();
+        long[] t1 = fe();
+        long[] t2 = fe();
+        long[] t3 = fe();
+        sq(t0, z);
+        sqN(t1, t0, 2);
+        mul(t1, z, t1);
+        mul(t0, t0, t1);
+        sq(t2, t0);
+        mul(t1, t1, t2);
+        sqN(t2, t1, 5);
+        mul(t1, t2, t1);
+        sqN(t2, t1, 10);
+        mul(t2, t2, t1);
+        sqN(t3, t2, 20);
+        mul(t2, t3, t2);
+        sqN(t2, t2, 10);
+        mul(t1, t2, t1);
+        sqN(t2, t1, 50);
+        mul(t2, t2, t1);
+        sqN(t3, t2, 100);
+        mul(t2, t3, t2);
+        sqN(t2, t2, 50);
+        mul(t1, t2, t1);
+        sqN(t1, t1, 5);
+        mul(h, t1, t0);
+    }
+
+    /** h = z^((p - 5) / 8) = z^(2^252 - 3) */
+    private static void pow22523(long[] h, long[] z) {
+        long[] t0 = fe();
+        long[] t1 = fe();
+        long[] t2 = fe();
+        sq(t0, z);
+        sqN(t1, t0, 2);
+        mul(t1, z, t1);
+        mul(t0, t0, t1);
+        sq(t0, t0);
+        mul(t0, t1, t0);
+        sqN(t1, t0, 5);
+        mul(t0, t1, t0);
+        sqN(t1, t0, 10);
+        mul(t1, t1, t0);
+        sqN(t2, t1, 20);
+        mul(t1, t2, t1);
+        sqN(t1, t1, 10);
+        mul(t0, t1, t0);
+        sqN(t1, t0, 50);
+        mul(t1, t1, t0);
+        sqN(t2, t1, 100);
+        mul(t1, t2, t1);
+        sqN(t1, t1, 50);
+        mul(t0, t1, t0);
+        sqN(t0, t0, 2);
+        mul(h, t0, z);
+    }
+}
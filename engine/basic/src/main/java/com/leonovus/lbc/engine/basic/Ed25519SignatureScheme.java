@@ -0,0 +1,239 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Ed25519 signatures, implemented in {@link Ed25519}. Keys are 32 bytes (44 once X.509 encoded) and
+ * signatures 64 bytes, against 294 and 256 for RSA-2048, which makes transactions, blocks and the log much
+ * smaller. {@link #verifyBatch} checks a whole batch with one shared chain of point doublings.
+ *
+ * Keys are encoded like the EdDSA keys of Java 15 and later, which are accepted too.
+ */
+public class Ed25519SignatureScheme implements SignatureScheme {
+
+    /** X.509 SubjectPublicKeyInfo header of an Ed25519 key (OID 1.3.101.112), followed by the key */
+    private static final byte[] X509_PREFIX = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00};
+    /** PKCS #8 PrivateKeyInfo header of an Ed25519 key, followed by the seed */
+    private static final byte[] PKCS8_PREFIX = {
+            0x30, 0x2e, 0x02, 0x01, 0x00, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x04, 0x22, 0x04, 0x20};
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    /** An Ed25519 public key, which keeps its decoded curve point for the next verifications */
+    public static final class Ed25519PublicKey implements PublicKey {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] key;
+        private final byte[] encoded;
+        private transient volatile Ed25519.Point point;
+
+        private Ed25519PublicKey(byte[] key) {
+            this.key = key;
+            this.encoded = concat(X509_PREFIX, key);
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "Ed25519";
+        }
+
+        @Override
+        public String getFormat() {
+            return "X.509";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return encoded.clone();
+        }
+
+        /** @return the decoded key, or null if it is not a point of the curve */
+        Ed25519.Point point() {
+            Ed25519.Point p = point;
+            if (p == null) {
+                // racing threads decode the same point, any of them can be kept
+                p = Ed25519.decode(key, 0);
+                point = p;
+            }
+            return p;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Ed25519PublicKey && Arrays.equals(key, ((Ed25519PublicKey) other).key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(key);
+        }
+    }
+
+    /** An Ed25519 private key: the 32-byte seed the signing scalar and nonces derive from */
+    public static final class Ed25519PrivateKey implements PrivateKey {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] seed;
+        private final Ed25519PublicKey publicKey;
+
+        private Ed25519PrivateKey(byte[] seed) {
+            this.seed = seed;
+            this.publicKey = new Ed25519PublicKey(Ed25519.publicKey(seed));
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "Ed25519";
+        }
+
+        @Override
+        public String getFormat() {
+            return "PKCS#8";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return concat(PKCS8_PREFIX, seed);
+        }
+
+        public Ed25519PublicKey getPublicKey() {
+            return publicKey;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Ed25519";
+    }
+
+    @Override
+    public KeyPair generateKeyPair() {
+        byte[] seed = new byte[Ed25519.KEY_SIZE];
+        RANDOM.get().nextBytes(seed);
+        Ed25519PrivateKey privateKey = privateKey(seed);
+        return new KeyPair(privateKey.getPublicKey(), privateKey);
+    }
+
+    /** @return the private key whose seed is {@code seed}, as in RFC 8032 */
+    public static Ed25519PrivateKey privateKey(byte[] seed) {
+        if (seed.length != Ed25519.KEY_SIZE) {
+            throw new IllegalArgumentException("Ed25519 seeds are 32 bytes: " + seed.length);
+        }
+        return new Ed25519PrivateKey(seed.clone());
+    }
+
+    /** @return true if {@code encoded} is the X.509 encoding of an Ed25519 public key */
+    public static boolean isEncodedPublicKey(byte[] encoded) {
+        return hasPrefix(encoded, X509_PREFIX, Ed25519.KEY_SIZE);
+    }
+
+    /**
+     * @return the public key whose X.509 encoding is {@code encoded}
+     * @throws IllegalArgumentException if {@code encoded} does not encode an Ed25519 public key
+     */
+    public static Ed25519PublicKey decodePublicKey(byte[] encoded) {
+        if (!isEncodedPublicKey(encoded)) {
+            throw new IllegalArgumentException("Not an encoded Ed25519 public key");
+        }
+        return new Ed25519PublicKey(Arrays.copyOfRange(encoded, X509_PREFIX.length, encoded.length));
+    }
+
+    @Override
+    public byte[] sign(PrivateKey key, byte[] message) {
+        Ed25519PrivateKey privateKey;
+        if (key instanceof Ed25519PrivateKey) {
+            privateKey = (Ed25519PrivateKey) key;
+        } else {
+            byte[] encoded = key.getEncoded();
+            if (!hasPrefix(encoded, PKCS8_PREFIX, Ed25519.KEY_SIZE)) {
+                throw new IllegalArgumentException("Not an Ed25519 private key: " + key.getAlgorithm());
+            }
+            privateKey = new Ed25519PrivateKey(Arrays.copyOfRange(encoded, PKCS8_PREFIX.length, encoded.length));
+        }
+        return Ed25519.sign(privateKey.seed, privateKey.publicKey.key, message);
+    }
+
+    @Override
+    public boolean verify(PublicKey key, byte[] message, byte[] signature) {
+        Ed25519PublicKey publicKey = toEd25519(key);
+        if (publicKey == null || message == null || signature == null) {
+            return false;
+        }
+        Ed25519.Point point = publicKey.point();
+        return point != null && Ed25519.verify(publicKey.key, point, message, signature);
+    }
+
+    @Override
+    public boolean[] verifyBatch(PublicKey[] keys, byte[][] messages, byte[][] signatures) {
+        int n = keys.length;
+        boolean[] valid = new boolean[n];
+        // malformed entries are left out of the batch, they would only make it fail
+        int[] slot = new int[n];
+        byte[][] batchKeys = new byte[n][];
+        Ed25519.Point[] batchPoints = new Ed25519.Point[n];
+        byte[][] batchMessages = new byte[n][];
+        byte[][] batchSignatures = new byte[n][];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            Ed25519PublicKey publicKey = toEd25519(keys[i]);
+            if (publicKey == null || messages[i] == null || signatures[i] == null) {
+                continue;
+            }
+            Ed25519.Point point = publicKey.point();
+            if (point == null) {
+                continue;
+            }
+            slot[count] = i;
+            batchKeys[count] = publicKey.key;
+            batchPoints[count] = point;
+            batchMessages[count] = messages[i];
+            batchSignatures[count++] = signatures[i];
+        }
+        if (count == 1) {
+            valid[slot[0]] = Ed25519.verify(batchKeys[0], batchPoints[0], batchMessages[0], batchSignatures[0]);
+        } else if (count > 1) {
+            boolean[] batchValid = Ed25519.verifyBatch(Arrays.copyOf(batchKeys, count),
+                    Arrays.copyOf(batchPoints, count), Arrays.copyOf(batchMessages, count),
+                    Arrays.copyOf(batchSignatures, count));
+            for (int c = 0; c < count; c++) {
+                valid[slot[c]] = batchValid[c];
+            }
+        }
+        return valid;
+    }
+
+    /** @return {@code key} as an Ed25519 key, null if it is not one */
+    private static Ed25519PublicKey toEd25519(PublicKey key) {
+        if (key instanceof Ed25519PublicKey) {
+            return (Ed25519PublicKey) key;
+        }
+        if (key == null || !"X.509".equals(key.getFormat())) {
+            return null;
+        }
+        byte[] encoded = key.getEncoded();
+        return isEncodedPublicKey(encoded) ? decodePublicKey(encoded) : null;
+    }
+
+    private static boolean hasPrefix(byte[] encoded, byte[] prefix, int length) {
+        if (encoded == null || encoded.length != prefix.length + length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (encoded[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] concat(byte[] prefix, byte[] bytes) {
+        byte[] result = Arrays.copyOf(prefix, prefix.length + bytes.length);
+        System.arraycopy(bytes, 0, result, prefix.length, bytes.length);
+        return result;
+    }
+}
@@ -0,0 +1,441 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, checksummed log of accepted epochs.
+ *
+ * The file starts with a header (magic, version) followed by one record per epoch:
+ * <pre>
+ *   int  payload length
+ *   int  CRC32 of the payload
+ *   long epoch sequence number   \
+ *   int  number of transactions   } payload
+ *   transactions, framed layout  /  (see {@link TransactionCodec#encode})
+ * </pre>
+ * Appends are written to the channel right away, but made durable by a background thread with group
+ * commit: the first append after a sync starts a window of {@code commitDelayMillis}, and one fsync at the
+ * end of the window covers every record written in between. {@link #awaitDurable(long)} lets a caller
+ * wait for its own record, and closes the window at once: the records written by then share the sync.
+ * Epochs which were rolled back are dropped from the end with {@link #truncate}.
+ *
+ * A crash can leave a partly written record at the end of the file. Opening the log drops everything
+ * from the first record which is incomplete or fails its checksum.
+ */
+public class EpochLog implements Closeable {
+
+    private static final int MAGIC = 0x4C42434C; // "LBCL"
+    /** 2: output values are longs in base units, they were doubles */
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int READ_BUFFER_SIZE = 8 << 20;
+    /** number of the last records whose offset is remembered, so that truncating to them needs no walk */
+    private static final int RECENT_RECORDS = 1024;
+
+    /** Receives the epochs of the log, in order, during {@link #replay} */
+    public interface EpochConsumer {
+        void accept(long sequence, Transaction[] txs);
+    }
+
+    private final FileChannel channel;
+    private final long commitDelayMillis;
+    private final Thread syncThread;
+
+    /** guarded by this */
+    private long writtenOffset;
+    private long durableOffset;
+    private long nextSequence;
+    /** start offsets of the records from oldestRecent on, by sequence modulo their number */
+    private final long[] recentOffsets = new long[RECENT_RECORDS];
+    private long oldestRecent;
+    /** bumped by every truncation, so that a sync which started before does not claim the new records */
+    private long truncations;
+    private IOException syncFailure;
+    private boolean closed;
+    /** callers blocked in awaitDurable */
+    private int waiting;
+
+    /**
+     * Opens (or creates) the log {@code file}, dropping any torn record at its end. Records appended later are
+     * durable at most {@code commitDelayMillis} after they were written.
+     */
+    public EpochLog(File file, long commitDelayMillis) throws IOException {
+        this.commitDelayMillis = commitDelayMillis;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                channel.truncate(0);
+                writeFully(header, 0);
+                channel.force(true);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    throw new IOException(file + " is not an epoch log of a supported version");
+                }
+            }
+            long end = scan(null, 0);
+            if (end < channel.size()) {
+                channel.truncate(end);
+                channel.force(true);
+            }
+            writtenOffset = end;
+            durableOffset = end;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        syncThread = new Thread(this::syncLoop, "epoch-log-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /**
+     * Decodes every epoch of the log and hands it to {@code consumer}, in the order they were appended.
+     * Appends wait meanwhile, so a replay after appends sees every record written, e.g. to apply rolled back
+     * epochs again when they could not be {@link #truncate truncated}.
+     */
+    public void replay(EpochConsumer consumer) throws IOException {
+        scan(consumer, 0);
+    }
+
+    /**
+     * Same as {@link #replay(EpochConsumer)} for the epochs from sequence {@code from} on, e.g. the ones
+     * appended after a {@link LedgerSnapshot}; the earlier ones are not decoded.
+     */
+    public void replay(long from, EpochConsumer consumer) throws IOException {
+        scan(consumer, from);
+    }
+
+    /**
+     * Appends an epoch of accepted transactions. The record is written before this method returns, but only
+     * durable once {@link #awaitDurable(long)} returns for the returned offset.
+     *
+     * @return the end offset of the record
+     */
+    public long append(Transaction[] txs) throws IOException {
+        int payloadSize = Long.BYTES + Integer.BYTES;
+        for (Transaction tx : txs) {
+            payloadSize += TransactionCodec.encodedSize(tx);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadSize);
+        record.position(RECORD_HEADER_SIZE);
+
+        synchronized (this) {
+            checkOpen();
+            record.putLong(nextSequence).putInt(txs.length);
+            for (Transaction tx : txs) {
+                TransactionCodec.encode(tx, record);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), RECORD_HEADER_SIZE, payloadSize);
+            record.putInt(0, payloadSize).putInt(4, (int) crc.getValue());
+            record.flip();
+
+            writeFully(record, writtenOffset);
+            remember(nextSequence, writtenOffset);
+            writtenOffset += record.limit();
+            nextSequence++;
+            notifyAll();
+            return writtenOffset;
+        }
+    }
+
+    /**
+     * Blocks until every record up to {@code offset} (as returned by {@link #append}) is on disk, syncing
+     * without waiting for the end of the commit window
+     */
+    public synchronized void awaitDurable(long offset) throws IOException {
+        if (durableOffset >= offset) {
+            return;
+        }
+        waiting++;
+        notifyAll();
+        try {
+            while (durableOffset < offset) {
+                if (syncFailure != null) {
+                    throw new IOException("Epoch log sync failed", syncFailure);
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the epoch log", e);
+                }
+            }
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * Drops the epochs from sequence {@code sequence} on, e.g. after they were rolled back, and makes the
+     * shortened log durable; the next appended epoch gets sequence {@code sequence}. Finding the first record
+     * to drop takes no read if it is among the last ones written, else a walk over the record headers.
+     *
+     * @throws IllegalArgumentException if {@code sequence} is negative or after the last epoch
+     */
+    public synchronized void truncate(long sequence) throws IOException {
+        checkOpen();
+        if (sequence < 0 || sequence > nextSequence) {
+            throw new IllegalArgumentException("Epoch " + sequence + " is not in the log of " + nextSequence);
+        }
+        if (sequence == nextSequence) {
+            return;
+        }
+        long offset = sequence >= oldestRecent
+                ? recentOffsets[(int) (sequence % RECENT_RECORDS)] : offsetOf(sequence);
+        channel.truncate(offset);
+        // the records are gone from the file even if the sync fails
+        writtenOffset = offset;
+        durableOffset = Math.min(durableOffset, offset);
+        nextSequence = sequence;
+        truncations++;
+        notifyAll();
+        channel.force(true);
+        durableOffset = offset;
+    }
+
+    /** @return the sequence number the next appended epoch will get, i.e. the number of epochs in the log */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /** Makes every appended record durable, stops the sync thread and closes the file */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.force(false);
+            synchronized (this) {
+                durableOffset = writtenOffset;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                syncFailure = e;
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                notifyAll();
+            }
+            channel.close();
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            long target;
+            long truncated;
+            synchronized (this) {
+                try {
+                    while (!closed && writtenOffset == durableOffset) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    // keep the window open so that the records of other epochs join this sync, unless a caller
+                    // already waits for it
+                    long deadline = System.currentTimeMillis() + commitDelayMillis;
+                    long remaining;
+                    while (!closed && waiting == 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                target = writtenOffset;
+                truncated = truncations;
+            }
+
+            IOException failure = null;
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+            }
+            synchronized (this) {
+                if (failure != null) {
+                    syncFailure = failure;
+                } else if (truncated == truncations) {
+                    durableOffset = target;
+                }
+                notifyAll();
+                if (failure != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the records from the start of the log, decoding the ones from sequence {@code from} on for
+     * {@code consumer} if not null.
+     * Records are read in large chunks; the epochs of a chunk are decoded in parallel and then handed to the
+     * consumer in log order.
+     *
+     * @return the end offset of the last complete and intact record
+     */
+    private synchronized long scan(EpochConsumer consumer, long from) throws IOException {
+        long size = channel.size();
+        long offset = HEADER_SIZE;
+        long sequence = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        buffer.flip();
+        long bufferOffset = offset;
+        List<ByteBuffer> chunk = new ArrayList<>();
+        CRC32 crc = new CRC32();
+
+        while (offset + RECORD_HEADER_SIZE <= size) {
+            if (buffer.remaining() < RECORD_HEADER_SIZE) {
+                deliver(chunk, consumer);
+                buffer = fill(buffer, bufferOffset, RECORD_HEADER_SIZE);
+                bufferOffset = offset - buffer.position();
+            }
+            int payloadSize = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + 4);
+            if (payloadSize < Long.BYTES + Integer.BYTES || offset + RECORD_HEADER_SIZE + payloadSize > size) {
+                break;
+            }
+            int recordSize = RECORD_HEADER_SIZE + payloadSize;
+            if (buffer.remaining() < recordSize) {
+                deliver(chunk, consumer);
+                buffer = fill(buffer, bufferOffset, recordSize);
+                bufferOffset = offset - buffer.position();
+            }
+
+            crc.reset();
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position() + RECORD_HEADER_SIZE, payloadSize);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(buffer.position() + RECORD_HEADER_SIZE).limit(buffer.position() + recordSize);
+            remember(payload.getLong(payload.position()), offset);
+            sequence = payload.getLong(payload.position()) + 1;
+            if (sequence > from) {
+                chunk.add(payload);
+            }
+
+            buffer.position(buffer.position() + recordSize);
+            offset += recordSize;
+        }
+        deliver(chunk, consumer);
+        nextSequence = sequence;
+        return offset;
+    }
+
+    /** Notes that the record of epoch {@code sequence}, the last one, starts at {@code offset} */
+    private void remember(long sequence, long offset) {
+        recentOffsets[(int) (sequence % RECENT_RECORDS)] = offset;
+        oldestRecent = Math.max(oldestRecent, sequence - RECENT_RECORDS + 1);
+    }
+
+    /** @return the start offset of the record of epoch {@code sequence}, walking the record headers */
+    private long offsetOf(long sequence) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + Long.BYTES);
+        for (long offset = HEADER_SIZE; offset < writtenOffset; offset += RECORD_HEADER_SIZE + header.getInt(0)) {
+            header.clear();
+            readFully(header, offset);
+            if (header.getLong(RECORD_HEADER_SIZE) == sequence) {
+                return offset;
+            }
+        }
+        throw new IOException("Epoch " + sequence + " is not in the log");
+    }
+
+    /** Decodes the record payloads of {@code chunk}, hands them to {@code consumer} and clears the chunk */
+    private static void deliver(List<ByteBuffer> chunk, EpochConsumer consumer) {
+        if (consumer != null && !chunk.isEmpty()) {
+            Transaction[][] epochs = new Transaction[chunk.size()][];
+            IntStream.range(0, epochs.length).parallel().forEach(i -> {
+                ByteBuffer payload = chunk.get(i).duplicate();
+                payload.getLong();
+                Transaction[] txs = new Transaction[payload.getInt()];
+                for (int t = 0; t < txs.length; t++) {
+                    txs[t] = TransactionCodec.decode(payload);
+                }
+                epochs[i] = txs;
+            });
+            for (int i = 0; i < epochs.length; i++) {
+                consumer.accept(chunk.get(i).getLong(chunk.get(i).position()), epochs[i]);
+            }
+        }
+        chunk.clear();
+    }
+
+    /**
+     * Refills {@code buffer} (whose content starts at file offset {@code bufferOffset}) so that at least
+     * {@code needed} bytes are available from its position, growing it for oversized records.
+     */
+    private ByteBuffer fill(ByteBuffer buffer, long bufferOffset, int needed) throws IOException {
+        long readOffset = bufferOffset + buffer.limit();
+        if (buffer.capacity() < needed) {
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            bigger.put(buffer);
+            buffer = bigger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < needed) {
+            int read = channel.read(buffer, readOffset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of epoch log");
+            }
+            readOffset += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of epoch log");
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Epoch log is closed");
+        }
+        if (syncFailure != null) {
+            throw new IOException("Epoch log sync failed", syncFailure);
+        }
+    }
+}
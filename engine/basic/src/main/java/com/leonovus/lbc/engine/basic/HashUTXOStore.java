@@ -0,0 +1,53 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** The default {@link UTXOStore}, a {@link HashMap} from {@link UTXO} objects to {@link Transaction.Output} objects */
+public class HashUTXOStore implements UTXOStore {
+
+    private final HashMap<UTXO, Transaction.Output> H;
+
+    public HashUTXOStore() {
+        H = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private HashUTXOStore(HashUTXOStore store) {
+        H = new HashMap<UTXO, Transaction.Output>(store.H);
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        H.put(utxo, txOut);
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        H.remove(utxo);
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    @Override
+    public int size() {
+        return H.size();
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        return new ArrayList<UTXO>(H.keySet());
+    }
+
+    @Override
+    public UTXOStore copy() {
+        return new HashUTXOStore(this);
+    }
+}
@@ -0,0 +1,252 @@
+package com.leonovus.lbc.engine.basic;
+
+import com.leonovus.lbc.engine.api.Resource;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+/**
+ * Feeds queued resources to the engine from a dedicated thread, coalescing them into epochs.
+ *
+ * Submitted resources wait in a bounded queue, {@link #submit} blocks while it is full, without holding up
+ * other submitters or {@link #close}. The pipeline thread
+ * takes the oldest resource and keeps adding queued ones to the same epoch until it holds
+ * {@code epochMaxTransactions} transactions, the queue is empty with no submitter about to add to it, or
+ * {@code epochMaxDelayMillis} have passed. It then processes the epoch in one go and completes the future
+ * of every resource with the accepted transactions it proposed.
+ * Tasks queued with {@link #execute} run on the pipeline thread between two epochs, so they see the ledger
+ * with every resource queued before them applied and none of the later ones. If the processor or a task
+ * throws an {@link Error}, the pipeline fails every queued resource and stops, rethrowing it.
+ */
+class IngestionPipeline {
+
+    private static final long IDLE_POLL_MILLIS = 50;
+
+    /** A queued resource, or task, and the future of its result */
+    private static final class Pending {
+        final Transaction[] txs;
+        final Runnable task;
+        final CompletableFuture<Resource> result = new CompletableFuture<>();
+        final List<Transaction> accepted = new ArrayList<>();
+
+        Pending(Transaction[] txs, Runnable task) {
+            this.txs = txs;
+            this.task = task;
+        }
+    }
+
+    private final UnaryOperator<Transaction[]> processor;
+    private final int epochMaxTransactions;
+    private final long epochMaxDelayMillis;
+    private final BlockingQueue<Pending> queue;
+    private final Thread thread;
+    /** number of submitters between their check of closed and the end of their offer */
+    private final AtomicInteger submitting = new AtomicInteger();
+
+    private volatile boolean closed;
+    /** why the pipeline thread stopped, if it was not closed */
+    private volatile Throwable failure;
+
+    /**
+     * @param processor processes an epoch on the pipeline thread and returns its accepted transactions
+     */
+    IngestionPipeline(UnaryOperator<Transaction[]> processor, int queueCapacity, int epochMaxTransactions,
+                      long epochMaxDelayMillis) {
+        this.processor = processor;
+        this.epochMaxTransactions = epochMaxTransactions;
+        this.epochMaxDelayMillis = epochMaxDelayMillis;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        thread = new Thread(this::run, "engine-ingestion");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Queues {@code txs}, waiting for room in the queue */
+    CompletableFuture<Resource> submit(Transaction[] txs) {
+        return enqueue(new Pending(txs, null));
+    }
+
+    /**
+     * Queues {@code task} to run on the pipeline thread once the resources queued before it are processed
+     *
+     * @return a future completed (with null) when the task has run
+     */
+    CompletableFuture<?> execute(Runnable task) {
+        return enqueue(new Pending(null, task));
+    }
+
+    private CompletableFuture<Resource> enqueue(Pending pending) {
+        submitting.incrementAndGet();
+        try {
+            while (true) {
+                if (closed) {
+                    pending.result.completeExceptionally(stopped());
+                    break;
+                }
+                // offer in slices, so that a submitter waiting for room notices close()
+                if (queue.offer(pending, IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.result.completeExceptionally(e);
+        } finally {
+            submitting.decrementAndGet();
+        }
+        return pending.result;
+    }
+
+    /** Stops taking resources, processes the queued ones and stops the pipeline thread */
+    void close() {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            processQueue();
+        } catch (Error e) {
+            failure = e;
+            closed = true;
+            // fail what is queued, and what submitters which did not see closed yet still queue
+            while (submitting.get() > 0 || !queue.isEmpty()) {
+                Pending pending = poll(TimeUnit.MILLISECONDS.toNanos(1));
+                if (pending != null) {
+                    pending.result.completeExceptionally(stopped());
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void processQueue() {
+        List<Pending> epoch = new ArrayList<>();
+        while (true) {
+            Pending first = poll(TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MILLIS));
+            if (first == null) {
+                // a submitter seeing closed false may still be offering, it is waited for
+                if (closed && submitting.get() == 0 && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            if (first.task != null) {
+                runTask(first);
+                continue;
+            }
+            epoch.add(first);
+            int size = first.txs.length;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(epochMaxDelayMillis);
+            Pending task = null;
+            while (size < epochMaxTransactions) {
+                Pending next = queue.poll();
+                if (next == null) {
+                    // nobody is about to queue more, waiting would only delay the epoch
+                    if (submitting.get() == 0) {
+                        break;
+                    }
+                    next = poll(deadline - System.nanoTime());
+                    if (next == null) {
+                        break;
+                    }
+                }
+                if (next.task != null) {
+                    // a task closes the epoch
+                    task = next;
+                    break;
+                }
+                epoch.add(next);
+                size += next.txs.length;
+            }
+            try {
+                process(epoch, size);
+            } catch (Error e) {
+                if (task != null) {
+                    task.result.completeExceptionally(e);
+                }
+                throw e;
+            }
+            epoch.clear();
+            if (task != null) {
+                runTask(task);
+            }
+        }
+    }
+
+    private static void runTask(Pending pending) {
+        try {
+            pending.task.run();
+            pending.result.complete(null);
+        } catch (Throwable e) {
+            pending.result.completeExceptionally(e);
+            rethrowError(e);
+        }
+    }
+
+    private static void rethrowError(Throwable e) {
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+    }
+
+    private IllegalStateException stopped() {
+        Throwable failure = this.failure;
+        return failure == null ? new IllegalStateException("Engine is destroyed")
+                : new IllegalStateException("Ingestion pipeline stopped", failure);
+    }
+
+    /** @return the next queued resource, or null if none comes within {@code timeoutNanos} */
+    private Pending poll(long timeoutNanos) {
+        try {
+            return queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            // only close() stops the pipeline, so that queued resources are never dropped
+            return null;
+        }
+    }
+
+    private void process(List<Pending> epoch, int size) {
+        Transaction[] txs = new Transaction[size];
+        Map<Transaction, Pending> proposedBy = new IdentityHashMap<>(size);
+        int n = 0;
+        for (Pending pending : epoch) {
+            for (Transaction tx : pending.txs) {
+                txs[n++] = tx;
+                proposedBy.putIfAbsent(tx, pending);
+            }
+        }
+
+        Transaction[] accepted;
+        try {
+            accepted = processor.apply(txs);
+        } catch (Throwable e) {
+            for (Pending pending : epoch) {
+                pending.result.completeExceptionally(e);
+            }
+            rethrowError(e);
+            return;
+        }
+
+        for (Transaction tx : accepted) {
+            proposedBy.get(tx).accepted.add(tx);
+        }
+        for (Pending pending : epoch) {
+            BasicResource result = new BasicResource();
+            result.setProposedTransactions(pending.accepted.toArray(new Transaction[0]));
+            pending.result.complete(result);
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot of the UTXO set in a file, for starting an engine without rebuilding its ledger.
+ *
+ * Entries are sorted by transaction hash and output index and have a fixed size, 48 bytes:
+ * <pre>
+ *   header       int magic, int version
+ *   chunks       up to 4096 entries each: 32 byte hash, int index, int address id (-1 for none), long value
+ *   dictionary   the addresses referred to by id: int length, X.509 encoding
+ *   overflow     int count, then the UTXOs whose hash is not 32 bytes long:
+ *                int hash length, hash, int index, int address id, long value
+ *   index        per chunk: long offset, int entry count, int CRC32 of the chunk, first hash and index
+ *   footer       long entry count (in chunks), long epoch sequence, long dictionary, overflow and index
+ *                offsets, int chunk count, int address count, int CRC32 of dictionary to index, int magic
+ * </pre>
+ * Opening a snapshot only reads the index and the footer; the chunks are memory-mapped. From there the
+ * UTXOs can either be {@link #load loaded} into a pool, one chunk per task across the cores, or be read in
+ * place by a {@link SnapshotUTXOStore}, which finds an entry by binary search in the index and then in its
+ * chunk. A chunk's checksum is verified before its entries are first used.
+ *
+ * The epoch sequence is the number of epochs of the engine's epoch log reflected in the snapshot, so that
+ * only the later ones are replayed on top of it.
+ */
+public final class LedgerSnapshot {
+
+    private static final int MAGIC = 0x4C424353; // "LBCS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int HASH_BYTES = 32;
+    static final int ENTRY_SIZE = 48;
+    private static final int CHUNK_ENTRIES = 4096;
+    private static final int CHUNK_SIZE = CHUNK_ENTRIES * ENTRY_SIZE;
+    private static final int INDEX_ENTRY_SIZE = 52;
+    private static final int FOOTER_SIZE = 56;
+    /** chunks per mapping, mappings being limited to 2 GB */
+    private static final int SEGMENT_CHUNKS = (1 << 30) / CHUNK_SIZE;
+
+    private final File file;
+    private final long entryCount;
+    private final long sequence;
+    private final int chunkCount;
+    /** the chunks, SEGMENT_CHUNKS per mapping */
+    private final MappedByteBuffer[] segments;
+    /** first key of every chunk: four hash words and the index */
+    private final long[] firstKeys;
+    private final int[] chunkCrcs;
+    /** dictionary, overflow and index */
+    private final MappedByteBuffer tail;
+    private final int[] addressOffsets;
+    private final Address[] addresses;
+    private final Map<UTXO, Transaction.Output> overflow = new HashMap<>();
+    /** chunks whose checksum was verified; racing threads may both verify a chunk, which is harmless */
+    private final boolean[] verified;
+
+    private LedgerSnapshot(File file) throws IOException {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            if (size < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException(file + " is not a ledger snapshot");
+            }
+            readFully(channel, header, 0);
+            readFully(channel, footer, size - FOOTER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || footer.getInt(FOOTER_SIZE - 4) != MAGIC) {
+                throw new IOException(file + " is not a ledger snapshot of a supported version");
+            }
+            entryCount = footer.getLong(0);
+            sequence = footer.getLong(8);
+            long dictionaryOffset = footer.getLong(16);
+            long overflowOffset = footer.getLong(24);
+            long indexOffset = footer.getLong(32);
+            chunkCount = footer.getInt(40);
+            int addressCount = footer.getInt(44);
+            int tailCrc = footer.getInt(48);
+            if (dictionaryOffset != HEADER_SIZE + entryCount * ENTRY_SIZE
+                    || chunkCount != (entryCount + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES
+                    || indexOffset + (long) chunkCount * INDEX_ENTRY_SIZE != size - FOOTER_SIZE
+                    || overflowOffset < dictionaryOffset || indexOffset < overflowOffset
+                    || size - FOOTER_SIZE - dictionaryOffset > Integer.MAX_VALUE) {
+                throw new IOException(file + " is a corrupt ledger snapshot");
+            }
+
+            tail = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, size - FOOTER_SIZE - dictionaryOffset);
+            CRC32 crc = new CRC32();
+            crc.update(tail.duplicate());
+            if ((int) crc.getValue() != tailCrc) {
+                throw new IOException(file + " is a corrupt ledger snapshot: index checksum mismatch");
+            }
+
+            addressOffsets = new int[addressCount + 1];
+            int offset = 0;
+            for (int i = 0; i < addressCount; i++) {
+                addressOffsets[i] = offset;
+                offset += Integer.BYTES + tail.getInt(offset);
+            }
+            addressOffsets[addressCount] = offset;
+            addresses = new Address[addressCount];
+
+            int index = (int) (indexOffset - dictionaryOffset);
+            firstKeys = new long[chunkCount * 5];
+            chunkCrcs = new int[chunkCount];
+            for (int c = 0; c < chunkCount; c++) {
+                int base = index + c * INDEX_ENTRY_SIZE;
+                chunkCrcs[c] = tail.getInt(base + 12);
+                for (int w = 0; w < 4; w++) {
+                    firstKeys[c * 5 + w] = tail.getLong(base + 16 + w * Long.BYTES);
+                }
+                firstKeys[c * 5 + 4] = tail.getInt(base + 48);
+            }
+            verified = new boolean[chunkCount];
+
+            segments = new MappedByteBuffer[(chunkCount + SEGMENT_CHUNKS - 1) / SEGMENT_CHUNKS];
+            for (int s = 0; s < segments.length; s++) {
+                long start = HEADER_SIZE + (long) s * SEGMENT_CHUNKS * CHUNK_SIZE;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min((long) SEGMENT_CHUNKS * CHUNK_SIZE, dictionaryOffset - start));
+            }
+
+            ByteBuffer overflowEntries = tail.duplicate();
+            overflowEntries.position((int) (overflowOffset - dictionaryOffset));
+            int overflowCount = overflowEntries.getInt();
+            for (int i = 0; i < overflowCount; i++) {
+                byte[] hash = new byte[overflowEntries.getInt()];
+                overflowEntries.get(hash);
+                int outputIndex = overflowEntries.getInt();
+                int addressId = overflowEntries.getInt();
+                overflow.put(new UTXO(hash, outputIndex), new Transaction.Output(overflowEntries.getLong(),
+                        address(addressId)));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(file + " is a corrupt ledger snapshot", e);
+        }
+    }
+
+    /**
+     * Opens the snapshot {@code file}, reading only its index
+     *
+     * @throws IOException if the file can not be read, is not a snapshot or its index is corrupt
+     */
+    public static LedgerSnapshot open(File file) throws IOException {
+        return new LedgerSnapshot(file);
+    }
+
+    /**
+     * Reads the epoch sequence of the snapshot {@code file} from its header and footer, without opening it
+     *
+     * @throws IOException if the file can not be read or is not a snapshot
+     */
+    public static long readSequence(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            if (size < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException(file + " is not a ledger snapshot");
+            }
+            readFully(channel, header, 0);
+            readFully(channel, footer, size - FOOTER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || footer.getInt(FOOTER_SIZE - 4) != MAGIC) {
+                throw new IOException(file + " is not a ledger snapshot of a supported version");
+            }
+            return footer.getLong(8);
+        }
+    }
+
+    /**
+     * Writes a snapshot of {@code pool} to {@code file}. The pool must not change meanwhile. The snapshot is
+     * written next to {@code file} and then renamed, so that a crash never leaves a partial snapshot and the
+     * snapshot a {@link SnapshotUTXOStore} may be reading is not overwritten.
+     *
+     * @param sequence the number of epochs of the epoch log reflected in {@code pool}
+     */
+    public static void write(UTXOPool pool, long sequence, File file) throws IOException {
+        List<UTXO> utxos = pool.getAllUTXO();
+        long[] entries = new long[utxos.size() * 6];
+        int count = 0;
+        List<Address> dictionary = new ArrayList<>();
+        Map<Address, Integer> addressIds = new HashMap<>();
+        List<UTXO> others = new ArrayList<>();
+        for (UTXO utxo : utxos) {
+            if (utxo.getTxHash().length != HASH_BYTES) {
+                others.add(utxo);
+                continue;
+            }
+            Transaction.Output output = pool.getTxOutput(utxo);
+            ByteBuffer hash = ByteBuffer.wrap(utxo.getTxHash());
+            for (int w = 0; w < 4; w++) {
+                entries[count * 6 + w] = hash.getLong();
+            }
+            entries[count * 6 + 4] = ((long) utxo.getIndex() << 32)
+                    | (addressId(output.getAddress(), dictionary, addressIds) & 0xFFFFFFFFL);
+            entries[count * 6 + 5] = output.value;
+            count++;
+        }
+        int[] order = IntStream.range(0, count).toArray();
+        sort(entries, order, new int[count], 0, count);
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).flip();
+            long position = write(channel, buffer, 0);
+
+            int chunkCount = (count + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES;
+            ByteBuffer index = ByteBuffer.allocate(chunkCount * INDEX_ENTRY_SIZE);
+            CRC32 crc = new CRC32();
+            for (int c = 0; c < chunkCount; c++) {
+                int from = c * CHUNK_ENTRIES;
+                int to = Math.min(from + CHUNK_ENTRIES, count);
+                buffer.clear();
+                for (int i = from; i < to; i++) {
+                    int e = order[i] * 6;
+                    for (int w = 0; w < 6; w++) {
+                        buffer.putLong(entries[e + w]);
+                    }
+                }
+                buffer.flip();
+                crc.reset();
+                crc.update(buffer.array(), 0, buffer.limit());
+                int first = order[from] * 6;
+                index.putLong(position).putInt(to - from).putInt((int) crc.getValue())
+                        .putLong(entries[first]).putLong(entries[first + 1]).putLong(entries[first + 2])
+                        .putLong(entries[first + 3]).putInt((int) (entries[first + 4] >>> 32));
+                position = write(channel, buffer, position);
+            }
+
+            // the overflow entries may still add addresses, so they go before the dictionary is written
+            ByteBuffer overflow = ByteBuffer.allocate(Integer.BYTES
+                    + others.stream().mapToInt(u -> u.getTxHash().length + 20).sum());
+            overflow.putInt(others.size());
+            for (UTXO utxo : others) {
+                Transaction.Output output = pool.getTxOutput(utxo);
+                overflow.putInt(utxo.getTxHash().length).put(utxo.getTxHash()).putInt(utxo.getIndex())
+                        .putInt(addressId(output.getAddress(), dictionary, addressIds)).putLong(output.value);
+            }
+            overflow.flip();
+            index.flip();
+
+            long dictionaryOffset = position;
+            crc.reset();
+            for (Address address : dictionary) {
+                byte[] encoded = address.encoded();
+                if (buffer.capacity() < Integer.BYTES + encoded.length) {
+                    buffer = ByteBuffer.allocate(Integer.BYTES + encoded.length);
+                }
+                buffer.clear();
+                buffer.putInt(encoded.length).put(encoded).flip();
+                crc.update(buffer.array(), 0, buffer.limit());
+                position = write(channel, buffer, position);
+            }
+            long overflowOffset = position;
+            crc.update(overflow.array(), 0, overflow.limit());
+            position = write(channel, overflow, position);
+            long indexOffset = position;
+            crc.update(index.array(), 0, index.limit());
+            position = write(channel, index, position);
+
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putLong(count).putLong(sequence).putLong(dictionaryOffset).putLong(overflowOffset)
+                    .putLong(indexOffset).putInt(chunkCount).putInt(dictionary.size()).putInt((int) crc.getValue())
+                    .putInt(MAGIC).flip();
+            write(channel, footer, position);
+            channel.force(true);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return the number of UTXOs in the snapshot */
+    public long size() {
+        return entryCount + overflow.size();
+    }
+
+    /** @return the number of epochs of the epoch log reflected in the snapshot */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Reads every UTXO of the snapshot into a {@link StripedUTXOStore}, chunks being verified and decoded in
+     * parallel across the cores
+     *
+     * @throws IllegalStateException if a chunk is corrupt
+     */
+    public UTXOStore load() {
+        StripedUTXOStore store = new StripedUTXOStore();
+        IntStream.range(0, chunkCount).parallel().forEach(c -> {
+            verify(c);
+            long end = Math.min((long) (c + 1) * CHUNK_ENTRIES, entryCount);
+            for (long e = (long) c * CHUNK_ENTRIES; e < end; e++) {
+                store.put(utxo(e), output(e));
+            }
+        });
+        overflow.forEach(store::put);
+        return store;
+    }
+
+    /** Verifies every chunk and decodes every address, in parallel, so that later lookups only read entries */
+    void warmUp() {
+        IntStream.range(0, chunkCount).parallel().forEach(this::verify);
+        IntStream.range(0, addresses.length).parallel().forEach(this::address);
+    }
+
+    /** @return the position of the entry of {@code utxo} among the sorted entries, or -1 if there is none */
+    long find(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length != HASH_BYTES || entryCount == 0) {
+            return -1;
+        }
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        long h0 = key.getLong(0), h1 = key.getLong(8), h2 = key.getLong(16), h3 = key.getLong(24);
+        int index = utxo.getIndex();
+
+        // last chunk whose first key is not greater than the key
+        int low = 0;
+        int high = chunkCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            int k = mid * 5;
+            if (compare(firstKeys[k], firstKeys[k + 1], firstKeys[k + 2], firstKeys[k + 3], (int) firstKeys[k + 4],
+                    h0, h1, h2, h3, index) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int chunk = low;
+        verify(chunk);
+        MappedByteBuffer segment = segments[chunk / SEGMENT_CHUNKS];
+        int base = (chunk % SEGMENT_CHUNKS) * CHUNK_SIZE;
+        long first = (long) chunk * CHUNK_ENTRIES;
+        int lo = 0;
+        int hi = (int) (Math.min(first + CHUNK_ENTRIES, entryCount) - first) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int p = base + mid * ENTRY_SIZE;
+            int cmp = compare(segment.getLong(p), segment.getLong(p + 8), segment.getLong(p + 16),
+                    segment.getLong(p + 24), segment.getInt(p + 32), h0, h1, h2, h3, index);
+            if (cmp == 0) {
+                return first + mid;
+            }
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the number of sorted entries, i.e. the UTXOs with a 32 byte hash */
+    long entryCount() {
+        return entryCount;
+    }
+
+    /** @return the UTXOs whose hash is not 32 bytes long, not to be modified */
+    Map<UTXO, Transaction.Output> overflow() {
+        return overflow;
+    }
+
+    /** @return the UTXO of the entry at {@code position} */
+    UTXO utxo(long position) {
+        MappedByteBuffer segment = segmentOf(position);
+        int p = offsetOf(position);
+        byte[] hash = new byte[HASH_BYTES];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            hash[i] = segment.get(p + i);
+        }
+        return new UTXO(hash, segment.getInt(p + 32));
+    }
+
+    /** @return the output of the entry at {@code position} */
+    Transaction.Output output(long position) {
+        MappedByteBuffer segment = segmentOf(position);
+        int p = offsetOf(position);
+        return new Transaction.Output(segment.getLong(p + 40), address(segment.getInt(p + 36)));
+    }
+
+    /** Verifies the checksum of the entries of the chunk holding {@code position}, if not done yet */
+    void verifyEntry(long position) {
+        verify((int) (position / CHUNK_ENTRIES));
+    }
+
+    private void verify(int chunk) {
+        if (verified[chunk]) {
+            return;
+        }
+        ByteBuffer bytes = segments[chunk / SEGMENT_CHUNKS].duplicate();
+        int base = (chunk % SEGMENT_CHUNKS) * CHUNK_SIZE;
+        long entries = Math.min((long) (chunk + 1) * CHUNK_ENTRIES, entryCount) - (long) chunk * CHUNK_ENTRIES;
+        bytes.limit(base + (int) entries * ENTRY_SIZE).position(base);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != chunkCrcs[chunk]) {
+            throw new IllegalStateException("Chunk " + chunk + " of ledger snapshot " + file + " is corrupt");
+        }
+        verified[chunk] = true;
+    }
+
+    private Address address(int id) {
+        if (id < 0) {
+            return null;
+        }
+        Address address = addresses[id];
+        if (address == null) {
+            int offset = addressOffsets[id];
+            // addresses are interned, so threads racing here end up storing the same one
+            address = Address.decode(tail, offset + Integer.BYTES, addressOffsets[id + 1] - offset - Integer.BYTES);
+            addresses[id] = address;
+        }
+        return address;
+    }
+
+    private MappedByteBuffer segmentOf(long position) {
+        return segments[(int) (position / CHUNK_ENTRIES / SEGMENT_CHUNKS)];
+    }
+
+    private static int offsetOf(long position) {
+        return (int) (position % ((long) SEGMENT_CHUNKS * CHUNK_ENTRIES)) * ENTRY_SIZE;
+    }
+
+    private static int addressId(Address address, List<Address> dictionary, Map<Address, Integer> addressIds) {
+        if (address == null) {
+            return -1;
+        }
+        Integer id = addressIds.get(address);
+        if (id == null) {
+            id = dictionary.size();
+            dictionary.add(address);
+            addressIds.put(address, id);
+        }
+        return id;
+    }
+
+    /** Orders keys by hash (unsigned) then index */
+    private static int compare(long a0, long a1, long a2, long a3, int aIndex, long b0, long b1, long b2, long b3,
+            int bIndex) {
+        int cmp = Long.compareUnsigned(a0, b0);
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(a1, b1);
+            if (cmp == 0) {
+                cmp = Long.compareUnsigned(a2, b2);
+                if (cmp == 0) {
+                    cmp = Long.compareUnsigned(a3, b3);
+                    if (cmp == 0) {
+                        cmp = Integer.compare(aIndex, bIndex);
+                    }
+                }
+            }
+        }
+        return cmp;
+    }
+
+    private static int compareEntries(long[] entries, int a, int b) {
+        int x = a * 6;
+        int y = b * 6;
+        return compare(entries[x], entries[x + 1], entries[x + 2], entries[x + 3], (int) (entries[x + 4] >>> 32),
+                entries[y], entries[y + 1], entries[y + 2], entries[y + 3], (int) (entries[y + 4] >>> 32));
+    }
+
+    /** Merge sort of {@code order[from, to)} by the keys of the entries they point to */
+    private static void sort(long[] entries, int[] order, int[] scratch, int from, int to) {
+        if (to - from <= 16) {
+            for (int i = from + 1; i < to; i++) {
+                int e = order[i];
+                int j = i - 1;
+                while (j >= from && compareEntries(entries, order[j], e) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = e;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sort(entries, order, scratch, from, mid);
+        sort(entries, order, scratch, mid, to);
+        if (compareEntries(entries, order[mid - 1], order[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, scratch, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || i < mid && compareEntries(entries, scratch[i], scratch[j]) <= 0) {
+                order[k] = scratch[i++];
+            } else {
+                order[k] = scratch[j++];
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    /** @return the position after the content of {@code buffer}, written at {@code position} */
+    private static long write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+}
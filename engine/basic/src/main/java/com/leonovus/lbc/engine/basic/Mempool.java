@@ -0,0 +1,332 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Bounded pool of pending transactions in front of {@link com.leonovus.lbc.engine.api.Engine#onResourceCreated}.
+ * A {@link BasicEngine} keeps one if {@link BasicEngineConfig#setMempoolBytes} is set, see
+ * {@link BasicEngine#submit}.
+ *
+ * A transaction is admitted if its signatures are valid, every output it spends is in the {@link UTXOPool}
+ * and not already claimed by another pending transaction, and its fee (input sum minus output sum) is not
+ * negative. Pending transactions are indexed by fee in two binary heaps: a max-heap from which
+ * {@link #takeResource} selects the highest-fee set fitting a count and byte budget, and a min-heap from which
+ * the lowest-fee (and among those the oldest) entries are evicted whenever the memory cap is exceeded.
+ * Admission, removal and eviction are O(log n); selecting k transactions is O(k log k), plus at most
+ * {@link #MAX_SKIPPED} transactions looked at and skipped because they do not fit the byte budget.
+ *
+ * Memory is accounted as the encoded size of every transaction plus a fixed estimate for its index entries.
+ * The pool is read during admission, so admission must not run while the engine applies an epoch to it.
+ */
+public class Mempool {
+
+    /** rough heap cost of the index entries of one transaction (hash map nodes, heap slots, entry object) */
+    static final int ENTRY_OVERHEAD = 256;
+    /** transactions {@link #takeResource} skips for their size before it settles for what it selected */
+    static final int MAX_SKIPPED = 1000;
+
+    private static final Comparator<Entry> HIGHEST_FEE_FIRST = (a, b) -> {
+        int byFee = Long.compare(b.fee, a.fee);
+        return byFee != 0 ? byFee : Long.compare(a.sequence, b.sequence);
+    };
+
+    private static final Comparator<Entry> LOWEST_FEE_FIRST = (a, b) -> {
+        int byFee = Long.compare(a.fee, b.fee);
+        return byFee != 0 ? byFee : Long.compare(a.sequence, b.sequence);
+    };
+
+    /** A pending transaction with its fee, accounted size and arrival order */
+    private static final class Entry {
+        final Transaction tx;
+        final ByteBuffer hash;
+        final long fee;
+        final long size;
+        final long sequence;
+        final long arrivalMillis;
+        /** positions in the selection (0) and eviction (1) heaps */
+        final int[] heapIndex = new int[2];
+
+        Entry(Transaction tx, long fee, long size, long sequence, long arrivalMillis) {
+            this.tx = tx;
+            this.hash = ByteBuffer.wrap(tx.hash());
+            this.fee = fee;
+            this.size = size;
+            this.sequence = sequence;
+            this.arrivalMillis = arrivalMillis;
+        }
+    }
+
+    /** Binary heap of entries which tracks every entry's position, so any entry can be removed in O(log n) */
+    private static final class EntryHeap {
+        private final Comparator<Entry> order;
+        private final int slot;
+        private Entry[] heap = new Entry[64];
+        private int size;
+
+        EntryHeap(Comparator<Entry> order, int slot) {
+            this.order = order;
+            this.slot = slot;
+        }
+
+        Entry peek() {
+            return size == 0 ? null : heap[0];
+        }
+
+        Entry get(int index) {
+            return heap[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(Entry e) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            heap[size] = e;
+            e.heapIndex[slot] = size;
+            siftUp(size++);
+        }
+
+        void remove(Entry e) {
+            int index = e.heapIndex[slot];
+            Entry last = heap[--size];
+            heap[size] = null;
+            if (index < size) {
+                heap[index] = last;
+                last.heapIndex[slot] = index;
+                siftDown(index);
+                siftUp(last.heapIndex[slot]);
+            }
+        }
+
+        private void siftUp(int index) {
+            Entry e = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (order.compare(e, heap[parent]) >= 0) {
+                    break;
+                }
+                move(heap[parent], index);
+                index = parent;
+            }
+            move(e, index);
+        }
+
+        private void siftDown(int index) {
+            Entry e = heap[index];
+            int half = size >>> 1;
+            while (index < half) {
+                int child = 2 * index + 1;
+                if (child + 1 < size && order.compare(heap[child + 1], heap[child]) < 0) {
+                    child++;
+                }
+                if (order.compare(e, heap[child]) <= 0) {
+                    break;
+                }
+                move(heap[child], index);
+                index = child;
+            }
+            move(e, index);
+        }
+
+        private void move(Entry e, int index) {
+            heap[index] = e;
+            e.heapIndex[slot] = index;
+        }
+    }
+
+    private final UTXOPool utxoPool;
+    private final long maxBytes;
+    private final SignatureVerifier verifier;
+
+    private final Map<ByteBuffer, Entry> byHash = new LinkedHashMap<>();
+    private final Map<UTXO, Entry> claims = new HashMap<>();
+    private final EntryHeap selectionHeap = new EntryHeap(HIGHEST_FEE_FIRST, 0);
+    private final EntryHeap evictionHeap = new EntryHeap(LOWEST_FEE_FIRST, 1);
+    private long bytes;
+    private long nextSequence;
+
+    /** Creates an empty mempool which admits transactions spending outputs of {@code utxoPool} */
+    public Mempool(UTXOPool utxoPool, long maxBytes) {
+        this(utxoPool, maxBytes, new RsaSignatureScheme());
+    }
+
+    /** Same as {@link #Mempool(UTXOPool, long)} for transactions signed with {@code scheme} */
+    public Mempool(UTXOPool utxoPool, long maxBytes, SignatureScheme scheme) {
+        this.utxoPool = utxoPool;
+        this.maxBytes = maxBytes;
+        this.verifier = SignatureVerifier.sequential(scheme);
+    }
+
+    /**
+     * Admits {@code tx}, evicting lower fee transactions if the memory cap is exceeded.
+     *
+     * @return false if the transaction is invalid, conflicts with or duplicates a pending transaction, or
+     *         has the lowest fee of the pool when the cap is reached (i.e. was evicted right away)
+     */
+    public synchronized boolean add(Transaction tx) {
+        if (tx.hash() == null || byHash.containsKey(ByteBuffer.wrap(tx.hash()))) {
+            return false;
+        }
+
+        List<UTXO> spent = new ArrayList<>(tx.numInputs());
+        PublicKey[] keys = new PublicKey[tx.numInputs()];
+        long inputSum = 0;
+        long signs = 0;
+        for (int i = 0; i < keys.length; i++) {
+            Transaction.Input in = tx.input(i);
+            if (in.prevTxHash == null || !utxoPool.mightContain(in.prevTxHash, in.outputIndex)) {
+                return false;
+            }
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            Transaction.Output output = utxoPool.getTxOutput(utxo);
+            if (output == null || claims.containsKey(utxo) || spent.contains(utxo)) {
+                return false;
+            }
+            spent.add(utxo);
+            keys[i] = output.address;
+            inputSum += output.value;
+            signs |= output.value | inputSum;
+        }
+        long outputSum = tx.outputSum();
+        long fee = inputSum - outputSum;
+        if (signs < 0 || outputSum < 0 || fee < 0 || !verifier.verify(new Transaction[] {tx}, new PublicKey[][] {keys})[0]) {
+            return false;
+        }
+
+        Entry entry = new Entry(tx, fee, TransactionCodec.encodedSize(tx) + ENTRY_OVERHEAD, nextSequence++,
+                System.currentTimeMillis());
+        byHash.put(entry.hash, entry);
+        for (UTXO utxo : spent) {
+            claims.put(utxo, entry);
+        }
+        selectionHeap.add(entry);
+        evictionHeap.add(entry);
+        bytes += entry.size;
+
+        while (bytes > maxBytes) {
+            remove(evictionHeap.peek());
+        }
+        return byHash.containsKey(entry.hash);
+    }
+
+    /**
+     * Removes and returns the highest fee transactions whose count is at most {@code maxCount} and whose
+     * encoded size adds up to at most {@code maxBytes}; a transaction which does not fit the remaining byte
+     * budget is skipped in favour of smaller ones with lower fees, up to {@link #MAX_SKIPPED} of them.
+     *
+     * @return a resource with the selected transactions, or null if nothing fits
+     */
+    public synchronized BasicResource takeResource(int maxCount, long maxBytes) {
+        List<Entry> selected = new ArrayList<>();
+        long budget = maxBytes;
+        int skipped = 0;
+
+        // best-first walk of the max-heap: children are only looked at once their parent is taken or skipped
+        PriorityQueue<Integer> frontier = new PriorityQueue<>(
+                (a, b) -> HIGHEST_FEE_FIRST.compare(selectionHeap.get(a), selectionHeap.get(b)));
+        if (selectionHeap.size() > 0) {
+            frontier.add(0);
+        }
+        while (!frontier.isEmpty() && selected.size() < maxCount && budget > 0 && skipped < MAX_SKIPPED) {
+            int index = frontier.poll();
+            Entry entry = selectionHeap.get(index);
+            long encodedSize = entry.size - ENTRY_OVERHEAD;
+            if (encodedSize <= budget) {
+                selected.add(entry);
+                budget -= encodedSize;
+            } else {
+                skipped++;
+            }
+            for (int child = 2 * index + 1; child <= 2 * index + 2 && child < selectionHeap.size(); child++) {
+                frontier.add(child);
+            }
+        }
+        if (selected.isEmpty()) {
+            return null;
+        }
+
+        Transaction[] txs = new Transaction[selected.size()];
+        for (int i = 0; i < txs.length; i++) {
+            txs[i] = selected.get(i).tx;
+            remove(selected.get(i));
+        }
+        BasicResource resource = new BasicResource();
+        resource.setProposedTransactions(txs);
+        return resource;
+    }
+
+    /**
+     * Drops pending transactions which became invalid because {@code accepted} transactions (processed by
+     * the engine from some other source) spent the same outputs, as well as pending copies of them.
+     */
+    public synchronized void removeConflicts(Transaction[] accepted) {
+        for (Transaction tx : accepted) {
+            if (tx.hash() != null) {
+                Entry copy = byHash.get(ByteBuffer.wrap(tx.hash()));
+                if (copy != null) {
+                    remove(copy);
+                }
+            }
+            for (Transaction.Input in : tx.inputs()) {
+                if (in.prevTxHash != null) {
+                    Entry conflict = claims.get(new UTXO(in.prevTxHash, in.outputIndex));
+                    if (conflict != null) {
+                        remove(conflict);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Evicts every transaction which has been pending for longer than {@code maxAgeMillis} */
+    public synchronized void expire(long maxAgeMillis) {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        // byHash keeps insertion order, so the oldest entries come first
+        Iterator<Entry> oldestFirst = byHash.values().iterator();
+        while (oldestFirst.hasNext()) {
+            Entry entry = oldestFirst.next();
+            if (entry.arrivalMillis > cutoff) {
+                break;
+            }
+            oldestFirst.remove();
+            unindex(entry);
+        }
+    }
+
+    /** @return the number of pending transactions */
+    public synchronized int size() {
+        return byHash.size();
+    }
+
+    /** @return the accounted memory of the pending transactions, in bytes */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void remove(Entry entry) {
+        byHash.remove(entry.hash);
+        unindex(entry);
+    }
+
+    private void unindex(Entry entry) {
+        for (Transaction.Input in : entry.tx.inputs()) {
+            claims.remove(new UTXO(in.prevTxHash, in.outputIndex));
+        }
+        selectionHeap.remove(entry);
+        evictionHeap.remove(entry);
+        bytes -= entry.size;
+    }
+}
@@ -0,0 +1,70 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Merkle root over transaction hashes.
+ *
+ * Leaves are SHA-256(0x00 || hash) and every level hashes adjacent pairs with SHA-256(0x01 || left || right),
+ * so that an inner node can not be taken for a leaf: {@code [a, b, c]} and {@code [H(a || b), c]} give
+ * different roots. A node left without a partner is carried up to the next level as is, rather than paired
+ * with itself, so a list and the same list with its last hash repeated do not share a root either. The root
+ * of no transactions is 32 zero bytes.
+ */
+public final class MerkleTree {
+
+    public static final int HASH_SIZE = 32;
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private MerkleTree() {
+    }
+
+    /** @return the Merkle root over the hashes of {@code txs}, in order */
+    public static byte[] root(Transaction[] txs) {
+        byte[][] level = new byte[txs.length][];
+        for (int i = 0; i < txs.length; i++) {
+            level[i] = txs[i].hash();
+        }
+        return root(level);
+    }
+
+    /** @return the Merkle root over {@code leaves}, in order; the array is used as scratch space */
+    public static byte[] root(byte[][] leaves) {
+        if (leaves.length == 0) {
+            return new byte[HASH_SIZE];
+        }
+        MessageDigest md = sha256();
+        for (int i = 0; i < leaves.length; i++) {
+            md.update(LEAF);
+            md.update(leaves[i]);
+            leaves[i] = md.digest();
+        }
+        int size = leaves.length;
+        while (size > 1) {
+            int next = 0;
+            for (int i = 0; i < size; i += 2) {
+                if (i + 1 < size) {
+                    md.update(NODE);
+                    md.update(leaves[i]);
+                    md.update(leaves[i + 1]);
+                    leaves[next++] = md.digest();
+                } else {
+                    leaves[next++] = leaves[i];
+                }
+            }
+            size = next;
+        }
+        return leaves[0];
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new RuntimeException(x);
+        }
+    }
+}
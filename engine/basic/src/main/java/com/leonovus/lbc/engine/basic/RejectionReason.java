@@ -0,0 +1,23 @@
+package com.leonovus.lbc.engine.basic;
+
+/** Why {@link TxHandler} turned a proposed transaction down */
+public enum RejectionReason {
+    /** the transaction has no hash, or an input without a previous transaction hash */
+    MALFORMED,
+    /** an input spends an output which is neither in the pool nor created earlier in the epoch */
+    UNKNOWN_INPUT,
+    /** an input spends an output already spent by another transaction of the epoch */
+    DOUBLE_SPEND,
+    /** two inputs of the transaction spend the same output */
+    DUPLICATE_INPUT,
+    /** an input signature does not verify against the address owning the spent output */
+    INVALID_SIGNATURE,
+    /** an output has a negative value */
+    NEGATIVE_OUTPUT,
+    /** the outputs are worth more than the inputs */
+    INSUFFICIENT_INPUTS,
+    /** the values of the inputs or of the outputs add up to more than a {@code long} holds */
+    AMOUNT_OVERFLOW,
+    /** the transaction depends, directly or not, on its own outputs */
+    DEPENDENCY_CYCLE
+}
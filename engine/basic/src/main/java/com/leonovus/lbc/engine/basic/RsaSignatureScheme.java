@@ -0,0 +1,74 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/** SHA-256 with RSA (PKCS #1 v1.5) through the JDK provider, with 2048-bit keys; the default scheme */
+public class RsaSignatureScheme implements SignatureScheme {
+
+    private static final String ALGORITHM = "SHA256withRSA";
+    private static final int KEY_SIZE = 2048;
+
+    /**
+     * Signature engines are not thread safe, but looking one up through the provider framework for every
+     * input is expensive, so every thread keeps its own instance and re-initializes it per verification.
+     */
+    private static final ThreadLocal<Signature> SIGNATURE = ThreadLocal.withInitial(() -> {
+        try {
+            return Signature.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    @Override
+    public String getName() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(KEY_SIZE);
+            return generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public byte[] sign(PrivateKey key, byte[] message) {
+        Signature sig = SIGNATURE.get();
+        try {
+            sig.initSign(key);
+            sig.update(message);
+            return sig.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Cannot sign with " + key.getAlgorithm() + " key", e);
+        }
+    }
+
+    @Override
+    public boolean verify(PublicKey key, byte[] message, byte[] signature) {
+        if (key == null || message == null || signature == null) {
+            return false;
+        }
+        Signature sig = SIGNATURE.get();
+        try {
+            // a failed init leaves the instance unusable rather than verifying under the previous key
+            sig.initVerify(key);
+            sig.update(message);
+            return sig.verify(signature);
+        } catch (InvalidKeyException | SignatureException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, concurrent cache of signatures known to be valid, so that a transaction submitted again does
+ * not pay for its signature checks twice.
+ *
+ * An entry is the SHA-256 of everything the outcome of a check depends on: the signed message (which
+ * covers the spent output and the outputs of the transaction), the encoded key and the signature. Hashes
+ * supplied with a transaction are never trusted, so a transaction which merely claims the hash of a
+ * verified one cannot borrow its verification. Hashing those few hundred bytes costs a small fraction of
+ * an RSA verification.
+ *
+ * Entries are spread over independently locked segments, each evicting its least recently used entry when
+ * full.
+ */
+public class SignatureCache {
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(MerkleTree::sha256);
+
+    /** A digest as a map key; digests are uniform, so their first bytes make a good hash code */
+    private static final class Key {
+        final byte[] digest;
+        final int hash;
+
+        Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = ByteBuffer.wrap(digest).getInt();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(digest, ((Key) other).digest);
+        }
+    }
+
+    @SuppressWarnings("serial") // never serialized
+    private static final class Segment extends LinkedHashMap<Key, Boolean> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** Creates a cache of up to about {@code maxEntries} verified signatures */
+    public SignatureCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        }
+        int count = Math.min(Integer.highestOneBit(Math.max(1, maxEntries / 64)),
+                Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) * 2);
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((maxEntries + count - 1) / count);
+        }
+    }
+
+    /** @return the digest identifying the check of {@code signature} over {@code message} under {@code key} */
+    static byte[] digest(PublicKey key, byte[] message, byte[] signature) {
+        MessageDigest md = SHA256.get();
+        byte[] encodedKey = key.getEncoded();
+        updateFramed(md, message);
+        updateFramed(md, encodedKey);
+        updateFramed(md, signature);
+        return md.digest();
+    }
+
+    /** @return true if the check identified by {@code digest} is known to have succeeded */
+    boolean contains(byte[] digest) {
+        Key key = new Key(digest);
+        Segment segment = segmentOf(key);
+        boolean found;
+        synchronized (segment) {
+            found = segment.get(key) != null;
+        }
+        (found ? hits : misses).increment();
+        return found;
+    }
+
+    /** Records that the check identified by {@code digest} succeeded */
+    void add(byte[] digest) {
+        Key key = new Key(digest);
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            segment.put(key, Boolean.TRUE);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the share of lookups which found a verified signature, 0 before the first lookup */
+    public double getHitRatio() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /** @return the number of cached signatures */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentOf(Key key) {
+        // the low bits pick the bucket inside the segment's map, use the high ones here
+        return segments[(key.hash >>> 16) & (segments.length - 1)];
+    }
+
+    private static void updateFramed(MessageDigest md, byte[] bytes) {
+        int length = bytes.length;
+        md.update((byte) (length >>> 24));
+        md.update((byte) (length >>> 16));
+        md.update((byte) (length >>> 8));
+        md.update((byte) length);
+        md.update(bytes);
+    }
+}
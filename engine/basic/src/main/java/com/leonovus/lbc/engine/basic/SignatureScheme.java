@@ -0,0 +1,44 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * Digital signature algorithm securing the inputs of transactions. Implementations are stateless and thread
+ * safe, so one instance serves every verifier thread.
+ */
+public interface SignatureScheme {
+
+    /** @return the name of the algorithm, for logs and reports */
+    String getName();
+
+    /** @return a fresh key pair of this scheme */
+    KeyPair generateKeyPair();
+
+    /**
+     * @return the signature of {@code message} under {@code key}
+     * @throws IllegalArgumentException if {@code key} is not a private key of this scheme
+     */
+    byte[] sign(PrivateKey key, byte[] message);
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under {@code key}; false,
+     *         never an exception, for keys of another scheme and malformed signatures
+     */
+    boolean verify(PublicKey key, byte[] message, byte[] signature);
+
+    /**
+     * Verifies several signatures at once. Schemes which can check a batch faster than its signatures one by
+     * one override this; the result must be the same as verifying each signature on its own.
+     *
+     * @return for every signature, whether it is valid
+     */
+    default boolean[] verifyBatch(PublicKey[] keys, byte[][] messages, byte[][] signatures) {
+        boolean[] valid = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            valid[i] = verify(keys[i], messages[i], signatures[i]);
+        }
+        return valid;
+    }
+}
@@ -0,0 +1,202 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verification stage of an epoch: checks the signature of every input of every proposed transaction.
+ *
+ * Inputs are flattened into one work list and claimed in small batches by the caller thread plus up to
+ * {@code parallelism - 1} tasks submitted to the executor, so a busy (or sequential) executor never
+ * stalls the epoch - the caller simply ends up doing more of the work. The result does not depend on
+ * how the work was split, so parallel and sequential mode accept exactly the same transactions.
+ *
+ * The signatures of a batch which are not found in the cache are handed to the
+ * {@link SignatureScheme#verifyBatch batch verification} of the scheme together.
+ */
+public class SignatureVerifier {
+
+    /** number of inputs a worker claims at once, large enough to keep the claim counter cold */
+    private static final int BATCH = 32;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final SignatureCache cache;
+    private final SignatureScheme scheme;
+    private final LongAdder bytesHashed = new LongAdder();
+
+    /** Creates a verifier which spreads the work over the common fork-join pool */
+    public SignatureVerifier() {
+        this(ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a verifier which uses {@code executor} for up to {@code parallelism} concurrent workers
+     * (the caller thread included). A null executor or parallelism of 1 verifies on the caller thread.
+     */
+    public SignatureVerifier(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, null);
+    }
+
+    /**
+     * Creates a verifier which also skips the signatures found in {@code cache}, and adds the ones it
+     * verifies to it. A null cache checks every signature.
+     */
+    public SignatureVerifier(ExecutorService executor, int parallelism, SignatureCache cache) {
+        this(executor, parallelism, cache, new RsaSignatureScheme());
+    }
+
+    /** Creates a verifier of {@code scheme} signatures; the other constructors verify RSA signatures */
+    public SignatureVerifier(ExecutorService executor, int parallelism, SignatureCache cache,
+            SignatureScheme scheme) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.executor = executor;
+        this.parallelism = executor == null ? 1 : parallelism;
+        this.cache = cache;
+        this.scheme = scheme;
+    }
+
+    /** @return a verifier which checks every signature on the caller thread */
+    public static SignatureVerifier sequential() {
+        return new SignatureVerifier(null, 1);
+    }
+
+    /** @return a verifier which checks every {@code scheme} signature on the caller thread */
+    public static SignatureVerifier sequential(SignatureScheme scheme) {
+        return new SignatureVerifier(null, 1, null, scheme);
+    }
+
+    public SignatureScheme getScheme() {
+        return scheme;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** @return the cache of verified signatures, or null if there is none */
+    public SignatureCache getCache() {
+        return cache;
+    }
+
+    /** @return the number of signed bytes hashed by this verifier so far */
+    public long getBytesHashed() {
+        return bytesHashed.sum();
+    }
+
+    /**
+     * Verifies every input of every transaction in {@code txs}. {@code keys[t][i]} is the address owning the
+     * output spent by input {@code i} of transaction {@code t}, or null when that output is unknown, in which
+     * case the input does not verify.
+     *
+     * @return for every transaction, true if the signatures of all its inputs are valid
+     */
+    public boolean[] verify(Transaction[] txs, PublicKey[][] keys) {
+        // flatten (transaction, input) pairs so the work can be split evenly regardless of the tx shapes
+        int[] firstInput = new int[txs.length + 1];
+        for (int t = 0; t < txs.length; t++) {
+            firstInput[t + 1] = firstInput[t] + txs[t].numInputs();
+        }
+        int total = firstInput[txs.length];
+        int[] txOf = new int[total];
+        for (int t = 0; t < txs.length; t++) {
+            for (int i = firstInput[t]; i < firstInput[t + 1]; i++) {
+                txOf[i] = t;
+            }
+        }
+
+        boolean[] inputValid = new boolean[total];
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int from;
+            while ((from = next.getAndAdd(BATCH)) < total) {
+                verifyInputs(txs, keys, txOf, firstInput, from, Math.min(from + BATCH, total), inputValid);
+            }
+        };
+
+        int workers = Math.min(parallelism, (total + BATCH - 1) / BATCH);
+        List<Future<?>> futures = new ArrayList<>(Math.max(workers - 1, 0));
+        for (int w = 1; w < workers; w++) {
+            futures.add(executor.submit(worker));
+        }
+        worker.run();
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while verifying signatures", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Signature verification failed", e.getCause());
+            }
+        }
+
+        boolean[] txValid = new boolean[txs.length];
+        for (int t = 0; t < txs.length; t++) {
+            boolean valid = true;
+            for (int i = firstInput[t]; i < firstInput[t + 1] && valid; i++) {
+                valid = inputValid[i];
+            }
+            txValid[t] = valid;
+        }
+        return txValid;
+    }
+
+    /** Verifies the flattened inputs {@code from} to {@code to}, as one batch of the scheme */
+    private void verifyInputs(Transaction[] txs, PublicKey[][] keys, int[] txOf, int[] firstInput, int from,
+            int to, boolean[] inputValid) {
+        int n = to - from;
+        int[] slot = new int[n];
+        PublicKey[] batchKeys = new PublicKey[n];
+        byte[][] messages = new byte[n][];
+        byte[][] signatures = new byte[n][];
+        byte[][] digests = new byte[n][];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int t = txOf[i];
+            int index = i - firstInput[t];
+            PublicKey key = keys[t][index];
+            Transaction.Input in = txs[t].input(index);
+            if (key == null || in.signature == null) {
+                inputValid[i] = false;
+                continue;
+            }
+            byte[] message = txs[t].dataToSign(index);
+            byte[] digest = null;
+            if (cache != null) {
+                digest = SignatureCache.digest(key, message, in.signature);
+                if (cache.contains(digest)) {
+                    inputValid[i] = true;
+                    continue;
+                }
+            }
+            bytesHashed.add(message.length);
+            slot[count] = i;
+            batchKeys[count] = key;
+            messages[count] = message;
+            signatures[count] = in.signature;
+            digests[count++] = digest;
+        }
+        if (count == 0) {
+            return;
+        }
+        boolean[] valid = scheme.verifyBatch(Arrays.copyOf(batchKeys, count), Arrays.copyOf(messages, count),
+                Arrays.copyOf(signatures, count));
+        for (int c = 0; c < count; c++) {
+            inputValid[slot[c]] = valid[c];
+            if (valid[c] && digests[c] != null) {
+                cache.add(digests[c]);
+            }
+        }
+    }
+}
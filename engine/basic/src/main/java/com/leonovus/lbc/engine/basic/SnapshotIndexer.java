@@ -0,0 +1,154 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fills the indexes of a ledger started lazily from a {@link LedgerSnapshot} ({@link AddressIndex},
+ * {@link UTXOFilter}, {@link UTXOCommitment}) in the background, a chunk of the snapshot at a time between two
+ * epochs, so that the engine starts without walking the snapshot.
+ *
+ * The indexes start empty and the indexer listens to the pool in their place. The walk reads the current
+ * output of every UTXO of the snapshot, so changes to the UTXOs it has not reached yet are dropped; the other
+ * changes are passed on. Once the walk is done, the indexes follow the pool themselves. The pool must only
+ * change on the pipeline thread, which is what a pool over a {@link SnapshotUTXOStore} allows anyway.
+ */
+final class SnapshotIndexer implements UTXOPoolListener {
+
+    /** entries of the snapshot walked between two epochs */
+    static final int CHUNK_ENTRIES = 1 << 16;
+
+    private final UTXOPool pool;
+    private final LedgerSnapshot snapshot;
+    private final AddressIndex addressIndex;
+    private final UTXOFilter utxoFilter;
+    private final UTXOCommitment utxoCommitment;
+    private final UTXOPoolListener[] indexes;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    /** sorted entries of the snapshot walked so far, then one more once its overflow is walked too */
+    private long walked;
+
+    /**
+     * Starts listening to {@code pool} for the given indexes, which must be empty and not follow it, null if
+     * disabled
+     */
+    SnapshotIndexer(UTXOPool pool, LedgerSnapshot snapshot, AddressIndex addressIndex, UTXOFilter utxoFilter,
+                    UTXOCommitment utxoCommitment) {
+        this.pool = pool;
+        this.snapshot = snapshot;
+        this.addressIndex = addressIndex;
+        this.utxoFilter = utxoFilter;
+        this.utxoCommitment = utxoCommitment;
+        List<UTXOPoolListener> indexes = new ArrayList<>();
+        for (UTXOPoolListener index : new UTXOPoolListener[] {addressIndex, utxoFilter, utxoCommitment}) {
+            if (index != null) {
+                indexes.add(index);
+            }
+        }
+        this.indexes = indexes.toArray(new UTXOPoolListener[0]);
+        pool.addListener(this);
+    }
+
+    /**
+     * Walks the snapshot on {@code pipeline}, then runs {@code onDone} there, as the indexes follow the pool
+     *
+     * @return a future completed after {@code onDone}, or failed if the pipeline stopped or the snapshot is
+     *         corrupt
+     */
+    CompletableFuture<Void> start(IngestionPipeline pipeline, Runnable onDone) {
+        next(pipeline, onDone);
+        return done;
+    }
+
+    /** Stops listening to the pool, the indexes are left as they are */
+    void detach() {
+        pool.removeListener(this);
+    }
+
+    @Override
+    public void utxoAdded(UTXO utxo, Transaction.Output txOut) {
+        if (isWalked(utxo)) {
+            for (UTXOPoolListener index : indexes) {
+                index.utxoAdded(utxo, txOut);
+            }
+        }
+    }
+
+    @Override
+    public void utxoRemoved(UTXO utxo, Transaction.Output txOut) {
+        if (isWalked(utxo)) {
+            for (UTXOPoolListener index : indexes) {
+                index.utxoRemoved(utxo, txOut);
+            }
+        }
+    }
+
+    private void next(IngestionPipeline pipeline, Runnable onDone) {
+        boolean[] finished = new boolean[1];
+        // completed off the pipeline thread: queueing the next chunk from it could wait for room forever
+        pipeline.execute(() -> {
+            finished[0] = walk();
+            if (finished[0]) {
+                pool.removeListener(this);
+                if (addressIndex != null) {
+                    addressIndex.follow();
+                }
+                if (utxoFilter != null) {
+                    utxoFilter.follow();
+                }
+                if (utxoCommitment != null) {
+                    utxoCommitment.follow();
+                }
+                onDone.run();
+            }
+        }).whenCompleteAsync((result, e) -> {
+            if (e != null) {
+                done.completeExceptionally(e);
+            } else if (finished[0]) {
+                done.complete(null);
+            } else {
+                next(pipeline, onDone);
+            }
+        });
+    }
+
+    /** @return true once the whole snapshot is walked */
+    private boolean walk() {
+        long entries = snapshot.entryCount();
+        if (walked < entries) {
+            long end = Math.min(walked + CHUNK_ENTRIES, entries);
+            for (long position = walked; position < end; position++) {
+                snapshot.verifyEntry(position);
+                index(snapshot.utxo(position));
+            }
+            walked = end;
+            return false;
+        }
+        for (Map.Entry<UTXO, Transaction.Output> entry : snapshot.overflow().entrySet()) {
+            index(entry.getKey());
+        }
+        walked = entries + 1;
+        return true;
+    }
+
+    /** Passes the current output of {@code utxo}, if it still is in the pool, on to the indexes */
+    private void index(UTXO utxo) {
+        Transaction.Output txOut = pool.getTxOutput(utxo);
+        if (txOut != null) {
+            for (UTXOPoolListener index : indexes) {
+                index.utxoAdded(utxo, txOut);
+            }
+        }
+    }
+
+    /** @return false if {@code utxo} is in the snapshot, at a place the walk has not reached yet */
+    private boolean isWalked(UTXO utxo) {
+        long position = snapshot.find(utxo);
+        if (position >= 0) {
+            return position < walked;
+        }
+        return walked > snapshot.entryCount() || !snapshot.overflow().containsKey(utxo);
+    }
+}
@@ -0,0 +1,115 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A {@link UTXOStore} reading the UTXOs of a {@link LedgerSnapshot} in place, from the mapped file, so that
+ * a ledger of any size is usable as soon as the snapshot is opened.
+ *
+ * Changes are kept on the heap on top of the snapshot, which is never written: the outputs put since the
+ * snapshot was opened, and the snapshot UTXOs removed or replaced since. Lookups of UTXOs which were not
+ * changed cost a binary search in the snapshot index and one in a chunk. {@link #keys} walks the whole
+ * snapshot.
+ *
+ * Not thread safe, like {@link HashUTXOStore}; only {@link #warmUp} may run alongside the other methods.
+ */
+public class SnapshotUTXOStore implements UTXOStore {
+
+    private final LedgerSnapshot snapshot;
+    private final HashMap<UTXO, Transaction.Output> added;
+    /** UTXOs of the snapshot which were removed, or replaced by an entry of {@link #added} */
+    private final HashSet<UTXO> removed;
+
+    public SnapshotUTXOStore(LedgerSnapshot snapshot) {
+        this.snapshot = snapshot;
+        added = new HashMap<>();
+        removed = new HashSet<>();
+    }
+
+    private SnapshotUTXOStore(SnapshotUTXOStore store) {
+        snapshot = store.snapshot;
+        added = new HashMap<>(store.added);
+        removed = new HashSet<>(store.removed);
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (added.put(utxo, txOut) == null && !removed.contains(utxo) && inSnapshot(utxo)) {
+            removed.add(utxo);
+        }
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        added.remove(utxo);
+        if (!removed.contains(utxo) && inSnapshot(utxo)) {
+            removed.add(utxo);
+        }
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        Transaction.Output output = added.get(utxo);
+        if (output != null || removed.contains(utxo)) {
+            return output;
+        }
+        long position = snapshot.find(utxo);
+        return position >= 0 ? snapshot.output(position) : snapshot.overflow().get(utxo);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return added.containsKey(utxo) || !removed.contains(utxo) && inSnapshot(utxo);
+    }
+
+    @Override
+    public int size() {
+        return (int) (snapshot.size() - removed.size() + added.size());
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<>(size());
+        for (long position = 0; position < snapshot.entryCount(); position++) {
+            snapshot.verifyEntry(position);
+            UTXO utxo = snapshot.utxo(position);
+            if (!removed.contains(utxo)) {
+                keys.add(utxo);
+            }
+        }
+        for (UTXO utxo : snapshot.overflow().keySet()) {
+            if (!removed.contains(utxo)) {
+                keys.add(utxo);
+            }
+        }
+        keys.addAll(added.keySet());
+        return keys;
+    }
+
+    /** @return a store sharing the snapshot, with a copy of the changes */
+    @Override
+    public UTXOStore copy() {
+        return new SnapshotUTXOStore(this);
+    }
+
+    /**
+     * Verifies the checksums of the whole snapshot and decodes its addresses in parallel, which lookups
+     * would otherwise do on first use. May run on another thread while the store is used.
+     *
+     * @throws IllegalStateException if a chunk of the snapshot is corrupt
+     */
+    public void warmUp() {
+        snapshot.warmUp();
+    }
+
+    /** @return the snapshot under this store */
+    public LedgerSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    private boolean inSnapshot(UTXO utxo) {
+        return snapshot.find(utxo) >= 0 || snapshot.overflow().containsKey(utxo);
+    }
+}
@@ -0,0 +1,177 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A thread safe {@link UTXOStore}: UTXOs are spread by hash over independent stores, each guarded by its own
+ * lock, so threads working on different outputs rarely wait for each other.
+ *
+ * Single operations lock one stripe. {@link #lock} takes the locks of several UTXOs at once, always in stripe
+ * order so that concurrent callers cannot deadlock, which is what lets a {@link UTXOPool} check and spend the
+ * inputs of an epoch atomically. {@link #size} and {@link #keys} visit the stripes one after the other and are
+ * only exact while no other thread changes the store.
+ */
+public class StripedUTXOStore implements UTXOStore {
+
+    private final UTXOStore[] stripes;
+    private final ReentrantLock[] locks;
+    private final Supplier<UTXOStore> stripeFactory;
+
+    /** Creates an empty store of {@link HashUTXOStore} stripes, a few per core */
+    public StripedUTXOStore() {
+        this(HashUTXOStore::new, Runtime.getRuntime().availableProcessors() * 16);
+    }
+
+    /**
+     * Creates an empty store of at least {@code stripeCount} stripes (rounded up to a power of two), each one
+     * created by {@code stripeFactory}, e.g. {@code CompactUTXOStore::new}
+     */
+    public StripedUTXOStore(Supplier<UTXOStore> stripeFactory, int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+        }
+        int count = Integer.highestOneBit(stripeCount - 1) << 1;
+        this.stripeFactory = stripeFactory;
+        stripes = new UTXOStore[Math.max(count, 1)];
+        locks = new ReentrantLock[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = stripeFactory.get();
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    private StripedUTXOStore(StripedUTXOStore store) {
+        stripeFactory = store.stripeFactory;
+        stripes = new UTXOStore[store.stripes.length];
+        locks = new ReentrantLock[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            store.locks[i].lock();
+            try {
+                stripes[i] = store.stripes[i].copy();
+            } finally {
+                store.locks[i].unlock();
+            }
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        int stripe = stripeOf(utxo);
+        locks[stripe].lock();
+        try {
+            stripes[stripe].put(utxo, txOut);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        int stripe = stripeOf(utxo);
+        locks[stripe].lock();
+        try {
+            stripes[stripe].remove(utxo);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        int stripe = stripeOf(utxo);
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].get(utxo);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        int stripe = stripeOf(utxo);
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].contains(utxo);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                size += stripes[i].size();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                keys.addAll(stripes[i].keys());
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public UTXOStore copy() {
+        return new StripedUTXOStore(this);
+    }
+
+    /**
+     * Locks the stripes of all {@code utxos}, so that no other thread reads or changes them until
+     * {@link #unlock} is called with the returned stripes. The calling thread may still use the store.
+     *
+     * @return the locked stripes, in locking order
+     */
+    int[] lock(Collection<UTXO> utxos) {
+        boolean[] touched = new boolean[stripes.length];
+        int count = 0;
+        for (UTXO utxo : utxos) {
+            int stripe = stripeOf(utxo);
+            if (!touched[stripe]) {
+                touched[stripe] = true;
+                count++;
+            }
+        }
+        int[] locked = new int[count];
+        int n = 0;
+        for (int stripe = 0; stripe < touched.length; stripe++) {
+            if (touched[stripe]) {
+                locks[stripe].lock();
+                locked[n++] = stripe;
+            }
+        }
+        return locked;
+    }
+
+    /** Releases the stripes locked by {@link #lock} */
+    void unlock(int[] locked) {
+        for (int i = locked.length - 1; i >= 0; i--) {
+            locks[locked[i]].unlock();
+        }
+    }
+
+    private int stripeOf(UTXO utxo) {
+        // mixed, so that the stripe does not depend on the bits which pick the bucket inside the stripe
+        int h = utxo.hashCode();
+        return (h ^ (h >>> 16)) * 0x9E3779B9 >>> 16 & (stripes.length - 1);
+    }
+}
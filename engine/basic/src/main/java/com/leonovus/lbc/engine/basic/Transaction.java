@@ -1,12 +1,22 @@
 package com.leonovus.lbc.engine.basic;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
+/**
+ * A transaction, either mutable (created empty, then filled, signed and {@link #computeHash hashed} in place)
+ * or frozen (made by a {@link Builder}, or {@link #freeze() frozen} from a mutable one).
+ *
+ * A frozen transaction can not be changed: its inputs are private copies and the getters hand out copies.
+ * Its raw bytes, hash and the data signed by each input are computed on first use and kept, and since none
+ * of them can go stale, validation threads share them without copying or locking.
+ */
 public class Transaction {
     /**
      * Input of the transaction is output of a previous transaction.
@@ -14,7 +24,7 @@ public class Transaction {
      * An output in a transaction which contains two fields:
      * a value field for transferring zero or more satoshis and a pubkey script for indicating what conditions must be fulfilled for those satoshis to be further spent.
      */
-    public class Input {
+    public static class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
         /** used output's index in the previous transaction */
@@ -36,6 +46,63 @@ public class Transaction {
             else
                 signature = Arrays.copyOf(sig, sig.length);
         }
+
+        Input copy() {
+            Input copy = new Input(prevTxHash, outputIndex);
+            copy.addSignature(signature);
+            return copy;
+        }
+    }
+
+    /**
+     * Builds a frozen transaction: add the inputs and outputs, sign every input over
+     * {@link #getRawDataToSign}, then {@link #build}. The builder may be changed further and built again.
+     */
+    public static final class Builder {
+        private final Transaction tx;
+
+        public Builder() {
+            tx = new Transaction();
+        }
+
+        /** Starts from the inputs, signatures and outputs of {@code tx} */
+        public Builder(Transaction tx) {
+            this.tx = new Transaction(tx, false);
+        }
+
+        public Builder addInput(byte[] prevTxHash, int outputIndex) {
+            tx.addInput(prevTxHash, outputIndex);
+            return this;
+        }
+
+        public Builder addOutput(long value, PublicKey address) {
+            tx.addOutput(value, address);
+            return this;
+        }
+
+        public Builder addOutput(long value, Address address) {
+            tx.addOutput(value, address);
+            return this;
+        }
+
+        /** @return the bytes the owner of input {@code index} signs, see {@link Transaction#getRawDataToSign} */
+        public byte[] getRawDataToSign(int index) {
+            return tx.getRawDataToSign(index);
+        }
+
+        public Builder addSignature(byte[] signature, int index) {
+            tx.addSignature(signature, index);
+            return this;
+        }
+
+        public int numInputs() {
+            return tx.numInputs();
+        }
+
+        /** @return a frozen transaction of what was added so far */
+        public Transaction build() {
+            return new Transaction(tx, true);
+        }
     }
 
     /**
@@ -49,49 +116,134 @@ public class Transaction {
      *
      * Outputs are tied to transaction identifiers (TXIDs), which are the hashes of signed transactions.
      */
-    public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+    public static class Output {
+        /** value of the output in base units (the smallest coin fraction, like satoshis) */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
+        /** interned form of {@link #address}, null until needed */
+        private Address interned;
+        /** the value of {@link #address} {@link #interned} was made for */
+        private PublicKey internedFor;
 
-        public Output(double v, PublicKey addr) {
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
+
+        public Output(long v, Address addr) {
+            value = v;
+            address = addr == null ? null : addr.getKey();
+            interned = addr;
+            internedFor = address;
+        }
+
+        /** @return the interned address of the recipient, which carries its encoding, or null if there is none */
+        public Address getAddress() {
+            if (address == null) {
+                return null;
+            }
+            if (interned == null || internedFor != address) {
+                // first use, or the public field was reassigned
+                interned = Address.of(address);
+                internedFor = address;
+            }
+            return interned;
+        }
     }
 
-    /** hash of the transaction, its unique id */
-    private byte[] hash;
-    private ArrayList<Input> inputs;
-    private ArrayList<Output> outputs;
+    private static final long[] NO_AMOUNTS = new long[0];
+    private static final Address[] NO_ADDRESSES = new Address[0];
+
+    /** hash of the transaction, its unique id; computed on first use if frozen */
+    private volatile byte[] hash;
+    /** the inputs, an unmodifiable list of private copies if frozen */
+    private List<Input> inputs;
+    /**
+     * The outputs, as parallel arrays of values and interned addresses rather than one object each: 12
+     * bytes per output instead of 36 (compressed oops), and value checks run over a plain {@code long[]}
+     */
+    private long[] amounts;
+    private Address[] addresses;
+    private int numOutputs;
+
+    private final boolean frozen;
+    /** memoized forms of a frozen transaction, null until first used */
+    private volatile byte[] rawTx;
+    private final AtomicReferenceArray<byte[]> dataToSign;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
-        outputs = new ArrayList<Output>();
+        amounts = NO_AMOUNTS;
+        addresses = NO_ADDRESSES;
+        frozen = false;
+        dataToSign = null;
     }
 
+    /** Creates a mutable copy of {@code tx}, with copies of its inputs */
     public Transaction(Transaction tx) {
-        hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        this(tx, false);
+        byte[] hash = tx.hash();
+        this.hash = hash == null ? null : hash.clone();
+    }
+
+    /** Copies the inputs and outputs of {@code tx}, not its hash */
+    private Transaction(Transaction tx, boolean frozen) {
+        ArrayList<Input> inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs) {
+            inputs.add(in.copy());
+        }
+        this.inputs = frozen ? Collections.unmodifiableList(inputs) : inputs;
+        amounts = Arrays.copyOf(tx.amounts, tx.numOutputs);
+        addresses = Arrays.copyOf(tx.addresses, tx.numOutputs);
+        numOutputs = tx.numOutputs;
+        this.frozen = frozen;
+        dataToSign = frozen ? new AtomicReferenceArray<byte[]>(inputs.size()) : null;
+    }
+
+    /** @return true if the transaction can not be changed, see {@link Builder} */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * @return a frozen copy of the inputs, signatures and outputs of this transaction, or this transaction if
+     *         it is frozen already. The hash of the copy is computed from its content, not copied.
+     */
+    public Transaction freeze() {
+        return frozen ? this : new Transaction(this, true);
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
+        checkMutable();
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
     }
 
-    public void addOutput(double value, PublicKey address) {
-        Output op = new Output(value, address);
-        outputs.add(op);
+    /** Adds an output paying {@code value} base units to {@code address} */
+    public void addOutput(long value, PublicKey address) {
+        addOutput(value, address == null ? null : Address.of(address));
+    }
+
+    public void addOutput(long value, Address address) {
+        checkMutable();
+        if (numOutputs == amounts.length) {
+            int capacity = Math.max(4, numOutputs * 2);
+            amounts = Arrays.copyOf(amounts, capacity);
+            addresses = Arrays.copyOf(addresses, capacity);
+        }
+        amounts[numOutputs] = value;
+        addresses[numOutputs] = address;
+        numOutputs++;
     }
 
     public void removeInput(int index) {
+        checkMutable();
         inputs.remove(index);
     }
 
     public void removeInput(UTXO ut) {
+        checkMutable();
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
@@ -104,56 +256,28 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
-
-        if (index > inputs.size()) {
+        if (index >= inputs.size()) {
             return null;
         }
+        return frozen ? dataToSign(index).clone() : TransactionCodec.encodeDataToSign(this, index);
+    }
 
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-
-        // The idea of signature is to compose previous output hash of belonging transaction with index (converted to bytes)
-        // plus values and addresses (in bytes)
-        if (prevTxHash != null) {
-            for (int i = 0; i < prevTxHash.length; i++) {
-                sigData.add(prevTxHash[i]);
-            }
-        }
-
-        for (int i = 0; i < outputIndex.length; i++) {
-            sigData.add(outputIndex[i]);
+    /** @return the data signed by input {@code index}, kept if frozen and then not to be modified */
+    byte[] dataToSign(int index) {
+        if (!frozen) {
+            return TransactionCodec.encodeDataToSign(this, index);
         }
-
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-
-            for (int i = 0; i < value.length; i++) {
-                sigData.add(value[i]);
-            }
-
-            for (int i = 0; i < addressBytes.length; i++) {
-                sigData.add(addressBytes[i]);
-            }
+        byte[] data = dataToSign.get(index);
+        if (data == null) {
+            // racing threads compute equal arrays, any of them may be kept
+            data = TransactionCodec.encodeDataToSign(this, index);
+            dataToSign.set(index, data);
         }
-
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData) {
-            sigD[i++] = sb;
-        }
-
-        return sigD;
+        return data;
     }
 
     public void addSignature(byte[] signature, int index) {
+        checkMutable();
         inputs.get(index).addSignature(signature);
     }
 
@@ -162,55 +286,33 @@ public class Transaction {
      * outputs (value + address)
      */
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-
-            if (prevTxHash != null) {
-                for (int i = 0; i < prevTxHash.length; i++) {
-                    rawTx.add(prevTxHash[i]);
-                }
-            }
-
-            for (int i = 0; i < outputIndex.length; i++) {
-                rawTx.add(outputIndex[i]);
-            }
+        return frozen ? rawTx().clone() : TransactionCodec.encodeRawTx(this);
+    }
 
-            if (signature != null) {
-                for (int i = 0; i < signature.length; i++) {
-                    rawTx.add(signature[i]);
-                }
-            }
+    /** @return the raw transaction, kept if frozen and then not to be modified */
+    byte[] rawTx() {
+        if (!frozen) {
+            return TransactionCodec.encodeRawTx(this);
         }
-
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
+        byte[] raw = rawTx;
+        if (raw == null) {
+            raw = TransactionCodec.encodeRawTx(this);
+            rawTx = raw;
         }
-
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return raw;
     }
 
-    public void finalize() {
+    /**
+     * Computes the hash (id) of the transaction from {@link #getRawTx()}. Call it once the transaction is
+     * signed. It was once named {@code finalize()}, which overrode {@link Object#finalize()}: the GC then
+     * queued every transaction for finalization and re-hashed it on the finalizer thread. A frozen transaction
+     * hashes itself when its hash is first asked for, so this only makes sure it is done.
+     */
+    public void computeHash() {
+        if (frozen) {
+            hash();
+            return;
+        }
         try {
             // MessageDigest class provides applications the functionality of a message digest algorithm, such as SHA-1 or SHA-256.
             // Message digests are secure one-way hash functions that take arbitrary-sized data and output a fixed-length hash value.
@@ -223,40 +325,117 @@ public class Transaction {
     }
 
     public void setHash(byte[] h) {
+        checkMutable();
         hash = h;
     }
 
+    /** @return the hash, a copy of it if the transaction is frozen */
     public byte[] getHash() {
-        return hash;
+        byte[] h = hash();
+        return frozen && h != null ? h.clone() : h;
     }
 
+    /** @return the hash itself, computed first if the transaction is frozen; not to be modified */
+    byte[] hash() {
+        byte[] h = hash;
+        if (h == null && frozen) {
+            MessageDigest md = MerkleTree.sha256();
+            h = md.digest(rawTx());
+            hash = h;
+        }
+        return h;
+    }
+
+    /** @return the inputs, or copies of them if the transaction is frozen */
     public ArrayList<Input> getInputs() {
+        if (!frozen) {
+            return (ArrayList<Input>) inputs;
+        }
+        ArrayList<Input> copies = new ArrayList<Input>(inputs.size());
+        for (Input in : inputs) {
+            copies.add(in.copy());
+        }
+        return copies;
+    }
+
+    /** @return the inputs themselves, read only */
+    List<Input> inputs() {
         return inputs;
     }
 
+    /** @return input {@code index} itself, read only, or null if there is none */
+    Input input(int index) {
+        return index < inputs.size() ? inputs.get(index) : null;
+    }
+
+    /** @return copies of the outputs; changing them does not change the transaction */
     public ArrayList<Output> getOutputs() {
+        ArrayList<Output> outputs = new ArrayList<Output>(numOutputs);
+        for (int i = 0; i < numOutputs; i++) {
+            outputs.add(new Output(amounts[i], addresses[i]));
+        }
         return outputs;
     }
 
+    /** @return input {@code index}, or a copy of it if the transaction is frozen; null if there is none */
     public Input getInput(int index) {
         if (index < inputs.size()) {
-            return inputs.get(index);
+            return frozen ? inputs.get(index).copy() : inputs.get(index);
         }
         return null;
     }
 
+    /** @return a copy of output {@code index}, or null if there is none; changing it does not change the transaction */
     public Output getOutput(int index) {
-        if (index < outputs.size()) {
-            return outputs.get(index);
+        if (index < numOutputs) {
+            return new Output(amounts[index], addresses[index]);
         }
         return null;
     }
 
+    /** @return the value of output {@code index} in base units */
+    public long getOutputValue(int index) {
+        if (index >= numOutputs) {
+            throw new IndexOutOfBoundsException("Output " + index + " of " + numOutputs);
+        }
+        return amounts[index];
+    }
+
+    /** @return the address of output {@code index} */
+    public Address getOutputAddress(int index) {
+        if (index >= numOutputs) {
+            throw new IndexOutOfBoundsException("Output " + index + " of " + numOutputs);
+        }
+        return addresses[index];
+    }
+
+    /**
+     * @return the total value of the outputs, or -1 if one of them is negative or the total overflows.
+     *         Partial sums of non-negative values only turn negative on overflow, so both cases show up in
+     *         the sign bit and the loop needs no branch.
+     */
+    long outputSum() {
+        long[] amounts = this.amounts;
+        long sum = 0;
+        long signs = 0;
+        for (int i = 0; i < numOutputs; i++) {
+            sum += amounts[i];
+            signs |= amounts[i] | sum;
+        }
+        return signs < 0 ? -1 : sum;
+    }
+
     public int numInputs() {
         return inputs.size();
     }
 
     public int numOutputs() {
-        return outputs.size();
+        return numOutputs;
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Transaction is frozen");
+        }
     }
 }
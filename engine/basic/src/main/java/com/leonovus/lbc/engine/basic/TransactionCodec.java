@@ -0,0 +1,237 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.List;
+
+/**
+ * Binary encoding of transactions.
+ *
+ * There are two layouts:
+ * <ul>
+ *     <li>the raw layouts ({@link #encodeRawTx}, {@link #encodeDataToSign}) are the exact bytes which are
+ *     hashed and signed. They are plain concatenations of the fields, so they can not be read back.</li>
+ *     <li>the framed layout ({@link #encode}, {@link #decode}) carries the same fields plus lengths and counts
+ *     so that a stream of transactions can be stored and decoded again.</li>
+ * </ul>
+ * Every method computes the exact size first and writes once, either into a fresh {@code byte[]} of that
+ * size or into a caller supplied (reusable, possibly direct) {@link ByteBuffer}.
+ */
+public final class TransactionCodec {
+
+    /** length marker for an absent (null) byte array in the framed layout */
+    private static final int NULL_LENGTH = -1;
+
+    private TransactionCodec() {
+    }
+
+    /** @return the size of {@link #encodeRawTx(Transaction)} */
+    public static int rawTxSize(Transaction tx) {
+        int size = 0;
+        for (Transaction.Input in : tx.inputs()) {
+            size += length(in.prevTxHash) + Integer.BYTES + length(in.signature);
+        }
+        return size + outputsSize(tx);
+    }
+
+    /** @return the bytes hashed into the transaction id: all inputs (with signatures) followed by all outputs */
+    public static byte[] encodeRawTx(Transaction tx) {
+        byte[] raw = new byte[rawTxSize(tx)];
+        writeRawTx(tx, ByteBuffer.wrap(raw));
+        return raw;
+    }
+
+    /** Writes {@link #encodeRawTx(Transaction)} into {@code out} at its current position */
+    public static void encodeRawTx(Transaction tx, ByteBuffer out) {
+        writeRawTx(tx, out);
+    }
+
+    /** @return the size of {@link #encodeDataToSign(Transaction, int)} */
+    public static int dataToSignSize(Transaction tx, int index) {
+        Transaction.Input in = tx.inputs().get(index);
+        return length(in.prevTxHash) + Integer.BYTES + outputsSize(tx);
+    }
+
+    /** @return the bytes signed by the owner of input {@code index}: that input followed by all outputs */
+    public static byte[] encodeDataToSign(Transaction tx, int index) {
+        Transaction.Input in = tx.inputs().get(index);
+        byte[] data = new byte[length(in.prevTxHash) + Integer.BYTES + outputsSize(tx)];
+        writeDataToSign(tx, in, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /** Writes {@link #encodeDataToSign(Transaction, int)} into {@code out} at its current position */
+    public static void encodeDataToSign(Transaction tx, int index, ByteBuffer out) {
+        writeDataToSign(tx, tx.inputs().get(index), out);
+    }
+
+    /** @return the size of {@link #encode(Transaction)} */
+    public static int encodedSize(Transaction tx) {
+        int size = Integer.BYTES + length(tx.hash()) + Integer.BYTES;
+        for (Transaction.Input in : tx.inputs()) {
+            size += Integer.BYTES + length(in.prevTxHash) + Integer.BYTES + Integer.BYTES + length(in.signature);
+        }
+        return size + Integer.BYTES + outputsSize(tx) + tx.numOutputs() * Integer.BYTES;
+    }
+
+    /**
+     * @return the framed form of {@code tx}: hash, inputs (previous hash, index, signature) and outputs
+     *         (value, encoded address), every variable length field prefixed by its length
+     */
+    public static byte[] encode(Transaction tx) {
+        byte[] encoded = new byte[encodedSize(tx)];
+        writeFramed(tx, ByteBuffer.wrap(encoded));
+        return encoded;
+    }
+
+    /** Writes {@link #encode(Transaction)} into {@code out} at its current position */
+    public static void encode(Transaction tx, ByteBuffer out) {
+        writeFramed(tx, out);
+    }
+
+    /**
+     * Reads one transaction in the framed layout from {@code in}, advancing its position past it. Addresses
+     * are looked up in place among the interned ones (see {@link Address}), only new ones are decoded.
+     *
+     * @throws IllegalArgumentException if the buffer does not hold a well formed transaction
+     */
+    public static Transaction decode(ByteBuffer in) {
+        try {
+            Transaction tx = new Transaction();
+            byte[] hash = readBytes(in);
+
+            int numInputs = readCount(in);
+            for (int i = 0; i < numInputs; i++) {
+                byte[] prevTxHash = readBytes(in);
+                int outputIndex = in.getInt();
+                byte[] signature = readBytes(in);
+                tx.addInput(prevTxHash, outputIndex);
+                tx.getInput(i).signature = signature;
+            }
+
+            int numOutputs = readCount(in);
+            for (int i = 0; i < numOutputs; i++) {
+                long value = in.getLong();
+                tx.addOutput(value, readAddress(in));
+            }
+
+            tx.setHash(hash);
+            return tx;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated transaction", e);
+        }
+    }
+
+    /** @return the public key whose X.509 encoding is {@code encoded} */
+    public static PublicKey decodeAddress(byte[] encoded) {
+        return Address.decode(encoded).getKey();
+    }
+
+    private static Address readAddress(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == NULL_LENGTH) {
+            throw new IllegalArgumentException("Output without address");
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid field length " + length);
+        }
+        Address address = Address.decode(in, in.position(), length);
+        in.position(in.position() + length);
+        return address;
+    }
+
+    private static void writeRawTx(Transaction tx, ByteBuffer out) {
+        for (Transaction.Input in : tx.inputs()) {
+            putRaw(out, in.prevTxHash);
+            out.putInt(in.outputIndex);
+            putRaw(out, in.signature);
+        }
+        writeOutputs(tx, out);
+    }
+
+    private static void writeDataToSign(Transaction tx, Transaction.Input in, ByteBuffer out) {
+        // The idea of signature is to compose previous output hash of belonging transaction with index (converted to bytes)
+        // plus values and addresses (in bytes)
+        putRaw(out, in.prevTxHash);
+        out.putInt(in.outputIndex);
+        writeOutputs(tx, out);
+    }
+
+    private static void writeFramed(Transaction tx, ByteBuffer out) {
+        putFramed(out, tx.hash());
+
+        List<Transaction.Input> inputs = tx.inputs();
+        out.putInt(inputs.size());
+        for (Transaction.Input in : inputs) {
+            putFramed(out, in.prevTxHash);
+            out.putInt(in.outputIndex);
+            putFramed(out, in.signature);
+        }
+
+        int numOutputs = tx.numOutputs();
+        out.putInt(numOutputs);
+        for (int i = 0; i < numOutputs; i++) {
+            out.putLong(tx.getOutputValue(i));
+            putFramed(out, tx.getOutputAddress(i).encoded());
+        }
+    }
+
+    /** Writes the values and addresses of the outputs, taking the encodings from the interned addresses */
+    private static void writeOutputs(Transaction tx, ByteBuffer out) {
+        int numOutputs = tx.numOutputs();
+        for (int i = 0; i < numOutputs; i++) {
+            out.putLong(tx.getOutputValue(i));
+            out.put(tx.getOutputAddress(i).encoded());
+        }
+    }
+
+    /** @return the size of the raw outputs: for each one its value and encoded address */
+    private static int outputsSize(Transaction tx) {
+        int numOutputs = tx.numOutputs();
+        int size = numOutputs * Long.BYTES;
+        for (int i = 0; i < numOutputs; i++) {
+            size += tx.getOutputAddress(i).encoded().length;
+        }
+        return size;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putRaw(ByteBuffer out, byte[] bytes) {
+        if (bytes != null) {
+            out.put(bytes);
+        }
+    }
+
+    private static void putFramed(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(NULL_LENGTH);
+        } else {
+            out.putInt(bytes.length);
+            out.put(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid field length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static int readCount(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new IllegalArgumentException("Invalid element count " + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,109 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a transaction file (see {@link TransactionFileWriter}) one transaction at a time.
+ *
+ * The file is memory-mapped one window at a time and transactions are decoded in place from the mapping,
+ * so nothing but the decoded transactions lands on the heap and files far larger than the heap (or than
+ * the 2 GB a single mapping can cover) are read at the speed of the page cache. A window is replaced by
+ * the next one, starting at the first record it does not hold entirely, once the reader gets there; the
+ * operating system reads ahead of sequential access through the mapping.
+ */
+public class TransactionFileReader implements Closeable {
+
+    private static final long WINDOW_SIZE = 64 << 20;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    /** file offset of the start of the window */
+    private long windowOffset;
+
+    /**
+     * Opens {@code file}
+     *
+     * @throws IOException if it can not be read or is not a transaction file
+     */
+    public TransactionFileReader(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            size = channel.size();
+            if (size >= TransactionFileWriter.HEADER_SIZE) {
+                map(0, TransactionFileWriter.HEADER_SIZE);
+            }
+            if (window == null || window.getInt() != TransactionFileWriter.MAGIC
+                    || window.getInt() != TransactionFileWriter.VERSION) {
+                throw new IOException(file + " is not a transaction file of a supported version");
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the next transaction of the file, or null at its end
+     * @throws IOException if the file is truncated or holds a malformed record
+     */
+    public Transaction next() throws IOException {
+        long offset = getPosition();
+        if (offset == size) {
+            return null;
+        }
+        if (window.remaining() < TransactionFileWriter.RECORD_HEADER_SIZE) {
+            map(offset, TransactionFileWriter.RECORD_HEADER_SIZE);
+        }
+        int length = window.getInt(window.position());
+        if (length < 0 || offset + TransactionFileWriter.RECORD_HEADER_SIZE + length > size) {
+            throw new IOException("Truncated or corrupt record at offset " + offset + " of " + file);
+        }
+        int recordSize = TransactionFileWriter.RECORD_HEADER_SIZE + length;
+        if (window.remaining() < recordSize) {
+            map(offset, recordSize);
+        }
+        int end = window.position() + recordSize;
+        window.position(window.position() + TransactionFileWriter.RECORD_HEADER_SIZE);
+        Transaction tx;
+        try {
+            tx = TransactionCodec.decode(window);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed record at offset " + offset + " of " + file, e);
+        }
+        if (window.position() != end) {
+            throw new IOException("Malformed record at offset " + offset + " of " + file);
+        }
+        return tx;
+    }
+
+    /** @return the file offset of the next record, i.e. the number of bytes read so far */
+    public long getPosition() {
+        return windowOffset + window.position();
+    }
+
+    /** @return the size of the file */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapping stays valid until it is garbage collected, it does not keep the file open
+        channel.close();
+    }
+
+    /** Maps the window starting at {@code offset}, large enough for a record of {@code needed} bytes */
+    private void map(long offset, int needed) throws IOException {
+        long length = Math.min(Math.max(WINDOW_SIZE, needed), size - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        windowOffset = offset;
+    }
+}
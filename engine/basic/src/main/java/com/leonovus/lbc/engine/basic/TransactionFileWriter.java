@@ -0,0 +1,77 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a transaction file, the input of the {@link BulkLoader}.
+ *
+ * The file starts with a header (magic, version) followed by one record per transaction:
+ * <pre>
+ *   int  transaction length
+ *   transaction, framed layout (see {@link TransactionCodec#encode})
+ * </pre>
+ * The length lets a reader skip or map a record without decoding it. Records go through one reusable
+ * direct buffer, so writing does not depend on the size of the file.
+ */
+public class TransactionFileWriter implements Closeable {
+
+    static final int MAGIC = 0x4C424354; // "LBCT"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 4;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long count;
+
+    /** Creates {@code file}, replacing any previous content */
+    public TransactionFileWriter(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.putInt(MAGIC).putInt(VERSION);
+    }
+
+    /** Appends {@code tx}, which must have its hash */
+    public void write(Transaction tx) throws IOException {
+        int size = TransactionCodec.encodedSize(tx);
+        if (buffer.remaining() < RECORD_HEADER_SIZE + size) {
+            flush();
+            if (buffer.capacity() < RECORD_HEADER_SIZE + size) {
+                buffer = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE + size);
+            }
+        }
+        buffer.putInt(size);
+        TransactionCodec.encode(tx, buffer);
+        count++;
+    }
+
+    /** @return the number of transactions written so far */
+    public long getCount() {
+        return count;
+    }
+
+    /** Writes the buffered records and closes the file */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
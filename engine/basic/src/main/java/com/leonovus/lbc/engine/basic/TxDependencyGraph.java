@@ -0,0 +1,202 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dependencies between the transactions proposed in one epoch, built in a single pass over the batch.
+ *
+ * An input depends on another transaction of the batch when it spends one of that transaction's outputs,
+ * i.e. when its (prevTxHash, outputIndex) is an output of a transaction in the batch. The graph gives a
+ * topological order in which every producer comes before the transactions spending its outputs, so
+ * in-batch chains can be validated in one pass, and marks the transactions which claim an output also
+ * claimed elsewhere in the batch (double spend candidates). Everything is linear in the number of inputs
+ * and outputs of the batch.
+ *
+ * Transactions linked by a dependency or by a common claimed output form a group; different groups touch
+ * different outputs, so they can be validated and applied independently (see {@link #getGroups}).
+ */
+public class TxDependencyGraph {
+
+    private final Transaction[] txs;
+
+    /** for every input (flattened per transaction) the index of the producing transaction, or -1 */
+    private final int[] producers;
+    private final int[] firstInput;
+
+    /** transactions which claim an output also claimed by another input of the batch */
+    private final boolean[] conflicting;
+
+    /** topological order; transactions caught in a dependency cycle are left out */
+    private final int[] order;
+
+    /** union-find forest of the groups, every transaction points towards the representative of its group */
+    private final int[] groupParent;
+
+    public TxDependencyGraph(Transaction[] txs) {
+        this.txs = txs;
+        int n = txs.length;
+
+        firstInput = new int[n + 1];
+        Map<UTXO, Integer> producerOf = new HashMap<>();
+        for (int t = 0; t < n; t++) {
+            Transaction tx = txs[t];
+            firstInput[t + 1] = firstInput[t] + tx.numInputs();
+            if (tx.hash() != null) {
+                for (int index = 0; index < tx.numOutputs(); index++) {
+                    // a transaction proposed twice produces its outputs once, the copy just conflicts
+                    producerOf.putIfAbsent(new UTXO(tx.hash(), index), t);
+                }
+            }
+        }
+
+        producers = new int[firstInput[n]];
+        conflicting = new boolean[n];
+        int[] dependencies = new int[n];
+        int[] dependentCount = new int[n];
+        Map<UTXO, Integer> claimedBy = new HashMap<>();
+        // lastDependent[p] == t + 1 once the edge p -> t is counted, so several inputs spending outputs of the
+        // same producer make a single edge
+        int[] lastDependent = new int[n];
+        groupParent = new int[n];
+        for (int t = 0; t < n; t++) {
+            groupParent[t] = t;
+        }
+        for (int t = 0; t < n; t++) {
+            for (int i = 0; i < txs[t].numInputs(); i++) {
+                Transaction.Input in = txs[t].input(i);
+                int producer = -1;
+                if (in.prevTxHash != null) {
+                    UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                    Integer claimant = claimedBy.putIfAbsent(utxo, t);
+                    if (claimant != null) {
+                        conflicting[t] = true;
+                        conflicting[claimant] = true;
+                        union(t, claimant);
+                    }
+                    Integer p = producerOf.get(utxo);
+                    if (p != null) {
+                        producer = p;
+                        union(t, p);
+                    }
+                }
+                producers[firstInput[t] + i] = producer;
+                if (producer >= 0 && lastDependent[producer] != t + 1) {
+                    lastDependent[producer] = t + 1;
+                    dependencies[t]++;
+                    dependentCount[producer]++;
+                }
+            }
+        }
+
+        // adjacency lists of dependents, flattened (CSR layout)
+        int[] firstDependent = new int[n + 1];
+        for (int t = 0; t < n; t++) {
+            firstDependent[t + 1] = firstDependent[t] + dependentCount[t];
+        }
+        int[] dependents = new int[firstDependent[n]];
+        int[] filled = new int[n];
+        Arrays.fill(lastDependent, 0);
+        for (int t = 0; t < n; t++) {
+            for (int i = firstInput[t]; i < firstInput[t + 1]; i++) {
+                int producer = producers[i];
+                if (producer >= 0 && lastDependent[producer] != t + 1) {
+                    lastDependent[producer] = t + 1;
+                    dependents[firstDependent[producer] + filled[producer]++] = t;
+                }
+            }
+        }
+
+        // Kahn's algorithm; the array is used as a FIFO so independent transactions keep their proposed order
+        int[] queue = new int[n];
+        int head = 0;
+        int tail = 0;
+        for (int t = 0; t < n; t++) {
+            if (dependencies[t] == 0) {
+                queue[tail++] = t;
+            }
+        }
+        while (head < tail) {
+            int t = queue[head++];
+            for (int d = firstDependent[t]; d < firstDependent[t + 1]; d++) {
+                int dependent = dependents[d];
+                if (--dependencies[dependent] == 0) {
+                    queue[tail++] = dependent;
+                }
+            }
+        }
+        order = tail == n ? queue : Arrays.copyOf(queue, tail);
+    }
+
+    /** @return the transactions of the batch, producers before the transactions spending their outputs */
+    public int[] getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the index of the transaction of the batch whose output is spent by input {@code input} of
+     *         transaction {@code tx}, or -1 if that output was not created in this batch
+     */
+    public int getProducer(int tx, int input) {
+        return producers[firstInput[tx] + input];
+    }
+
+    /** @return true if transaction {@code tx} claims an output which is claimed by another input of the batch */
+    public boolean isConflicting(int tx) {
+        return conflicting[tx];
+    }
+
+    /**
+     * Splits the batch into groups which share no output: two transactions are in the same group when one
+     * spends an output of the other or both claim the same output, directly or through other transactions.
+     *
+     * @return the groups, ordered by their first transaction in {@link #getOrder}, each one listing its
+     *         transactions in that order; transactions caught in a dependency cycle are left out
+     */
+    public int[][] getGroups() {
+        int[] groupOf = new int[txs.length];
+        Arrays.fill(groupOf, -1);
+        int[] sizes = new int[order.length];
+        int count = 0;
+        for (int t : order) {
+            int root = find(t);
+            if (groupOf[root] < 0) {
+                groupOf[root] = count++;
+            }
+            sizes[groupOf[root]]++;
+        }
+        int[][] groups = new int[count][];
+        for (int g = 0; g < count; g++) {
+            groups[g] = new int[sizes[g]];
+            sizes[g] = 0;
+        }
+        for (int t : order) {
+            int g = groupOf[find(t)];
+            groups[g][sizes[g]++] = t;
+        }
+        return groups;
+    }
+
+    private int find(int t) {
+        while (groupParent[t] != t) {
+            // path halving
+            groupParent[t] = groupParent[groupParent[t]];
+            t = groupParent[t];
+        }
+        return t;
+    }
+
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA != rootB) {
+            groupParent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    /** @return the transaction at index {@code tx} */
+    public Transaction getTransaction(int tx) {
+        return txs[tx];
+    }
+}
@@ -1,18 +1,69 @@
 package com.leonovus.lbc.engine.basic;
 
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 public class TxHandler {
 
-    private UTXOPool utxoPool;
+    /** smallest number of transactions a validation worker takes, smaller epochs stay on the caller thread */
+    private static final int MIN_CHUNK = 64;
+
+    private final UTXOPool utxoPool;
+    private final SignatureVerifier verifier;
+    private final BasicEngineMetrics metrics;
+    private final ExecutorService executor;
+    private final int parallelism;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
-     * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
-     * constructor.
+     * {@code utxoPool}. The handler takes ownership of the pool and updates it in place, one epoch at a time.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, new SignatureVerifier());
+    }
+
+    /** Creates a ledger over {@code utxoPool} which checks input signatures with {@code verifier} */
+    public TxHandler(UTXOPool utxoPool, SignatureVerifier verifier) {
+        this(utxoPool, verifier, null);
+    }
+
+    /** Creates a ledger which also records its epochs and rejections in {@code metrics}, if not null */
+    public TxHandler(UTXOPool utxoPool, SignatureVerifier verifier, BasicEngineMetrics metrics) {
+        this(utxoPool, verifier, metrics, null, 1);
+    }
+
+    /**
+     * Creates a ledger which validates the independent parts of an epoch with up to {@code parallelism}
+     * workers of {@code executor}, the caller thread included, and also applies them in parallel if the pool
+     * is {@link UTXOPool#isConcurrent concurrent}. A null executor or parallelism of 1 does everything on the
+     * caller thread.
+     *
+     * With a concurrent pool, several threads may handle epochs at once: each one checks its transactions
+     * against the pool without locking it and only claims their inputs when applying them. Of two epochs
+     * spending the same output, exactly one gets it, and the transactions of the other are validated again.
+     */
+    public TxHandler(UTXOPool utxoPool, SignatureVerifier verifier, BasicEngineMetrics metrics,
+            ExecutorService executor, int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
         this.utxoPool = utxoPool;
+        this.verifier = verifier;
+        this.metrics = metrics;
+        this.executor = executor;
+        this.parallelism = executor == null ? 1 : parallelism;
+        if(metrics != null) {
+            metrics.attach(utxoPool, verifier);
+        }
     }
 
     /**
@@ -25,51 +76,272 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        List<Transaction.Input> txInputList = tx.getInputs();
+        Transaction [] txs = new Transaction[] {tx};
+        PublicKey [][] keys = resolveKeys(txs, null);
+        return verifier.verify(txs, keys)[0] && check(tx, keys[0], new UTXOPoolDelta(utxoPool), false) == null;
+    }
 
-        for(Transaction.Input itx : txInputList) {
-            if(!utxoPool.contains(new UTXO(itx.prevTxHash, itx.outputIndex))) {
-                return false;
+    /**
+     * Same as {@link #isValidTx(Transaction)} for a transaction whose signatures were already checked by
+     * the verification stage; {@code keys} are the owners of the spent outputs, null where unknown, and
+     * {@code epoch} holds the outputs spent and created by the transactions accepted so far
+     *
+     * @param conflicting true if another transaction of the epoch claims one of the outputs {@code tx} spends
+     * @return why the transaction is invalid, or null if it is valid
+     */
+    private RejectionReason check(Transaction tx, PublicKey [] keys, UTXOPoolDelta epoch, boolean conflicting) {
+        if(tx.hash() == null) {
+            return RejectionReason.MALFORMED;
+        }
+        List<Transaction.Input> txInputList = tx.inputs();
+        Set<UTXO> claimed = txInputList.size() > 1 ? new HashSet<>() : null;
+        long inputSum = 0;
+        long signs = 0;
+
+        for(int i = 0; i < keys.length; i++) {
+            Transaction.Input itx = txInputList.get(i);
+            if(itx.prevTxHash == null) {
+                return RejectionReason.MALFORMED;
+            }
+            if(keys[i] == null) {
+                return RejectionReason.UNKNOWN_INPUT;
             }
+            UTXO utxo = new UTXO(itx.prevTxHash, itx.outputIndex);
+            Transaction.Output output = epoch.getTxOutput(utxo);
+            if(output == null) {
+                return conflicting ? RejectionReason.DOUBLE_SPEND : RejectionReason.UNKNOWN_INPUT;
+            }
+            if(claimed != null && !claimed.add(utxo)) {
+                return RejectionReason.DUPLICATE_INPUT;
+            }
+            inputSum += output.value;
+            signs |= output.value | inputSum;
+        }
+
+        long outputSum = tx.outputSum();
+        if(outputSum < 0) {
+            for(int index = 0; index < tx.numOutputs(); index++) {
+                if(tx.getOutputValue(index) < 0) {
+                    return RejectionReason.NEGATIVE_OUTPUT;
+                }
+            }
+            return RejectionReason.AMOUNT_OVERFLOW;
         }
-        return true;
+        if(signs < 0) {
+            // only a ledger built by hand can hold such outputs, validated ones never add up this way
+            return RejectionReason.AMOUNT_OVERFLOW;
+        }
+        return inputSum >= outputSum ? null : RejectionReason.INSUFFICIENT_INPUTS;
+    }
+
+    /**
+     * Looks up, for every input of every transaction, the address owning the output it spends: either an
+     * output of another transaction of the batch (according to {@code graph}, if not null) or one from the
+     * pool. This is the only part of validation that touches the pool, so it stays on the caller thread.
+     */
+    private PublicKey [][] resolveKeys(Transaction[] txs, TxDependencyGraph graph) {
+        PublicKey [][] keys = new PublicKey[txs.length][];
+        for(int t = 0; t < txs.length; t++) {
+            List<Transaction.Input> txInputList = txs[t].inputs();
+            keys[t] = new PublicKey[txInputList.size()];
+            for(int i = 0; i < keys[t].length; i++) {
+                Transaction.Input itx = txInputList.get(i);
+                int producer = graph == null ? -1 : graph.getProducer(t, i);
+                if(producer >= 0) {
+                    Address address = txs[producer].getOutputAddress(itx.outputIndex);
+                    keys[t][i] = address == null ? null : address.getKey();
+                } else {
+                    Transaction.Output output = itx.prevTxHash == null
+                            || !utxoPool.mightContain(itx.prevTxHash, itx.outputIndex) ? null
+                            : utxoPool.getTxOutput(new UTXO(itx.prevTxHash, itx.outputIndex));
+                    keys[t][i] = output == null ? null : output.address;
+                }
+            }
+        }
+        return keys;
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * Transactions may spend outputs created by other transactions of the same epoch. They are validated
+     * in dependency order (see {@link TxDependencyGraph}), so a chain is accepted in a single pass, and
+     * of several transactions spending the same output only the first valid one in that order is
+     * accepted. Accepted transactions are returned in that order too.
+     *
+     * Large epochs are split into chunks of {@link TxDependencyGraph#getGroups groups} which touch different
+     * outputs, validated (and applied, on a concurrent pool) by several workers. The groups do not see each
+     * other, so the result does not depend on how the work was split.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
 
-        List<Transaction> txList = new ArrayList<>();
-        //Create UTXOPool for the proposed transactions
-        UTXOPool proposedUTXOPool = new UTXOPool();
+        //Order the transactions so that producers come before the transactions spending their outputs
+        TxDependencyGraph graph = new TxDependencyGraph(possibleTxs);
+
+        //Verify all signatures of the epoch up front, spread over the verifier's workers
+        long start = System.nanoTime();
+        PublicKey [][] keys = resolveKeys(possibleTxs, graph);
+        boolean [] signaturesValid = verifier.verify(possibleTxs, keys);
+        long verified = System.nanoTime();
+
+        //Sort out invalid transactions, every chunk recording its changes in its own delta of the pool
+        int [][] chunks = chunks(graph);
+        boolean [] accepted = new boolean[possibleTxs.length];
+        RejectionReason [] reasons = new RejectionReason[possibleTxs.length];
+        UTXOPoolDelta [] deltas = new UTXOPoolDelta[chunks.length];
+        forEach(chunks.length, c -> deltas[c] = validate(chunks[c], possibleTxs, keys, signaturesValid, graph,
+                accepted, reasons));
+        long validated = System.nanoTime();
+
+        //Update internal pool in place, proportional to the size of the epoch. A chunk fails to apply only if
+        //another thread spent one of its inputs since it was validated, then it is validated again.
+        IntConsumer apply = c -> {
+            while(!deltas[c].tryCommit()) {
+                deltas[c] = validate(chunks[c], possibleTxs, keys, signaturesValid, graph, accepted, reasons);
+            }
+        };
+        if(utxoPool.isConcurrent()) {
+            forEach(chunks.length, apply);
+        } else {
+            for(int c = 0; c < chunks.length; c++) {
+                apply.accept(c);
+            }
+        }
 
-        //Sort out invalid transactions
-        for(Transaction tx : possibleTxs) {
-            //TODO - we assume that this is somehow valid for a while
-            if(isValidTx(tx)){
-                txList.add(tx);
+        List<Transaction> txList = new ArrayList<>();
+        for(int t : graph.getOrder()) {
+            if(accepted[t]) {
+                txList.add(possibleTxs[t]);
+            } else if(metrics != null) {
+                metrics.recordRejection(reasons[t]);
             }
         }
 
-        //create and add unspent transactions outputs to the proposed pool (supposed to be additions to updated ledger)
-        for(Transaction tx : txList) {
-            //TODO - handle index
-            int index = 0;
-            for(Transaction.Output output: tx.getOutputs()) {
-                UTXO utxo = new UTXO(tx.getHash(), index);
-                proposedUTXOPool.addUTXO(utxo, tx.getOutput(index));
-                index++;
+        if(metrics != null) {
+            for(int cycle = possibleTxs.length - graph.getOrder().length; cycle > 0; cycle--) {
+                metrics.recordRejection(RejectionReason.DEPENDENCY_CYCLE);
             }
+            metrics.recordEpoch(txList.size(), verified - start, validated - verified, System.nanoTime() - validated);
         }
-        //Update internal pool
-        utxoPool = new UTXOPool(proposedUTXOPool);
 
         return txList.stream().toArray(Transaction[] ::new);
     }
 
+    /**
+     * @return the transactions of the epoch in dependency order, in a single chunk unless the epoch is large
+     *         enough to be split between the workers; chunks hold whole groups
+     */
+    private int[][] chunks(TxDependencyGraph graph) {
+        int[] order = graph.getOrder();
+        if(parallelism == 1 || order.length < 2 * MIN_CHUNK) {
+            return new int[][] {order};
+        }
+        // a few chunks per worker, so that one large group does not leave the others idle
+        int target = Math.max(MIN_CHUNK, order.length / (parallelism * 4));
+        List<int[]> chunks = new ArrayList<>();
+        int[] packed = new int[order.length];
+        int from = 0;
+        int to = 0;
+        for(int[] group : graph.getGroups()) {
+            System.arraycopy(group, 0, packed, to, group.length);
+            to += group.length;
+            if(to - from >= target) {
+                chunks.add(Arrays.copyOfRange(packed, from, to));
+                from = to;
+            }
+        }
+        if(to > from) {
+            chunks.add(Arrays.copyOfRange(packed, from, to));
+        }
+        return chunks.toArray(new int[0][]);
+    }
+
+    /**
+     * Validates the transactions of {@code chunk}, in order, against the pool and the transactions of the chunk
+     * accepted before them, and records in {@code accepted} and {@code reasons} what became of each
+     *
+     * @return the changes to the pool made by the accepted transactions
+     */
+    private UTXOPoolDelta validate(int[] chunk, Transaction[] txs, PublicKey[][] keys, boolean[] signaturesValid,
+            TxDependencyGraph graph, boolean[] accepted, RejectionReason[] reasons) {
+        UTXOPoolDelta epoch = new UTXOPoolDelta(utxoPool);
+        for(int t : chunk) {
+            Transaction tx = txs[t];
+            RejectionReason reason = signaturesValid[t] ? check(tx, keys[t], epoch, graph.isConflicting(t))
+                    : signatureFailure(tx, keys[t]);
+            accepted[t] = reason == null;
+            reasons[t] = reason;
+            if(reason == null){
+                for(Transaction.Input itx : tx.inputs()) {
+                    epoch.removeUTXO(new UTXO(itx.prevTxHash, itx.outputIndex));
+                }
+                for(int index = 0; index < tx.numOutputs(); index++) {
+                    epoch.addUTXO(new UTXO(tx.hash(), index), tx.getOutput(index));
+                }
+            }
+        }
+        return epoch;
+    }
+
+    /** Runs {@code task} for every index below {@code count}, on the caller thread and the executor's workers */
+    private void forEach(int count, IntConsumer task) {
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int i;
+            while((i = next.getAndIncrement()) < count) {
+                task.accept(i);
+            }
+        };
+        int workers = Math.min(parallelism, count);
+        List<Future<?>> futures = new ArrayList<>(Math.max(workers - 1, 0));
+        for(int w = 1; w < workers; w++) {
+            futures.add(executor.submit(worker));
+        }
+        worker.run();
+        for(Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while validating an epoch", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Epoch validation failed", e.getCause());
+            }
+        }
+    }
+
+    /** @return why the signatures of {@code tx} did not verify: an unknown spent output, or a bad signature */
+    private static RejectionReason signatureFailure(Transaction tx, PublicKey [] keys) {
+        for(int i = 0; i < keys.length; i++) {
+            if(tx.input(i).prevTxHash == null) {
+                return RejectionReason.MALFORMED;
+            }
+            if(keys[i] == null) {
+                return RejectionReason.UNKNOWN_INPUT;
+            }
+        }
+        return RejectionReason.INVALID_SIGNATURE;
+    }
+
+    /**
+     * Applies transactions which were already accepted (e.g. replayed from the epoch log) to the pool,
+     * without validating them again.
+     */
+    public void applyTxs(Transaction[] acceptedTxs) {
+        UTXOPoolDelta epoch = new UTXOPoolDelta(utxoPool);
+        for(Transaction tx : acceptedTxs) {
+            for(Transaction.Input itx : tx.inputs()) {
+                epoch.removeUTXO(new UTXO(itx.prevTxHash, itx.outputIndex));
+            }
+            for(int index = 0; index < tx.numOutputs(); index++) {
+                epoch.addUTXO(new UTXO(tx.hash(), index), tx.getOutput(index));
+            }
+        }
+        epoch.commit();
+    }
+
     public UTXOPool getUTXOPool() {
         return utxoPool;
     }
@@ -0,0 +1,519 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Incremental commitment to the content of a {@link UTXOPool}: a 32 byte root which two pools share exactly
+ * when they hold the same outputs, and membership proofs of single outputs against it.
+ *
+ * The outputs are spread by key over {@code 2^depth} buckets, which are the leaves of a complete binary
+ * hash tree. Within a bucket, the hashes of the outputs (key, value and address) are kept in a binary trie
+ * on their bits: pages of up to {@link #PAGE_SIZE} sorted hashes, split by the next bit when they overflow
+ * and merged back when the subtree shrinks to a page. The trie only depends on the outputs, so neither the
+ * order of the changes nor the store matters. The commitment listens to the pool and only marks the pages it
+ * changes; {@link #commit} rehashes those and their paths to the root, which costs
+ * {@code O(changes * (PAGE_SIZE + log(bucket size) + depth))} instead of hashing whole buckets. An empty
+ * bucket or subtree hashes to 32 zero bytes, so does the root of an empty pool.
+ *
+ * Roots only compare between commitments of the same depth. Deeper trees have fewer outputs per bucket and
+ * shorter tries, at the cost of memory.
+ */
+public class UTXOCommitment implements UTXOPoolListener {
+
+    public static final int MIN_DEPTH = 1;
+    public static final int MAX_DEPTH = 20;
+    /** Most outputs a page of a bucket trie holds before it is split */
+    public static final int PAGE_SIZE = 16;
+
+    private static final int HASH_SIZE = MerkleTree.HASH_SIZE;
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+    private static final byte PAGE = 2;
+    private static final byte TRIE = 3;
+    private static final byte[][] NO_LEAVES = new byte[0][];
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(MerkleTree::sha256);
+
+    /**
+     * Node of the trie of a bucket: a page of sorted leaf hashes, or an inner node splitting them by their bit
+     * at its level, first bit first. The root of a bucket is its lock, and guards the whole trie.
+     */
+    private static final class Node {
+        /** sorted leaves of a page, null for an inner node */
+        byte[][] leaves = NO_LEAVES;
+        Node zero;
+        Node one;
+        /** leaves in the subtree */
+        int count;
+        /** hash as of the last commit, null if the subtree changed since */
+        byte[] hash;
+    }
+
+    /** Proof that an output is in the pool whose root is {@link #getRoot} */
+    public static final class Proof {
+        private final int depth;
+        private final int bucket;
+        private final byte[][] leaves;
+        /** siblings in the bucket trie, from the page up */
+        private final byte[][] path;
+        private final byte[][] siblings;
+        private final byte[] root;
+
+        Proof(int depth, int bucket, byte[][] leaves, byte[][] path, byte[][] siblings, byte[] root) {
+            this.depth = depth;
+            this.bucket = bucket;
+            this.leaves = leaves;
+            this.path = path;
+            this.siblings = siblings;
+            this.root = root;
+        }
+
+        /** @return the root the proof was made for */
+        public byte[] getRoot() {
+            return root.clone();
+        }
+
+        /**
+         * @return true if the output {@code utxo} mapped to {@code txOut} is in a pool whose root is
+         *         {@code root}, according to this proof
+         */
+        public boolean verify(byte[] root, UTXO utxo, Transaction.Output txOut) {
+            byte[] leaf = leafHash(utxo, txOut);
+            if (bucketOf(utxo, depth) != bucket || !contains(leaves, leaf)) {
+                return false;
+            }
+            MessageDigest md = SHA256.get();
+            byte[] hash = pageHash(md, leaves, leaves.length);
+            for (int i = 0; i < path.length; i++) {
+                int level = path.length - 1 - i;
+                hash = bit(leaf, level) == 0 ? trieHash(md, hash, path[i]) : trieHash(md, path[i], hash);
+            }
+            int node = (1 << depth) + bucket;
+            for (byte[] sibling : siblings) {
+                hash = (node & 1) == 0 ? nodeHash(md, hash, sibling) : nodeHash(md, sibling, hash);
+                node >>>= 1;
+            }
+            return Arrays.equals(hash, root);
+        }
+
+        /** @return the proof as bytes, see {@link #decode} */
+        public byte[] encode() {
+            ByteBuffer out = ByteBuffer.allocate(4 * Integer.BYTES
+                    + (1 + leaves.length + path.length + depth) * HASH_SIZE);
+            out.putInt(depth).putInt(bucket).putInt(leaves.length).putInt(path.length).put(root);
+            for (byte[] leaf : leaves) {
+                out.put(leaf);
+            }
+            for (byte[] sibling : path) {
+                out.put(sibling);
+            }
+            for (byte[] sibling : siblings) {
+                out.put(sibling);
+            }
+            return out.array();
+        }
+
+        /** @throws IllegalArgumentException if {@code bytes} is not an encoded proof */
+        public static Proof decode(byte[] bytes) {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if (bytes.length < 4 * Integer.BYTES + HASH_SIZE) {
+                throw new IllegalArgumentException("Truncated proof");
+            }
+            int depth = in.getInt();
+            int bucket = in.getInt();
+            int count = in.getInt();
+            int levels = in.getInt();
+            if (depth < MIN_DEPTH || depth > MAX_DEPTH || bucket < 0 || bucket >= 1 << depth || count < 1
+                    || count > PAGE_SIZE || levels < 0 || levels >= HASH_SIZE * Byte.SIZE
+                    || bytes.length != 4 * Integer.BYTES + (1L + count + levels + depth) * HASH_SIZE) {
+                throw new IllegalArgumentException("Malformed proof");
+            }
+            byte[] root = new byte[HASH_SIZE];
+            in.get(root);
+            byte[][] leaves = new byte[count][HASH_SIZE];
+            for (byte[] leaf : leaves) {
+                in.get(leaf);
+            }
+            byte[][] path = new byte[levels][HASH_SIZE];
+            for (byte[] sibling : path) {
+                in.get(sibling);
+            }
+            byte[][] siblings = new byte[depth][HASH_SIZE];
+            for (byte[] sibling : siblings) {
+                in.get(sibling);
+            }
+            return new Proof(depth, bucket, leaves, path, siblings, root);
+        }
+    }
+
+    private final UTXOPool pool;
+    private final int depth;
+    /** root of the trie of each bucket */
+    private final Node[] buckets;
+    /** one bit per bucket changed since the last commit */
+    private final AtomicLongArray dirty;
+    /** the tree as of the last commit, node i at i * 32: the root is node 1, bucket b is node 2^depth + b */
+    private final byte[] nodes;
+    private int[] changed = new int[64];
+
+    /**
+     * Hashes the current content of {@code pool}, which must not change meanwhile, and follows it from now on
+     *
+     * @throws IllegalArgumentException if {@code depth} is not between {@link #MIN_DEPTH} and {@link #MAX_DEPTH}
+     */
+    public UTXOCommitment(UTXOPool pool, int depth) {
+        this(pool, depth, true);
+    }
+
+    /** Hashes {@code pool} as above if {@code hash}, else commits to no output and leaves it to {@link #follow()} */
+    UTXOCommitment(UTXOPool pool, int depth, boolean hash) {
+        if (depth < MIN_DEPTH || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Depth must be between " + MIN_DEPTH + " and " + MAX_DEPTH + ": "
+                    + depth);
+        }
+        this.pool = pool;
+        this.depth = depth;
+        this.buckets = new Node[1 << depth];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Node();
+        }
+        this.dirty = new AtomicLongArray((buckets.length + 63) / 64);
+        this.nodes = new byte[2 * buckets.length * HASH_SIZE];
+        if (hash) {
+            for (UTXO utxo : pool.getAllUTXO()) {
+                utxoAdded(utxo, pool.getTxOutput(utxo));
+            }
+        }
+        commit();
+        if (hash) {
+            follow();
+        }
+    }
+
+    /** Follows the changes of the pool from now on */
+    void follow() {
+        pool.addListener(this);
+    }
+
+    /** Stops following the pool */
+    public void detach() {
+        pool.removeListener(this);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public void utxoAdded(UTXO utxo, Transaction.Output txOut) {
+        byte[] leaf = leafHash(utxo, txOut);
+        int b = bucketOf(utxo, depth);
+        Node bucket = buckets[b];
+        synchronized (bucket) {
+            if (!add(bucket, leaf)) {
+                return;
+            }
+        }
+        markDirty(b);
+    }
+
+    @Override
+    public void utxoRemoved(UTXO utxo, Transaction.Output txOut) {
+        byte[] leaf = leafHash(utxo, txOut);
+        int b = bucketOf(utxo, depth);
+        Node bucket = buckets[b];
+        synchronized (bucket) {
+            if (!remove(bucket, leaf)) {
+                return;
+            }
+        }
+        markDirty(b);
+    }
+
+    /**
+     * Rehashes the pages changed since the last commit and their paths to the root. Changes made meanwhile
+     * may or may not be included, e.g. call it between two epochs.
+     *
+     * @return the root over the content of the pool
+     */
+    public synchronized byte[] commit() {
+        MessageDigest md = SHA256.get();
+        int count = 0;
+        for (int w = 0; w < dirty.length(); w++) {
+            long bits = dirty.get(w) == 0 ? 0 : dirty.getAndSet(w, 0);
+            for (; bits != 0; bits &= bits - 1) {
+                int b = w * 64 + Long.numberOfTrailingZeros(bits);
+                Node bucket = buckets[b];
+                byte[] hash;
+                synchronized (bucket) {
+                    hash = hash(md, bucket);
+                }
+                int node = buckets.length + b;
+                System.arraycopy(hash, 0, nodes, node * HASH_SIZE, HASH_SIZE);
+                if (count == changed.length) {
+                    changed = Arrays.copyOf(changed, count * 2);
+                }
+                changed[count++] = node;
+            }
+        }
+        // the changed nodes are in ascending order, so are their parents: equal ones are adjacent
+        byte[] left = new byte[HASH_SIZE];
+        byte[] right = new byte[HASH_SIZE];
+        for (int level = 0; level < depth; level++) {
+            int parents = 0;
+            for (int i = 0; i < count; i++) {
+                int parent = changed[i] >>> 1;
+                if (parents > 0 && changed[parents - 1] == parent) {
+                    continue;
+                }
+                System.arraycopy(nodes, 2 * parent * HASH_SIZE, left, 0, HASH_SIZE);
+                System.arraycopy(nodes, (2 * parent + 1) * HASH_SIZE, right, 0, HASH_SIZE);
+                System.arraycopy(nodeHash(md, left, right), 0, nodes, parent * HASH_SIZE, HASH_SIZE);
+                changed[parents++] = parent;
+            }
+            count = parents;
+        }
+        return Arrays.copyOfRange(nodes, HASH_SIZE, 2 * HASH_SIZE);
+    }
+
+    /**
+     * Commits the pending changes and proves that {@code utxo} is in the pool. The pool must not change
+     * meanwhile.
+     *
+     * @return the proof, or null if {@code utxo} is not in the pool
+     */
+    public synchronized Proof prove(UTXO utxo) {
+        Transaction.Output txOut = pool.getTxOutput(utxo);
+        if (txOut == null) {
+            return null;
+        }
+        byte[] root = commit();
+        byte[] leaf = leafHash(utxo, txOut);
+        int b = bucketOf(utxo, depth);
+        byte[][] leaves;
+        ArrayList<byte[]> path = new ArrayList<>();
+        Node node = buckets[b];
+        synchronized (buckets[b]) {
+            MessageDigest md = SHA256.get();
+            for (int level = 0; node.leaves == null; level++) {
+                boolean zero = bit(leaf, level) == 0;
+                path.add(0, hash(md, zero ? node.one : node.zero).clone());
+                node = zero ? node.zero : node.one;
+            }
+            leaves = Arrays.copyOf(node.leaves, node.count);
+        }
+        byte[][] siblings = new byte[depth][];
+        int at = buckets.length + b;
+        for (int level = 0; level < depth; level++, at >>>= 1) {
+            int sibling = at ^ 1;
+            siblings[level] = Arrays.copyOfRange(nodes, sibling * HASH_SIZE, (sibling + 1) * HASH_SIZE);
+        }
+        return new Proof(depth, b, leaves, path.toArray(new byte[0][]), siblings, root);
+    }
+
+    private void markDirty(int bucket) {
+        int w = bucket >>> 6;
+        long bit = 1L << bucket;
+        long bits;
+        do {
+            bits = dirty.get(w);
+        } while ((bits & bit) == 0 && !dirty.compareAndSet(w, bits, bits | bit));
+    }
+
+    /** @return false if {@code leaf} already is in the trie under {@code root} */
+    private static boolean add(Node root, byte[] leaf) {
+        if (contains(root, leaf)) {
+            return false;
+        }
+        Node node = root;
+        int level = 0;
+        for (; node.leaves == null; level++) {
+            node.count++;
+            node.hash = null;
+            node = bit(leaf, level) == 0 ? node.zero : node.one;
+        }
+        int at = -Arrays.binarySearch(node.leaves, 0, node.count, leaf, UTXOCommitment::compare) - 1;
+        if (node.count == node.leaves.length) {
+            node.leaves = Arrays.copyOf(node.leaves, Math.max(4, Math.min(node.count * 2, PAGE_SIZE + 1)));
+        }
+        System.arraycopy(node.leaves, at, node.leaves, at + 1, node.count - at);
+        node.leaves[at] = leaf;
+        node.count++;
+        node.hash = null;
+        if (node.count > PAGE_SIZE) {
+            split(node, level);
+        }
+        return true;
+    }
+
+    /** Turns an overflowing page into an inner node over two pages, split further while they overflow */
+    private static void split(Node page, int level) {
+        page.zero = new Node();
+        page.one = new Node();
+        for (int i = 0; i < page.count; i++) {
+            Node child = bit(page.leaves[i], level) == 0 ? page.zero : page.one;
+            if (child.count == child.leaves.length) {
+                child.leaves = Arrays.copyOf(child.leaves, Math.max(4, Math.min(child.count * 2, PAGE_SIZE + 1)));
+            }
+            child.leaves[child.count++] = page.leaves[i];
+        }
+        page.leaves = null;
+        if (page.zero.count > PAGE_SIZE) {
+            split(page.zero, level + 1);
+        }
+        if (page.one.count > PAGE_SIZE) {
+            split(page.one, level + 1);
+        }
+    }
+
+    /** @return false if {@code leaf} is not in the trie under {@code root} */
+    private static boolean remove(Node root, byte[] leaf) {
+        if (!contains(root, leaf)) {
+            return false;
+        }
+        Node node = root;
+        for (int level = 0; node.leaves == null; level++) {
+            node.hash = null;
+            if (node.count - 1 <= PAGE_SIZE) {
+                // the subtree fits a page again
+                byte[][] leaves = new byte[node.count][];
+                collect(node, leaves, 0);
+                node.leaves = leaves;
+                node.zero = null;
+                node.one = null;
+                break;
+            }
+            node.count--;
+            node = bit(leaf, level) == 0 ? node.zero : node.one;
+        }
+        int at = Arrays.binarySearch(node.leaves, 0, node.count, leaf, UTXOCommitment::compare);
+        System.arraycopy(node.leaves, at + 1, node.leaves, at, node.count - at - 1);
+        node.leaves[--node.count] = null;
+        node.hash = null;
+        if (node.count == 0) {
+            node.leaves = NO_LEAVES;
+        }
+        return true;
+    }
+
+    /** Copies the leaves under {@code node}, in order, to {@code out} from {@code at} */
+    private static int collect(Node node, byte[][] out, int at) {
+        if (node.leaves != null) {
+            System.arraycopy(node.leaves, 0, out, at, node.count);
+            return at + node.count;
+        }
+        return collect(node.one, out, collect(node.zero, out, at));
+    }
+
+    private static boolean contains(Node node, byte[] leaf) {
+        for (int level = 0; node.leaves == null; level++) {
+            node = bit(leaf, level) == 0 ? node.zero : node.one;
+        }
+        return Arrays.binarySearch(node.leaves, 0, node.count, leaf, UTXOCommitment::compare) >= 0;
+    }
+
+    /** @return the hash of the subtree under {@code node}, rehashing the parts changed since the last time */
+    private static byte[] hash(MessageDigest md, Node node) {
+        if (node.hash == null) {
+            node.hash = node.leaves != null ? pageHash(md, node.leaves, node.count)
+                    : trieHash(md, hash(md, node.zero), hash(md, node.one));
+        }
+        return node.hash;
+    }
+
+    /** @return the bit of {@code leaf} at {@code level}, first bit first */
+    private static int bit(byte[] leaf, int level) {
+        return leaf[level >>> 3] >>> (7 - (level & 7)) & 1;
+    }
+
+    /** @return the bucket of an output, from its key only */
+    private static int bucketOf(UTXO utxo, int depth) {
+        byte[] txHash = utxo.getTxHash();
+        long h = 0;
+        for (int i = 0; i < Math.min(txHash.length, Long.BYTES); i++) {
+            h = h << 8 | (txHash[i] & 0xFF);
+        }
+        h = (h ^ utxo.getIndex()) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        return (int) (h >>> (64 - depth));
+    }
+
+    /** SHA-256 of an output: tag, key, value and encoded address */
+    private static byte[] leafHash(UTXO utxo, Transaction.Output txOut) {
+        MessageDigest md = SHA256.get();
+        byte[] txHash = utxo.getTxHash();
+        ByteBuffer fixed = ByteBuffer.allocate(1 + Integer.BYTES + Integer.BYTES + Long.BYTES);
+        fixed.put(LEAF).putInt(txHash.length);
+        md.update(fixed.array(), 0, fixed.position());
+        md.update(txHash);
+        fixed.clear();
+        fixed.putInt(utxo.getIndex()).putLong(txOut.value);
+        md.update(fixed.array(), 0, fixed.position());
+        Address address = txOut.getAddress();
+        if (address != null) {
+            md.update(address.encoded());
+        }
+        return md.digest();
+    }
+
+    private static byte[] pageHash(MessageDigest md, byte[][] leaves, int count) {
+        if (count == 0) {
+            return new byte[HASH_SIZE];
+        }
+        md.update(PAGE);
+        for (int i = 0; i < count; i++) {
+            md.update(leaves[i]);
+        }
+        return md.digest();
+    }
+
+    private static byte[] nodeHash(MessageDigest md, byte[] left, byte[] right) {
+        if (isZero(left) && isZero(right)) {
+            return new byte[HASH_SIZE];
+        }
+        md.update(NODE);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    private static byte[] trieHash(MessageDigest md, byte[] zero, byte[] one) {
+        md.update(TRIE);
+        md.update(zero);
+        md.update(one);
+        return md.digest();
+    }
+
+    private static boolean contains(byte[][] leaves, byte[] leaf) {
+        for (byte[] l : leaves) {
+            if (Arrays.equals(l, leaf)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isZero(byte[] hash) {
+        for (byte b : hash) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Unsigned lexicographic order of leaf hashes */
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,304 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Cuckoo filter of the UTXOs of a {@link UTXOPool}, answering "definitely not in the pool" for most outputs
+ * which are not there without touching the pool: no {@link UTXO} to allocate, no lookup in the store.
+ *
+ * Every UTXO is reduced to a 16 bit fingerprint stored in one of two buckets of four fingerprints, a bucket
+ * being a single {@code long}, so a query reads two words and tests their four lanes at once. False positives
+ * (about one in 8000 absent outputs) just fall through to the pool; there are no false negatives. Unlike a
+ * Bloom filter, fingerprints can be removed, so the filter listens to the pool and follows every change.
+ *
+ * When the table gets too full, queries answer "maybe" for everything until {@link #resizeIfNeeded}
+ * rebuilds it twice as large from the pool. Changes are serialized by a lock; queries do not take it unless
+ * they overlap with a change.
+ */
+public class UTXOFilter implements UTXOPoolListener {
+
+    private static final int SLOTS = 4;
+    private static final long LANES = 0x0001000100010001L;
+    private static final long HIGH_BITS = 0x8000800080008000L;
+    private static final int MIN_BUCKETS = 1024;
+    private static final int MAX_KICKS = 500;
+    /** share of the slots used after which the table is grown */
+    private static final double MAX_LOAD = 0.9;
+
+    private final UTXOPool pool;
+    private final StampedLock lock = new StampedLock();
+
+    /** guarded by lock */
+    private long[] buckets;
+    private int mask;
+    private int count;
+    /** fingerprint evicted by the last failed insertion, 0 if none, and its bucket */
+    private int victim;
+    private int victimBucket;
+    /** an insertion failed while {@link #victim} was in use, queries answer true until the next rebuild */
+    private boolean saturated;
+    private int kickSeed = 1;
+
+    /** Adds the current content of {@code pool}, which must not change meanwhile, and follows it from now on */
+    public UTXOFilter(UTXOPool pool) {
+        this(pool, true);
+    }
+
+    /**
+     * Fills the filter from {@code pool} as above if {@code fill}, else only sizes it for the pool and leaves
+     * it to {@link #follow()}
+     */
+    UTXOFilter(UTXOPool pool, boolean fill) {
+        this.pool = pool;
+        build(fill);
+        if (fill) {
+            follow();
+        }
+    }
+
+    /** Follows the changes of the pool from now on, and lets it consult the filter */
+    void follow() {
+        pool.addListener(this);
+        pool.setFilter(this);
+    }
+
+    /** Stops following the pool, which no longer consults the filter */
+    public void detach() {
+        pool.setFilter(null);
+        pool.removeListener(this);
+    }
+
+    /**
+     * @return false if the output {@code index} of transaction {@code txHash} is certainly not in the pool,
+     *         true if it may be
+     */
+    public boolean mightContain(byte[] txHash, int index) {
+        long hash = hash(txHash, index);
+        int fingerprint = fingerprint(hash);
+        long stamp = lock.tryOptimisticRead();
+        boolean found = lookup(hash, fingerprint);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = lookup(hash, fingerprint);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void utxoAdded(UTXO utxo, Transaction.Output txOut) {
+        long hash = hash(utxo.getTxHash(), utxo.getIndex());
+        long stamp = lock.writeLock();
+        try {
+            insert(hash);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void utxoRemoved(UTXO utxo, Transaction.Output txOut) {
+        long hash = hash(utxo.getTxHash(), utxo.getIndex());
+        long stamp = lock.writeLock();
+        try {
+            delete(hash);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Rebuilds the filter, twice as large, if it is too full to answer precisely. The pool must not change
+     * meanwhile, e.g. call it between two epochs.
+     *
+     * @return true if the filter was rebuilt
+     */
+    public boolean resizeIfNeeded() {
+        long stamp = lock.readLock();
+        try {
+            if (!saturated && victim == 0 && count <= (long) buckets.length * SLOTS * MAX_LOAD) {
+                return false;
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        build(true);
+        return true;
+    }
+
+    /** @return the number of fingerprints in the filter */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return count + (victim == 0 ? 0 : 1);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** @return the size of the table in bytes */
+    public long getByteSize() {
+        long stamp = lock.readLock();
+        try {
+            return (long) buckets.length * Long.BYTES;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Fills a new table, at most half full, with the content of the pool if {@code fill}, and swaps it in */
+    private void build(boolean fill) {
+        int size = pool.size();
+        int bucketCount = MIN_BUCKETS;
+        while (bucketCount < (1 << 30) && (long) bucketCount * SLOTS < 2L * size) {
+            bucketCount <<= 1;
+        }
+        long stamp = lock.writeLock();
+        try {
+            buckets = new long[bucketCount];
+            mask = bucketCount - 1;
+            count = 0;
+            victim = 0;
+            saturated = false;
+            if (fill) {
+                for (UTXO utxo : pool.getAllUTXO()) {
+                    insert(hash(utxo.getTxHash(), utxo.getIndex()));
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private boolean lookup(long hash, int fingerprint) {
+        // the mask follows from the array, the fields may be changing under an optimistic read
+        long[] buckets = this.buckets;
+        int mask = buckets.length - 1;
+        int first = (int) (hash >>> 32) & mask;
+        int second = alternate(first, fingerprint, mask);
+        return saturated || hasLane(buckets[first], fingerprint) || hasLane(buckets[second], fingerprint)
+                || victim == fingerprint && (victimBucket == first || victimBucket == second);
+    }
+
+    private void insert(long hash) {
+        int fingerprint = fingerprint(hash);
+        int bucket = (int) (hash >>> 32) & mask;
+        if (put(bucket, fingerprint) || put(alternate(bucket, fingerprint, mask), fingerprint)) {
+            count++;
+            return;
+        }
+        if (victim != 0) {
+            saturated = true;
+            return;
+        }
+        // evict fingerprints to their other bucket until one finds a free slot
+        count++;
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            kickSeed = kickSeed * 1103515245 + 12345;
+            int lane = (kickSeed >>> 16) & (SLOTS - 1);
+            int shift = lane * 16;
+            int evicted = (int) (buckets[bucket] >>> shift) & 0xFFFF;
+            buckets[bucket] = buckets[bucket] & ~(0xFFFFL << shift) | (long) fingerprint << shift;
+            fingerprint = evicted;
+            bucket = alternate(bucket, fingerprint, mask);
+            if (put(bucket, fingerprint)) {
+                return;
+            }
+        }
+        count--;
+        victim = fingerprint;
+        victimBucket = bucket;
+    }
+
+    private void delete(long hash) {
+        int fingerprint = fingerprint(hash);
+        int first = (int) (hash >>> 32) & mask;
+        int second = alternate(first, fingerprint, mask);
+        if (victim == fingerprint && (victimBucket == first || victimBucket == second)) {
+            victim = 0;
+            return;
+        }
+        if (clear(first, fingerprint) || clear(second, fingerprint)) {
+            count--;
+            if (victim != 0) {
+                // room was made, try to place the victim again
+                int pending = victim;
+                victim = 0;
+                insertFingerprint(victimBucket, pending);
+            }
+        }
+    }
+
+    /** Inserts a fingerprint whose bucket (either of its two) is known */
+    private void insertFingerprint(int bucket, int fingerprint) {
+        if (put(bucket, fingerprint) || put(alternate(bucket, fingerprint, mask), fingerprint)) {
+            count++;
+        } else {
+            victim = fingerprint;
+            victimBucket = bucket;
+        }
+    }
+
+    /** @return true if {@code fingerprint} was stored in a free slot of {@code bucket} */
+    private boolean put(int bucket, int fingerprint) {
+        long word = buckets[bucket];
+        for (int shift = 0; shift < 64; shift += 16) {
+            if ((word >>> shift & 0xFFFF) == 0) {
+                buckets[bucket] = word | (long) fingerprint << shift;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return true if one copy of {@code fingerprint} was removed from {@code bucket} */
+    private boolean clear(int bucket, int fingerprint) {
+        long word = buckets[bucket];
+        for (int shift = 0; shift < 64; shift += 16) {
+            if ((word >>> shift & 0xFFFF) == fingerprint) {
+                buckets[bucket] = word & ~(0xFFFFL << shift);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return true if one of the four lanes of {@code word} is {@code fingerprint} */
+    private static boolean hasLane(long word, int fingerprint) {
+        long x = word ^ fingerprint * LANES;
+        return ((x - LANES) & ~x & HIGH_BITS) != 0;
+    }
+
+    /** @return the other bucket of {@code fingerprint}, the same function both ways */
+    private static int alternate(int bucket, int fingerprint, int mask) {
+        return (bucket ^ fingerprint * 0x5BD1E995) & mask;
+    }
+
+    /** @return a 16 bit fingerprint, never 0 which marks free slots */
+    private static int fingerprint(long hash) {
+        int fingerprint = (int) hash & 0xFFFF;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    /** 64 bit hash of an output, read eight bytes at a time */
+    private static long hash(byte[] txHash, int index) {
+        long h = txHash.length * 0x9E3779B97F4A7C15L ^ index;
+        int i = 0;
+        for (; i + Long.BYTES <= txHash.length; i += Long.BYTES) {
+            long word = (txHash[i] & 0xFFL) << 56 | (txHash[i + 1] & 0xFFL) << 48 | (txHash[i + 2] & 0xFFL) << 40
+                    | (txHash[i + 3] & 0xFFL) << 32 | (txHash[i + 4] & 0xFFL) << 24 | (txHash[i + 5] & 0xFFL) << 16
+                    | (txHash[i + 6] & 0xFFL) << 8 | (txHash[i + 7] & 0xFFL);
+            h = (h ^ word) * 0xC2B2AE3D27D4EB4FL;
+            h ^= h >>> 29;
+        }
+        for (; i < txHash.length; i++) {
+            h = (h ^ (txHash[i] & 0xFF)) * 0xC2B2AE3D27D4EB4FL;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        return h ^ h >>> 33;
+    }
+}
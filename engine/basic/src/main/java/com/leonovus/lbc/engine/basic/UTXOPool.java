@@ -1,11 +1,13 @@
 package com.leonovus.lbc.engine.basic;
 
 import com.leonovus.lbc.engine.api.Ledger;
-import com.leonovus.lbc.engine.api.Resource;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class represents the current set of outstanding UTXOs and contains a map from each UTXO to its
@@ -16,26 +18,137 @@ public class UTXOPool implements Ledger {
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private final UTXOStore H;
+
+    /** notified of every change; a change costs one extra lookup only while there are listeners */
+    private final List<UTXOPoolListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** consulted by {@link #mightContain}, null if there is none */
+    private volatile UTXOFilter filter;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        this(new HashUTXOStore());
+    }
+
+    /** Creates a new UTXOPool on top of {@code store}, e.g. a {@link CompactUTXOStore} for large ledgers */
+    public UTXOPool(UTXOStore store) {
+        H = store;
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new UTXOPool that is a copy of {@code uPool}, without its listeners */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        if (listeners.isEmpty()) {
+            H.put(utxo, txOut);
+        } else {
+            put(utxo, txOut);
+        }
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        if (listeners.isEmpty()) {
+            H.remove(utxo);
+        } else {
+            remove(utxo);
+        }
+    }
+
+    /**
+     * Applies the changes of one epoch in place: removes every UTXO in {@code spent} and adds every mapping
+     * in {@code added}. See {@link UTXOPoolDelta}.
+     */
+    void apply(Set<UTXO> spent, Map<UTXO, Transaction.Output> added) {
+        if (listeners.isEmpty()) {
+            for (UTXO utxo : spent) {
+                H.remove(utxo);
+            }
+            for (Map.Entry<UTXO, Transaction.Output> entry : added.entrySet()) {
+                H.put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        for (UTXO utxo : spent) {
+            remove(utxo);
+        }
+        for (Map.Entry<UTXO, Transaction.Output> entry : added.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Same as {@link #apply}, but only if every UTXO in {@code spent} is still in the pool; otherwise nothing
+     * is changed. On a {@link StripedUTXOStore} this is atomic with respect to the other callers, so of several
+     * threads trying to spend the same output exactly one succeeds. Other stores are not thread safe and
+     * need a single writer anyway.
+     *
+     * @return false if an output of {@code spent} is gone
+     */
+    boolean tryApply(Set<UTXO> spent, Map<UTXO, Transaction.Output> added) {
+        if (!(H instanceof StripedUTXOStore)) {
+            for (UTXO utxo : spent) {
+                if (!H.contains(utxo)) {
+                    return false;
+                }
+            }
+            apply(spent, added);
+            return true;
+        }
+        // claiming the inputs is what must be atomic, the new outputs can be published one by one afterwards
+        StripedUTXOStore store = (StripedUTXOStore) H;
+        int[] locked = store.lock(spent);
+        try {
+            for (UTXO utxo : spent) {
+                if (!H.contains(utxo)) {
+                    return false;
+                }
+            }
+            apply(spent, Collections.emptyMap());
+        } finally {
+            store.unlock(locked);
+        }
+        apply(Collections.emptySet(), added);
+        return true;
+    }
+
+    /** @return true if the pool may be read and changed by several threads at once */
+    public boolean isConcurrent() {
+        return H instanceof StripedUTXOStore;
+    }
+
+    /** Registers {@code listener} for the changes made from now on */
+    public void addListener(UTXOPoolListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(UTXOPoolListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void put(UTXO utxo, Transaction.Output txOut) {
+        Transaction.Output replaced = H.get(utxo);
+        H.put(utxo, txOut);
+        for (UTXOPoolListener listener : listeners) {
+            if (replaced != null) {
+                listener.utxoRemoved(utxo, replaced);
+            }
+            listener.utxoAdded(utxo, txOut);
+        }
+    }
+
+    private void remove(UTXO utxo) {
+        Transaction.Output removed = H.get(utxo);
+        if (removed != null) {
+            H.remove(utxo);
+            for (UTXOPoolListener listener : listeners) {
+                listener.utxoRemoved(utxo, removed);
+            }
+        }
     }
 
     /**
@@ -46,18 +159,32 @@ public class UTXOPool implements Ledger {
         return H.get(ut);
     }
 
+    /**
+     * @return false if the output {@code index} of transaction {@code txHash} is certainly not in the pool,
+     *         without looking it up when the pool has a {@link UTXOFilter}; true if it may be
+     */
+    public boolean mightContain(byte[] txHash, int index) {
+        UTXOFilter filter = this.filter;
+        return filter == null || filter.mightContain(txHash, index);
+    }
+
+    /** Sets the filter answering {@link #mightContain}, or removes it if null */
+    void setFilter(UTXOFilter filter) {
+        this.filter = filter;
+    }
+
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return H.contains(utxo);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
-        return allUTXO;
+        return H.keys();
     }
 }
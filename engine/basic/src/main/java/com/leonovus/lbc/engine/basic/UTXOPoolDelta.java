@@ -0,0 +1,86 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pending changes of one epoch on top of a live {@link UTXOPool}.
+ *
+ * Lookups see the pool as it would be after the epoch, while the pool itself is left untouched until
+ * {@link #commit()}. Memory and commit time are proportional to the number of outputs spent and created by
+ * the epoch, not to the size of the pool. A delta which is never committed is simply dropped.
+ */
+public class UTXOPoolDelta {
+
+    private final UTXOPool base;
+
+    /** outputs created by this epoch which are still unspent */
+    private final Map<UTXO, Transaction.Output> added = new HashMap<>();
+
+    /** outputs of the base pool spent by this epoch */
+    private final Set<UTXO> spent = new HashSet<>();
+
+    private boolean committed;
+
+    public UTXOPoolDelta(UTXOPool base) {
+        this.base = base;
+    }
+
+    /** @return true if UTXO {@code utxo} is unspent once this epoch is applied */
+    public boolean contains(UTXO utxo) {
+        return added.containsKey(utxo) || (!spent.contains(utxo) && base.contains(utxo));
+    }
+
+    /**
+     * @return the transaction output corresponding to UTXO {@code utxo}, or null if it is not unspent
+     *         once this epoch is applied
+     */
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        Transaction.Output output = added.get(utxo);
+        if (output != null || spent.contains(utxo)) {
+            return output;
+        }
+        return base.getTxOutput(utxo);
+    }
+
+    /** Records the creation of {@code utxo} by this epoch */
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        added.put(utxo, txOut);
+    }
+
+    /** Records the spending of {@code utxo}, which may have been created by this epoch */
+    public void removeUTXO(UTXO utxo) {
+        if (added.remove(utxo) == null && base.contains(utxo)) {
+            spent.add(utxo);
+        }
+    }
+
+    /**
+     * Applies the epoch to the base pool: removes the spent outputs and adds the created ones.
+     * A delta can only be committed once.
+     */
+    public void commit() {
+        if (committed) {
+            throw new IllegalStateException("Epoch is already committed");
+        }
+        committed = true;
+        base.apply(spent, added);
+    }
+
+    /**
+     * Same as {@link #commit()}, unless an output of the base pool spent by this epoch was removed from the
+     * pool since it was looked up, e.g. by another thread. Then nothing is applied, the delta stays
+     * uncommitted and the epoch should be validated again against the pool as it is now.
+     *
+     * @return true if the epoch was applied
+     */
+    public boolean tryCommit() {
+        if (committed) {
+            throw new IllegalStateException("Epoch is already committed");
+        }
+        committed = base.tryApply(spent, added);
+        return committed;
+    }
+}
@@ -0,0 +1,15 @@
+package com.leonovus.lbc.engine.basic;
+
+/**
+ * Receives the changes of a {@link UTXOPool}, in the order they are made and on the thread making them,
+ * so that secondary indexes can follow the pool incrementally instead of scanning it. The changes of a
+ * {@link UTXOPool#isConcurrent concurrent} pool may come from several threads at once.
+ */
+public interface UTXOPoolListener {
+
+    /** Called after {@code utxo} mapped to {@code txOut} was added to the pool */
+    void utxoAdded(UTXO utxo, Transaction.Output txOut);
+
+    /** Called after {@code utxo}, which was mapped to {@code txOut}, was removed from the pool */
+    void utxoRemoved(UTXO utxo, Transaction.Output txOut);
+}
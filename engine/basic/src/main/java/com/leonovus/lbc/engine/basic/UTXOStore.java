@@ -0,0 +1,31 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.util.ArrayList;
+
+/**
+ * Storage behind a {@link UTXOPool}: a map from each UTXO to its corresponding transaction output.
+ * Implementations are not required to be thread safe.
+ */
+public interface UTXOStore {
+
+    /** Adds a mapping from UTXO {@code utxo} to transaction output {@code txOut}, replacing any previous one */
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    /** Removes the UTXO {@code utxo}, if present */
+    void remove(UTXO utxo);
+
+    /** @return the transaction output corresponding to UTXO {@code utxo}, or null if it is not stored */
+    Transaction.Output get(UTXO utxo);
+
+    /** @return true if UTXO {@code utxo} is stored */
+    boolean contains(UTXO utxo);
+
+    /** @return the number of stored UTXOs */
+    int size();
+
+    /** @return all stored UTXOs */
+    ArrayList<UTXO> keys();
+
+    /** @return an independent store with the same mappings */
+    UTXOStore copy();
+}
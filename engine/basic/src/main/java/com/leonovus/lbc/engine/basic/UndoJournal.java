@@ -0,0 +1,371 @@
+package com.leonovus.lbc.engine.basic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Undo records of the last epochs applied to a {@link UTXOPool}, so that they can be {@link #rollback rolled
+ * back} in time proportional to what they changed instead of keeping copies of the pool.
+ *
+ * The journal listens to the pool and collects the changes of the current epoch; {@link #seal} turns them
+ * into the record of the epoch. A record holds the outputs the epoch spent, with their value and address,
+ * and the keys of the outputs it created, in the order the changes were made:
+ * <pre>
+ *   int  payload length
+ *   int  CRC32 of the payload
+ *   long epoch sequence number              \
+ *   long block height before the epoch, or -1 |
+ *   int  number of changes                    } payload
+ *   per change: byte 0 created or 1 spent,    |
+ *     key (int hash length, hash, int index), |
+ *     if spent: long value, int address length (-1 if none), address  /
+ * </pre>
+ * Only the last {@code history} records are kept, in {@code undo-<sequence>.dat} files of a directory or in
+ * memory. Files are written but not synced: a crash may lose the records of the last epochs, which can then
+ * no longer be rolled back. With a history of 0 no record is kept, but the changes of the current epoch can
+ * still be {@link #discard discarded}, e.g. when the epoch could not be logged.
+ *
+ * A rollback takes two steps, so that the records outlive a failure to drop the epochs elsewhere (from the
+ * epoch log, say): {@link #rollback} undoes the epochs on the pool, then {@link #confirmRollback} drops their
+ * records, or {@link #cancelRollback} keeps them once the caller has applied the epochs again.
+ */
+public class UndoJournal implements UTXOPoolListener {
+
+    private static final String FILE_PREFIX = "undo-";
+    private static final String FILE_SUFFIX = ".dat";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int FIXED_PAYLOAD_SIZE = 2 * Long.BYTES + Integer.BYTES;
+    private static final byte CREATED = 0;
+    private static final byte SPENT = 1;
+    private static final int NULL_LENGTH = -1;
+
+    private final UTXOPool pool;
+    private final File directory;
+    private final int history;
+    /** records of the epochs from firstSequence on, oldest first, if there is no directory */
+    private final ArrayDeque<byte[]> records = new ArrayDeque<>();
+    /** changes of the current epoch, the output is null for a created one; guarded by changedUtxos */
+    private final List<UTXO> changedUtxos = new ArrayList<>();
+    private final List<Transaction.Output> spentOutputs = new ArrayList<>();
+
+    private long firstSequence;
+    private long nextSequence;
+    /** number of the last epochs undone on the pool whose records are not dropped yet */
+    private int rolledBack;
+    /** set while the pool is changed by a rollback, on the thread making the changes */
+    private boolean rollingBack;
+
+    /**
+     * Starts a journal of the epochs from {@code nextSequence} on, kept in {@code directory} or in memory if
+     * it is null, and follows the changes of {@code pool} from now on. The records of {@code directory} which
+     * end at {@code nextSequence - 1} are kept, so that the epochs before can still be rolled back; the other
+     * ones, e.g. of epochs the log lost in a crash, are deleted.
+     *
+     * @param history the number of epochs which can be rolled back, 0 for none
+     */
+    public UndoJournal(UTXOPool pool, File directory, int history, long nextSequence) throws IOException {
+        if (history < 0) {
+            throw new IllegalArgumentException("History must not be negative: " + history);
+        }
+        this.pool = pool;
+        this.directory = directory;
+        this.history = history;
+        this.nextSequence = nextSequence;
+        this.firstSequence = nextSequence;
+
+        if (directory != null) {
+            File[] files = directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+            if (files == null) {
+                throw new IOException("Could not list " + directory);
+            }
+            long[] sequences = new long[files.length];
+            for (int f = 0; f < files.length; f++) {
+                String name = files[f].getName();
+                try {
+                    sequences[f] = Long.parseLong(name.substring(FILE_PREFIX.length(),
+                            name.length() - FILE_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    sequences[f] = -1;
+                }
+            }
+            Arrays.sort(sequences);
+            int i = sequences.length - 1;
+            while (i >= 0 && sequences[i] >= nextSequence) {
+                i--;
+            }
+            for (; i >= 0 && sequences[i] == firstSequence - 1 && nextSequence - firstSequence < history; i--) {
+                firstSequence--;
+            }
+            for (long sequence : sequences) {
+                if (sequence >= 0 && (sequence < firstSequence || sequence >= nextSequence)) {
+                    Files.deleteIfExists(file(sequence).toPath());
+                }
+            }
+        }
+        pool.addListener(this);
+    }
+
+    /** Stops following the pool */
+    public void detach() {
+        pool.removeListener(this);
+    }
+
+    @Override
+    public void utxoAdded(UTXO utxo, Transaction.Output txOut) {
+        if (rollingBack) {
+            return;
+        }
+        synchronized (changedUtxos) {
+            changedUtxos.add(utxo);
+            spentOutputs.add(null);
+        }
+    }
+
+    @Override
+    public void utxoRemoved(UTXO utxo, Transaction.Output txOut) {
+        if (rollingBack) {
+            return;
+        }
+        synchronized (changedUtxos) {
+            changedUtxos.add(utxo);
+            spentOutputs.add(txOut);
+        }
+    }
+
+    /**
+     * Ends the current epoch: writes the record of the changes made since the last one, as epoch
+     * {@link #getNextSequence}, and drops the oldest record if there are more than {@code history}. Must not
+     * run while the pool is being changed.
+     *
+     * @param blockHeight the height of the block store before the epoch, handed back by {@link #rollback}, or
+     *                    -1 if there is none
+     * @throws IllegalStateException if a rollback is neither confirmed nor cancelled
+     */
+    public void seal(long blockHeight) throws IOException {
+        checkNoRollback();
+        byte[] record = null;
+        synchronized (changedUtxos) {
+            if (history > 0) {
+                record = encode(nextSequence, blockHeight, changedUtxos, spentOutputs);
+            }
+            changedUtxos.clear();
+            spentOutputs.clear();
+        }
+        try {
+            if (record != null && directory != null) {
+                Files.write(file(nextSequence).toPath(), record);
+            } else if (record != null) {
+                records.addLast(record);
+            }
+        } finally {
+            // the epoch is applied either way; without its record, rolling back past it fails
+            nextSequence++;
+        }
+        while (nextSequence - firstSequence > history) {
+            if (directory != null) {
+                Files.deleteIfExists(file(firstSequence).toPath());
+            } else {
+                records.pollFirst();
+            }
+            firstSequence++;
+        }
+    }
+
+    /**
+     * Undoes the changes made to the pool since the last sealed epoch, last change first, e.g. because the
+     * epoch could not be logged. Must not run while the pool is being changed.
+     */
+    public void discard() {
+        synchronized (changedUtxos) {
+            rollingBack = true;
+            try {
+                for (int i = changedUtxos.size() - 1; i >= 0; i--) {
+                    if (spentOutputs.get(i) == null) {
+                        pool.removeUTXO(changedUtxos.get(i));
+                    } else {
+                        pool.addUTXO(changedUtxos.get(i), spentOutputs.get(i));
+                    }
+                }
+            } finally {
+                rollingBack = false;
+            }
+            changedUtxos.clear();
+            spentOutputs.clear();
+        }
+    }
+
+    /**
+     * Undoes the last {@code epochs} sealed epochs on the pool, newest first. Every record is read and checked
+     * before the pool is changed. The records are kept until {@link #confirmRollback} or
+     * {@link #cancelRollback}, and no epoch can be sealed meanwhile. Must not run while the pool is being
+     * changed.
+     *
+     * @return the block height sealed with the oldest epoch rolled back, -1 if there is none or no epoch was
+     * @throws IllegalArgumentException if {@code epochs} is negative or more than {@link #size}
+     * @throws IllegalStateException if the last rollback is neither confirmed nor cancelled
+     * @throws IOException if a record can not be read or is corrupt, the pool is then left unchanged
+     */
+    public long rollback(int epochs) throws IOException {
+        checkNoRollback();
+        if (epochs < 0 || epochs > size()) {
+            throw new IllegalArgumentException("Cannot roll back " + epochs + " epochs, " + size() + " are journaled");
+        }
+        ByteBuffer[] undo = new ByteBuffer[epochs];
+        Iterator<byte[]> newest = records.descendingIterator();
+        for (int i = 0; i < epochs; i++) {
+            long sequence = nextSequence - 1 - i;
+            undo[i] = ByteBuffer.wrap(directory == null ? newest.next() : Files.readAllBytes(file(sequence).toPath()));
+            check(undo[i], sequence);
+        }
+
+        long blockHeight = -1;
+        rollingBack = true;
+        try {
+            for (ByteBuffer record : undo) {
+                blockHeight = undo(record);
+            }
+        } finally {
+            rollingBack = false;
+        }
+        rolledBack = epochs;
+        return blockHeight;
+    }
+
+    /**
+     * Drops the records of the epochs of the last {@link #rollback}, once they are gone everywhere else: the
+     * next sealed epoch takes the sequence of the first of them
+     */
+    public void confirmRollback() throws IOException {
+        for (; rolledBack > 0; rolledBack--) {
+            nextSequence--;
+            if (directory != null) {
+                Files.deleteIfExists(file(nextSequence).toPath());
+            } else {
+                records.pollLast();
+            }
+        }
+    }
+
+    /**
+     * Keeps the records of the epochs of the last {@link #rollback}, once the caller has applied the epochs to
+     * the pool again; the changes made by applying them are forgotten
+     */
+    public void cancelRollback() {
+        synchronized (changedUtxos) {
+            changedUtxos.clear();
+            spentOutputs.clear();
+        }
+        rolledBack = 0;
+    }
+
+    /** @return the number of epochs which can be rolled back */
+    public int size() {
+        return (int) (nextSequence - rolledBack - firstSequence);
+    }
+
+    /** @return the sequence number the next sealed epoch will get, that of the first epoch rolled back if any */
+    public long getNextSequence() {
+        return nextSequence - rolledBack;
+    }
+
+    private void checkNoRollback() {
+        if (rolledBack > 0) {
+            throw new IllegalStateException("Rollback of " + rolledBack + " epochs is neither confirmed nor cancelled");
+        }
+    }
+
+    private File file(long sequence) {
+        return new File(directory, String.format("%s%016d%s", FILE_PREFIX, sequence, FILE_SUFFIX));
+    }
+
+    private static byte[] encode(long sequence, long blockHeight, List<UTXO> utxos, List<Transaction.Output> spent) {
+        int payloadSize = FIXED_PAYLOAD_SIZE;
+        for (int i = 0; i < utxos.size(); i++) {
+            payloadSize += 1 + 2 * Integer.BYTES + utxos.get(i).getTxHash().length;
+            Transaction.Output txOut = spent.get(i);
+            if (txOut != null) {
+                payloadSize += Long.BYTES + Integer.BYTES
+                        + (txOut.address == null ? 0 : txOut.getAddress().encoded().length);
+            }
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadSize);
+        record.position(RECORD_HEADER_SIZE);
+        record.putLong(sequence).putLong(blockHeight).putInt(utxos.size());
+        for (int i = 0; i < utxos.size(); i++) {
+            UTXO utxo = utxos.get(i);
+            Transaction.Output txOut = spent.get(i);
+            record.put(txOut == null ? CREATED : SPENT);
+            record.putInt(utxo.getTxHash().length).put(utxo.getTxHash()).putInt(utxo.getIndex());
+            if (txOut != null) {
+                record.putLong(txOut.value);
+                if (txOut.address == null) {
+                    record.putInt(NULL_LENGTH);
+                } else {
+                    byte[] address = txOut.getAddress().encoded();
+                    record.putInt(address.length).put(address);
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, payloadSize);
+        record.putInt(0, payloadSize).putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static void check(ByteBuffer record, long sequence) throws IOException {
+        if (record.remaining() < RECORD_HEADER_SIZE + FIXED_PAYLOAD_SIZE
+                || record.getInt(0) != record.remaining() - RECORD_HEADER_SIZE) {
+            throw new IOException("Undo record of epoch " + sequence + " is truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, record.remaining() - RECORD_HEADER_SIZE);
+        if ((int) crc.getValue() != record.getInt(4) || record.getLong(RECORD_HEADER_SIZE) != sequence) {
+            throw new IOException("Undo record of epoch " + sequence + " is corrupt");
+        }
+    }
+
+    /**
+     * Applies the inverse of the changes of {@code record} to the pool, last change first
+     *
+     * @return the block height of the record
+     */
+    private long undo(ByteBuffer record) {
+        record.position(RECORD_HEADER_SIZE + Long.BYTES);
+        long blockHeight = record.getLong();
+        int count = record.getInt();
+        UTXO[] utxos = new UTXO[count];
+        Transaction.Output[] spent = new Transaction.Output[count];
+        for (int i = 0; i < count; i++) {
+            byte kind = record.get();
+            byte[] txHash = new byte[record.getInt()];
+            record.get(txHash);
+            utxos[i] = new UTXO(txHash, record.getInt());
+            if (kind == SPENT) {
+                long value = record.getLong();
+                int length = record.getInt();
+                Address address = null;
+                if (length != NULL_LENGTH) {
+                    address = Address.decode(record, record.position(), length);
+                    record.position(record.position() + length);
+                }
+                spent[i] = new Transaction.Output(value, address);
+            }
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            if (spent[i] == null) {
+                pool.removeUTXO(utxos[i]);
+            } else {
+                pool.addUTXO(utxos[i], spent[i]);
+            }
+        }
+        return blockHeight;
+    }
+}
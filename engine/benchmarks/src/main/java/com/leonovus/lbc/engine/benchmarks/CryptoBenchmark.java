@@ -0,0 +1,67 @@
+package com.leonovus.lbc.engine.benchmarks;
+
+import com.leonovus.lbc.engine.basic.SignatureScheme;
+import com.leonovus.lbc.engine.basic.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+/** Verification of input signatures, one at a time and in batches, per signature scheme */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+
+    private static final int BATCH = 32;
+
+    @Param({"rsa", "ed25519"})
+    public String scheme;
+
+    private SignatureScheme signatureScheme;
+    private PublicKey[] keys = new PublicKey[BATCH];
+    private byte[][] messages = new byte[BATCH][];
+    private byte[][] signatures = new byte[BATCH][];
+
+    @Setup
+    public void setUp() {
+        signatureScheme = Fixtures.scheme(scheme);
+        for (int i = 0; i < BATCH; i++) {
+            KeyPair owner = signatureScheme.generateKeyPair();
+            Transaction tx = new Transaction();
+            tx.addInput(new byte[32], i);
+            tx.addOutput(1, owner.getPublic());
+            Fixtures.sign(tx, owner.getPrivate(), signatureScheme);
+            keys[i] = owner.getPublic();
+            messages[i] = tx.getRawDataToSign(0);
+            signatures[i] = tx.getInput(0).signature;
+        }
+    }
+
+    @Benchmark
+    public boolean verifySignature() {
+        return signatureScheme.verify(keys[0], messages[0], signatures[0]);
+    }
+
+    /** throughput in signatures per second, comparable with {@link #verifySignature} */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public boolean[] verifyBatch() {
+        return signatureScheme.verifyBatch(keys, messages, signatures);
+    }
+}
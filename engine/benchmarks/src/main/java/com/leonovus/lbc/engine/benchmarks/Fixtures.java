@@ -0,0 +1,79 @@
+package com.leonovus.lbc.engine.benchmarks;
+
+import com.leonovus.lbc.engine.basic.Ed25519SignatureScheme;
+import com.leonovus.lbc.engine.basic.RsaSignatureScheme;
+import com.leonovus.lbc.engine.basic.SignatureScheme;
+import com.leonovus.lbc.engine.basic.Transaction;
+import com.leonovus.lbc.engine.basic.UTXO;
+import com.leonovus.lbc.engine.basic.UTXOPool;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.Random;
+
+/** Keys and signed transactions shared by the benchmarks */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static final SignatureScheme RSA = new RsaSignatureScheme();
+
+    /** @return the scheme named {@code name}: rsa or ed25519 */
+    static SignatureScheme scheme(String name) {
+        switch (name) {
+        case "rsa":
+            return RSA;
+        case "ed25519":
+            return new Ed25519SignatureScheme();
+        default:
+            throw new IllegalArgumentException("Unknown signature scheme: " + name);
+        }
+    }
+
+    static KeyPair keyPair() {
+        return RSA.generateKeyPair();
+    }
+
+    static void sign(Transaction tx, PrivateKey key) {
+        sign(tx, key, RSA);
+    }
+
+    static void sign(Transaction tx, PrivateKey key, SignatureScheme scheme) {
+        for (int i = 0; i < tx.numInputs(); i++) {
+            tx.addSignature(scheme.sign(key, tx.getRawDataToSign(i)), i);
+        }
+        tx.computeHash();
+    }
+
+    /** @return a transaction which only creates {@code outputs} outputs of value 1 for {@code owner} */
+    static Transaction coinbase(KeyPair owner, int outputs, long seed) {
+        Transaction tx = new Transaction();
+        byte[] prevHash = new byte[32];
+        new Random(seed).nextBytes(prevHash);
+        tx.addInput(prevHash, 0);
+        for (int i = 0; i < outputs; i++) {
+            tx.addOutput(1, owner.getPublic());
+        }
+        sign(tx, owner.getPrivate());
+        return tx;
+    }
+
+    /** @return a signed transaction spending output {@code index} of {@code prev} to {@code to} */
+    static Transaction spend(Transaction prev, int index, KeyPair from, KeyPair to) {
+        Transaction tx = new Transaction();
+        tx.addInput(prev.getHash(), index);
+        tx.addOutput(prev.getOutput(index).value, to.getPublic());
+        sign(tx, from.getPrivate());
+        return tx;
+    }
+
+    /** @return a pool holding every output of {@code tx} */
+    static UTXOPool poolOf(Transaction tx) {
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,72 @@
+package com.leonovus.lbc.engine.benchmarks;
+
+import com.leonovus.lbc.engine.basic.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization and hashing of a signed transaction with {@code inputs} inputs and outputs, mutable or
+ * frozen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int inputs;
+
+    private Transaction tx;
+    private Transaction frozen;
+
+    @Setup
+    public void setUp() {
+        KeyPair owner = Fixtures.keyPair();
+        Transaction coinbase = Fixtures.coinbase(owner, inputs, 1);
+        tx = new Transaction();
+        for (int i = 0; i < inputs; i++) {
+            tx.addInput(coinbase.getHash(), i);
+            tx.addOutput(1, owner.getPublic());
+        }
+        Fixtures.sign(tx, owner.getPrivate());
+        frozen = tx.freeze();
+    }
+
+    @Benchmark
+    public byte[] getRawTx() {
+        return tx.getRawTx();
+    }
+
+    @Benchmark
+    public byte[] getRawDataToSign() {
+        return tx.getRawDataToSign(0);
+    }
+
+    /** copy of the data to sign, encoded once */
+    @Benchmark
+    public byte[] getRawDataToSignFrozen() {
+        return frozen.getRawDataToSign(0);
+    }
+
+    /** hashing of the whole transaction, formerly {@code finalize()} */
+    @Benchmark
+    public byte[] computeHash() {
+        tx.computeHash();
+        return tx.getHash();
+    }
+}
@@ -0,0 +1,84 @@
+package com.leonovus.lbc.engine.benchmarks;
+
+import com.leonovus.lbc.engine.basic.SignatureVerifier;
+import com.leonovus.lbc.engine.basic.StripedUTXOStore;
+import com.leonovus.lbc.engine.basic.Transaction;
+import com.leonovus.lbc.engine.basic.TxHandler;
+import com.leonovus.lbc.engine.basic.UTXO;
+import com.leonovus.lbc.engine.basic.UTXOPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation and application of an epoch of {@code epochSize} independent, valid transactions, either
+ * all on the calling thread or on all cores, in which case the pool is a {@link StripedUTXOStore} so that
+ * the transactions are applied in parallel too. Every invocation starts from a fresh copy of the pool, so
+ * the score is epochs per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TxHandlerBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int epochSize;
+
+    @Param({"sequential", "parallel"})
+    public String mode;
+
+    private UTXOPool genesis;
+    private Transaction[] epoch;
+    private SignatureVerifier verifier;
+    private TxHandler handler;
+
+    @Setup
+    public void setUp() {
+        KeyPair alice = Fixtures.keyPair();
+        KeyPair bob = Fixtures.keyPair();
+        Transaction coinbase = Fixtures.coinbase(alice, epochSize, 1);
+        genesis = Fixtures.poolOf(coinbase);
+        if ("parallel".equals(mode)) {
+            UTXOPool striped = new UTXOPool(new StripedUTXOStore());
+            for (int i = 0; i < epochSize; i++) {
+                UTXO utxo = new UTXO(coinbase.getHash(), i);
+                striped.addUTXO(utxo, genesis.getTxOutput(utxo));
+            }
+            genesis = striped;
+        }
+        epoch = new Transaction[epochSize];
+        for (int i = 0; i < epochSize; i++) {
+            epoch[i] = Fixtures.spend(coinbase, i, alice, bob);
+        }
+        verifier = "parallel".equals(mode) ? new SignatureVerifier() : SignatureVerifier.sequential();
+    }
+
+    @Setup(Level.Invocation)
+    public void resetPool() {
+        handler = "parallel".equals(mode)
+                ? new TxHandler(new UTXOPool(genesis), verifier, null, ForkJoinPool.commonPool(),
+                        Runtime.getRuntime().availableProcessors())
+                : new TxHandler(new UTXOPool(genesis), verifier);
+    }
+
+    @Benchmark
+    public Transaction[] handleTxs() {
+        return handler.handleTxs(epoch);
+    }
+}
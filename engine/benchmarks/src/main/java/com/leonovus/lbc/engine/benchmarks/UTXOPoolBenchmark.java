@@ -0,0 +1,102 @@
+package com.leonovus.lbc.engine.benchmarks;
+
+import com.leonovus.lbc.engine.basic.CompactUTXOStore;
+import com.leonovus.lbc.engine.basic.Transaction;
+import com.leonovus.lbc.engine.basic.UTXO;
+import com.leonovus.lbc.engine.basic.UTXOPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and updates of a pool holding {@code size} UTXOs, in either store. The pool keeps its size: every
+ * add is paired with the removal of the UTXO added before it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class UTXOPoolBenchmark {
+
+    private static final int OUTPUTS_PER_TX = 1000;
+
+    @Param({"1000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"hash", "compact"})
+    public String store;
+
+    private UTXOPool pool;
+    private UTXO[] present;
+    private UTXO[] absent;
+    private Transaction.Output output;
+    private UTXO[] churn;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        KeyPair owner = Fixtures.keyPair();
+        output = new Transaction.Output(1, owner.getPublic());
+        pool = "compact".equals(store) ? new UTXOPool(new CompactUTXOStore(false, size)) : new UTXOPool();
+
+        Random random = new Random(1);
+        // a power of two, so that the benchmarks cycle through every key with a mask
+        present = new UTXO[Integer.highestOneBit(Math.min(size, 1 << 16))];
+        for (int i = 0; i < size; i++) {
+            UTXO utxo = new UTXO(randomHash(random), i % OUTPUTS_PER_TX);
+            pool.addUTXO(utxo, output);
+            if (i < present.length) {
+                present[i] = utxo;
+            }
+        }
+        absent = new UTXO[1 << 16];
+        churn = new UTXO[1 << 16];
+        for (int i = 0; i < absent.length; i++) {
+            absent[i] = new UTXO(randomHash(random), 0);
+            churn[i] = new UTXO(randomHash(random), 0);
+        }
+        pool.addUTXO(churn[0], output);
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        return pool.contains(present[next++ & (present.length - 1)]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return pool.contains(absent[next++ & (absent.length - 1)]);
+    }
+
+    @Benchmark
+    public Transaction.Output getTxOutput() {
+        return pool.getTxOutput(present[next++ & (present.length - 1)]);
+    }
+
+    @Benchmark
+    public void addAndRemove() {
+        int i = next++ & (churn.length - 1);
+        pool.addUTXO(churn[(i + 1) & (churn.length - 1)], output);
+        pool.removeUTXO(churn[i]);
+    }
+
+    private static byte[] randomHash(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return hash;
+    }
+}
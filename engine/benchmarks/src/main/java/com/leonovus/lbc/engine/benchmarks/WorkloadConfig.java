@@ -0,0 +1,115 @@
+package com.leonovus.lbc.engine.benchmarks;
+
+/** Shape of the transactions made by a {@link WorkloadGenerator} */
+public class WorkloadConfig {
+
+    private long seed = 1;
+    private String signatureScheme = "ed25519";
+    private int keys = 1000;
+    private int genesisOutputs = 10000;
+    private long genesisValue = 1000000;
+    private int maxInputs = 3;
+    private int maxOutputs = 3;
+    private double addressReuse = 0.5;
+    private double invalidRatio = 0.01;
+    private double doubleSpendRatio = 0.01;
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /** Seed of every random choice: the same configuration gives the same transactions, keys included */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public String getSignatureScheme() {
+        return signatureScheme;
+    }
+
+    /** Scheme the keys sign with, rsa or ed25519 (the default) */
+    public void setSignatureScheme(String signatureScheme) {
+        this.signatureScheme = signatureScheme;
+    }
+
+    public int getKeys() {
+        return keys;
+    }
+
+    /** Number of key pairs, made once and used by every transaction, 1000 by default */
+    public void setKeys(int keys) {
+        this.keys = keys;
+    }
+
+    public int getGenesisOutputs() {
+        return genesisOutputs;
+    }
+
+    /** Number of outputs of the genesis ledger, spread over the keys, 10000 by default */
+    public void setGenesisOutputs(int genesisOutputs) {
+        this.genesisOutputs = genesisOutputs;
+    }
+
+    public long getGenesisValue() {
+        return genesisValue;
+    }
+
+    /** Value of every genesis output in base units, 1000000 by default */
+    public void setGenesisValue(long genesisValue) {
+        this.genesisValue = genesisValue;
+    }
+
+    public int getMaxInputs() {
+        return maxInputs;
+    }
+
+    /** Fan-in: a transaction spends 1 to this many outputs, 3 by default */
+    public void setMaxInputs(int maxInputs) {
+        this.maxInputs = maxInputs;
+    }
+
+    public int getMaxOutputs() {
+        return maxOutputs;
+    }
+
+    /** Fan-out: a transaction creates 1 to this many outputs, 3 by default */
+    public void setMaxOutputs(int maxOutputs) {
+        this.maxOutputs = maxOutputs;
+    }
+
+    public double getAddressReuse() {
+        return addressReuse;
+    }
+
+    /**
+     * Share of the outputs paid to an address which holds unspent outputs already, 0.5 by default; the others
+     * go to the keys in turn
+     */
+    public void setAddressReuse(double addressReuse) {
+        this.addressReuse = addressReuse;
+    }
+
+    public double getInvalidRatio() {
+        return invalidRatio;
+    }
+
+    /**
+     * Share of the transactions which are invalid: a broken signature, more value out than in, or an input
+     * which never existed; 0.01 by default
+     */
+    public void setInvalidRatio(double invalidRatio) {
+        this.invalidRatio = invalidRatio;
+    }
+
+    public double getDoubleSpendRatio() {
+        return doubleSpendRatio;
+    }
+
+    /**
+     * Share of the transactions which are properly signed but spend an output spent before, 0.01 by
+     * default
+     */
+    public void setDoubleSpendRatio(double doubleSpendRatio) {
+        this.doubleSpendRatio = doubleSpendRatio;
+    }
+}
@@ -0,0 +1,314 @@
+package com.leonovus.lbc.engine.benchmarks;
+
+import com.leonovus.lbc.engine.basic.Ed25519SignatureScheme;
+import com.leonovus.lbc.engine.basic.SignatureScheme;
+import com.leonovus.lbc.engine.basic.Transaction;
+import com.leonovus.lbc.engine.basic.TransactionFileWriter;
+import com.leonovus.lbc.engine.basic.UTXO;
+import com.leonovus.lbc.engine.basic.UTXOPool;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic stream of signed transactions over a growing graph of outputs, for soak and throughput runs
+ * (see {@link WorkloadRunner}).
+ *
+ * The generator keeps its own view of the unspent outputs, starting from a {@link #genesis} ledger: a valid
+ * transaction spends random unspent outputs, each input signed by the key owning it, and splits their value
+ * over new outputs, which later transactions spend in turn, in the same batch or after. Keys come from a
+ * fixed pool made once. Invalid transactions and double spends, which spend outputs spent at least
+ * {@link #DOUBLE_SPEND_LAG} batches before, are mixed in at the configured ratios and leave the view
+ * unchanged, so an engine fed the batches in order accepts exactly {@link #getExpectedValid} of them.
+ *
+ * Everything derives from the seed of the configuration: two generators with the same configuration make the
+ * same keys, genesis and transactions.
+ */
+public class WorkloadGenerator {
+
+    /**
+     * Number of batches after which an output spent by the workload may be double spent: an engine must have
+     * processed the batch spending it first by then, or it might take the double spend as the original
+     */
+    public static final int DOUBLE_SPEND_LAG = 16;
+
+    private static final int GENESIS_OUTPUTS_PER_TX = 1000;
+    private static final int SPENT_HISTORY = 100000;
+
+    /** An output known to the generator, and which key owns it */
+    private static final class Coin {
+        final byte[] txHash;
+        final int index;
+        final long value;
+        final int owner;
+        /** the batch which spent the coin, once spent */
+        long spentIn;
+
+        Coin(byte[] txHash, int index, long value, int owner) {
+            this.txHash = txHash;
+            this.index = index;
+            this.value = value;
+            this.owner = owner;
+        }
+    }
+
+    private final WorkloadConfig config;
+    private final SignatureScheme scheme;
+    private final Random random;
+    private final KeyPair[] keys;
+    private final Transaction[] genesis;
+    private final ArrayList<Coin> unspent = new ArrayList<>();
+    /** spent coins, oldest first, to double spend */
+    private final ArrayDeque<Coin> spent = new ArrayDeque<>();
+    private int nextKey;
+    private long batches;
+    private long generated;
+    private long expectedValid;
+
+    /**
+     * Makes the keys and the genesis ledger
+     *
+     * @throws IllegalArgumentException if a count or ratio of {@code config} is out of range
+     */
+    public WorkloadGenerator(WorkloadConfig config) {
+        if (config.getKeys() < 1 || config.getGenesisOutputs() < 1 || config.getGenesisValue() < 1
+                || config.getMaxInputs() < 1 || config.getMaxOutputs() < 1) {
+            throw new IllegalArgumentException("Key, genesis output, value, input and output counts must be "
+                    + "positive");
+        }
+        if (config.getInvalidRatio() < 0 || config.getDoubleSpendRatio() < 0
+                || config.getInvalidRatio() + config.getDoubleSpendRatio() > 1) {
+            throw new IllegalArgumentException("Invalid and double spend ratios must add up to at most 1");
+        }
+        this.config = config;
+        this.scheme = Fixtures.scheme(config.getSignatureScheme());
+        this.random = new Random(config.getSeed());
+        this.keys = new KeyPair[config.getKeys()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyPair();
+        }
+
+        int txCount = (config.getGenesisOutputs() + GENESIS_OUTPUTS_PER_TX - 1) / GENESIS_OUTPUTS_PER_TX;
+        genesis = new Transaction[txCount];
+        int remaining = config.getGenesisOutputs();
+        for (int t = 0; t < txCount; t++) {
+            byte[] prevHash = new byte[32];
+            random.nextBytes(prevHash);
+            Transaction.Builder builder = new Transaction.Builder().addInput(prevHash, 0);
+            int outputs = Math.min(remaining, GENESIS_OUTPUTS_PER_TX);
+            int[] owners = new int[outputs];
+            for (int i = 0; i < outputs; i++) {
+                owners[i] = nextKey();
+                builder.addOutput(config.getGenesisValue(), keys[owners[i]].getPublic());
+            }
+            genesis[t] = builder.build();
+            for (int i = 0; i < outputs; i++) {
+                unspent.add(new Coin(genesis[t].getHash(), i, config.getGenesisValue(), owners[i]));
+            }
+            remaining -= outputs;
+        }
+    }
+
+    /** @return the scheme the transactions are signed with, for the engine to verify them */
+    public SignatureScheme getSignatureScheme() {
+        return scheme;
+    }
+
+    /** @return a new ledger holding the genesis outputs, the one the transactions start from */
+    public UTXOPool genesis() {
+        UTXOPool pool = new UTXOPool();
+        for (Transaction tx : genesis) {
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+            }
+        }
+        return pool;
+    }
+
+    /** @return the next {@code size} transactions, to be proposed together and after the batches before */
+    public Transaction[] nextBatch(int size) {
+        batches++;
+        Transaction[] batch = new Transaction[size];
+        for (int i = 0; i < size; i++) {
+            double draw = random.nextDouble();
+            if (draw < config.getInvalidRatio()) {
+                batch[i] = invalid();
+            } else if (draw < config.getInvalidRatio() + config.getDoubleSpendRatio() && canDoubleSpend()) {
+                batch[i] = doubleSpend();
+            } else {
+                batch[i] = valid();
+                expectedValid++;
+            }
+        }
+        generated += size;
+        return batch;
+    }
+
+    /**
+     * Writes the next {@code transactions} transactions to {@code writer}, made {@code batchSize} at a time
+     * like {@link #nextBatch}. Loading the file in order into an engine started from {@link #genesis} accepts
+     * {@link #getExpectedValid} of them, as long as no epoch spans {@link #DOUBLE_SPEND_LAG} batches.
+     */
+    public void write(TransactionFileWriter writer, long transactions, int batchSize) throws IOException {
+        for (long written = 0; written < transactions; written += batchSize) {
+            for (Transaction tx : nextBatch((int) Math.min(batchSize, transactions - written))) {
+                writer.write(tx);
+            }
+        }
+    }
+
+    /** @return the number of transactions made so far */
+    public long getGenerated() {
+        return generated;
+    }
+
+    /** @return the number of valid transactions among them */
+    public long getExpectedValid() {
+        return expectedValid;
+    }
+
+    /** @return the number of outputs unspent in the view of the generator */
+    public int getUnspentCount() {
+        return unspent.size();
+    }
+
+    /** A transaction spending 1 to maxInputs unspent outputs into 1 to maxOutputs new ones */
+    private Transaction valid() {
+        if (unspent.isEmpty()) {
+            throw new IllegalStateException("The workload has no unspent output left");
+        }
+        Coin[] inputs = new Coin[Math.min(1 + random.nextInt(config.getMaxInputs()), unspent.size())];
+        long total = 0;
+        for (int i = 0; i < inputs.length; i++) {
+            // swap with the last one, which is then dropped
+            int at = random.nextInt(unspent.size());
+            inputs[i] = unspent.get(at);
+            unspent.set(at, unspent.get(unspent.size() - 1));
+            unspent.remove(unspent.size() - 1);
+            total += inputs[i].value;
+        }
+        int[] owners = recipients((int) Math.min(1 + random.nextInt(config.getMaxOutputs()), total));
+        Transaction tx = sign(inputs, owners, total, -1);
+        long share = total / owners.length;
+        for (int i = 0; i < owners.length; i++) {
+            long value = i == owners.length - 1 ? total - share * (owners.length - 1) : share;
+            unspent.add(new Coin(tx.getHash(), i, value, owners[i]));
+        }
+        for (Coin coin : inputs) {
+            coin.spentIn = batches;
+            spent.add(coin);
+        }
+        while (spent.size() > SPENT_HISTORY) {
+            spent.poll();
+        }
+        return tx;
+    }
+
+    /** A transaction spending unspent outputs, but with a broken signature, too much value out or a bad input */
+    private Transaction invalid() {
+        if (unspent.isEmpty()) {
+            // nothing to spend, so an output no ledger knows
+            byte[] unknown = new byte[32];
+            random.nextBytes(unknown);
+            return sign(new Coin[] {new Coin(unknown, 0, 1, nextKey())}, recipients(1), 1, -1);
+        }
+        Coin[] inputs = new Coin[1 + random.nextInt(config.getMaxInputs())];
+        long total = 0;
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = unspent.get(random.nextInt(unspent.size()));
+            total += inputs[i].value;
+        }
+        int[] owners = recipients(1 + random.nextInt(config.getMaxOutputs()));
+        switch (random.nextInt(3)) {
+        case 0:
+            return sign(inputs, owners, total, random.nextInt(inputs.length));
+        case 1:
+            return sign(inputs, owners, total + 1, -1);
+        default:
+            byte[] unknown = new byte[32];
+            random.nextBytes(unknown);
+            Coin real = inputs[0];
+            inputs[0] = new Coin(unknown, real.index, real.value, real.owner);
+            return sign(inputs, owners, total, -1);
+        }
+    }
+
+    private boolean canDoubleSpend() {
+        Coin oldest = spent.peek();
+        return oldest != null && oldest.spentIn <= batches - DOUBLE_SPEND_LAG;
+    }
+
+    /** A properly signed transaction spending an output spent long enough ago */
+    private Transaction doubleSpend() {
+        Coin coin = spent.poll();
+        return sign(new Coin[] {coin}, recipients(1), coin.value, -1);
+    }
+
+    /** @return the owners of {@code count} new outputs, reusing funded addresses at the configured ratio */
+    private int[] recipients(int count) {
+        int[] owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            owners[i] = !unspent.isEmpty() && random.nextDouble() < config.getAddressReuse()
+                    ? unspent.get(random.nextInt(unspent.size())).owner : nextKey();
+        }
+        return owners;
+    }
+
+    /**
+     * @return a frozen transaction spending {@code inputs}, signed by their owners, paying {@code total} over
+     *         outputs to {@code owners}; the signature of input {@code broken}, if any, is corrupted
+     */
+    private Transaction sign(Coin[] inputs, int[] owners, long total, int broken) {
+        Transaction.Builder builder = new Transaction.Builder();
+        for (Coin coin : inputs) {
+            builder.addInput(coin.txHash, coin.index);
+        }
+        long share = total / owners.length;
+        for (int i = 0; i < owners.length; i++) {
+            long value = i == owners.length - 1 ? total - share * (owners.length - 1) : share;
+            builder.addOutput(value, keys[owners[i]].getPublic());
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            byte[] signature = scheme.sign(keys[inputs[i].owner].getPrivate(), builder.getRawDataToSign(i));
+            if (i == broken) {
+                signature = Arrays.copyOf(signature, signature.length);
+                signature[random.nextInt(signature.length)] ^= 1;
+            }
+            builder.addSignature(signature, i);
+        }
+        return builder.build();
+    }
+
+    private int nextKey() {
+        int key = nextKey;
+        nextKey = (nextKey + 1) % keys.length;
+        return key;
+    }
+
+    /** @return a key pair of the scheme derived from the seeded generator */
+    private KeyPair keyPair() {
+        byte[] seed = new byte[32];
+        random.nextBytes(seed);
+        if (scheme instanceof Ed25519SignatureScheme) {
+            Ed25519SignatureScheme.Ed25519PrivateKey key = Ed25519SignatureScheme.privateKey(seed);
+            return new KeyPair(key.getPublicKey(), key);
+        }
+        try {
+            // SHA1PRNG seeded before its first use is deterministic
+            SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+            keyRandom.setSeed(seed);
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048, keyRandom);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not make an RSA key pair", e);
+        }
+    }
+}
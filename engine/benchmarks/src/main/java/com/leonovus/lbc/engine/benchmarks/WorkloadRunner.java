@@ -0,0 +1,210 @@
+package com.leonovus.lbc.engine.benchmarks;
+
+import com.leonovus.lbc.engine.api.Engine;
+import com.leonovus.lbc.engine.api.EngineMetrics;
+import com.leonovus.lbc.engine.api.LatencySnapshot;
+import com.leonovus.lbc.engine.api.Resource;
+import com.leonovus.lbc.engine.basic.BasicEngineConfig;
+import com.leonovus.lbc.engine.basic.BasicEngineFactory;
+import com.leonovus.lbc.engine.basic.BasicResource;
+import com.leonovus.lbc.engine.basic.LatencyHistogram;
+import com.leonovus.lbc.engine.basic.Transaction;
+import com.leonovus.lbc.engine.basic.TransactionFileWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Soak run of a {@link WorkloadGenerator}: streams its batches into a basic engine, or writes them to a
+ * transaction file (see {@link com.leonovus.lbc.engine.basic.BulkLoader}), and reports the sustained rate.
+ *
+ * Arguments are {@code name=value} pairs: the properties of {@link WorkloadConfig} (seed, signatureScheme,
+ * keys, genesisOutputs, genesisValue, maxInputs, maxOutputs, addressReuse, invalidRatio, doubleSpendRatio)
+ * and transactions (total, 1000000 by default), batch (transactions per resource, 1000), inFlight (resources
+ * submitted and not processed yet, 8), report (seconds between reports, 10) and file (write the transactions
+ * there instead of running them). Every report gives the rate over the last interval and the latency of the
+ * batches completed in it, from submission to acceptance; at the end the accepted count is checked against
+ * the one the generator expects, and the run fails if they differ. Run it from the benchmarks jar:
+ * {@code java -cp target/benchmarks.jar com.leonovus.lbc.engine.benchmarks.WorkloadRunner transactions=5000000}.
+ */
+public final class WorkloadRunner {
+
+    private WorkloadRunner() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        WorkloadConfig config = new WorkloadConfig();
+        long transactions = 1000000;
+        int batch = 1000;
+        int inFlight = 8;
+        long reportSeconds = 10;
+        File file = null;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            String value = arg.substring(eq + 1);
+            switch (arg.substring(0, eq)) {
+            case "seed":
+                config.setSeed(Long.parseLong(value));
+                break;
+            case "signatureScheme":
+                config.setSignatureScheme(value);
+                break;
+            case "keys":
+                config.setKeys(Integer.parseInt(value));
+                break;
+            case "genesisOutputs":
+                config.setGenesisOutputs(Integer.parseInt(value));
+                break;
+            case "genesisValue":
+                config.setGenesisValue(Long.parseLong(value));
+                break;
+            case "maxInputs":
+                config.setMaxInputs(Integer.parseInt(value));
+                break;
+            case "maxOutputs":
+                config.setMaxOutputs(Integer.parseInt(value));
+                break;
+            case "addressReuse":
+                config.setAddressReuse(Double.parseDouble(value));
+                break;
+            case "invalidRatio":
+                config.setInvalidRatio(Double.parseDouble(value));
+                break;
+            case "doubleSpendRatio":
+                config.setDoubleSpendRatio(Double.parseDouble(value));
+                break;
+            case "transactions":
+                transactions = Long.parseLong(value);
+                break;
+            case "batch":
+                batch = Integer.parseInt(value);
+                break;
+            case "inFlight":
+                inFlight = Integer.parseInt(value);
+                break;
+            case "report":
+                reportSeconds = Long.parseLong(value);
+                break;
+            case "file":
+                file = new File(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+
+        long start = System.nanoTime();
+        WorkloadGenerator generator = new WorkloadGenerator(config);
+        System.out.printf("Made %d %s keys and %d genesis outputs in %d ms%n", config.getKeys(),
+                generator.getSignatureScheme().getName(), config.getGenesisOutputs(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (file != null) {
+            start = System.nanoTime();
+            try (TransactionFileWriter writer = new TransactionFileWriter(file)) {
+                generator.write(writer, transactions, batch);
+            }
+            System.out.printf("Wrote %d transactions (%d valid) to %s in %d ms%n", generator.getGenerated(),
+                    generator.getExpectedValid(), file, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return;
+        }
+        run(generator, transactions, batch, inFlight, reportSeconds);
+    }
+
+    /**
+     * Streams {@code transactions} transactions of {@code generator}, {@code batch} per resource, into a new
+     * basic engine started from its genesis, with up to {@code inFlight} resources in flight
+     *
+     * @return the number of transactions the engine accepted
+     * @throws IllegalArgumentException if {@code inFlight} is more than the double spend lag of the generator
+     * @throws IllegalStateException if the engine did not accept as many transactions as the generator expects
+     */
+    public static long run(WorkloadGenerator generator, long transactions, int batch, int inFlight,
+            long reportSeconds) {
+        if (batch < 1 || inFlight < 1 || inFlight > WorkloadGenerator.DOUBLE_SPEND_LAG) {
+            throw new IllegalArgumentException("Batch size must be positive and batches in flight between 1 and "
+                    + WorkloadGenerator.DOUBLE_SPEND_LAG + ": " + batch + ", " + inFlight);
+        }
+        BasicEngineConfig engineConfig = new BasicEngineConfig();
+        engineConfig.setSignatureScheme(generator.getSignatureScheme());
+        engineConfig.setJmxEnabled(false);
+        Engine engine = new BasicEngineFactory(engineConfig).createEngine();
+        engine.init(generator.genesis());
+
+        AtomicLong accepted = new AtomicLong();
+        AtomicLong completed = new AtomicLong();
+        AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+        LatencyHistogram overall = new LatencyHistogram();
+        ArrayDeque<CompletableFuture<Resource>> pending = new ArrayDeque<>();
+        long reportNanos = TimeUnit.SECONDS.toNanos(reportSeconds);
+        long start = System.nanoTime();
+        long lastReport = start;
+        long completedAtReport = 0;
+        try {
+            for (long submitted = 0; submitted < transactions; ) {
+                Transaction[] txs = generator.nextBatch((int) Math.min(batch, transactions - submitted));
+                submitted += txs.length;
+                if (pending.size() >= inFlight) {
+                    pending.poll().join();
+                }
+                BasicResource resource = new BasicResource();
+                resource.setProposedTransactions(txs);
+                long submittedAt = System.nanoTime();
+                pending.add(engine.onResourceCreatedAsync(resource).whenComplete((done, e) -> {
+                    long latency = System.nanoTime() - submittedAt;
+                    interval.get().record(latency);
+                    overall.record(latency);
+                    completed.addAndGet(txs.length);
+                    if (done != null) {
+                        accepted.addAndGet(((BasicResource) done).getProposedTransactions().length);
+                    }
+                }));
+
+                long now = System.nanoTime();
+                if (now - lastReport >= reportNanos) {
+                    long done = completed.get();
+                    LatencySnapshot latency = interval.getAndSet(new LatencyHistogram()).snapshot();
+                    System.out.printf("%6d s  %8.0f tx/s  %10d done  batch p50 %6.1f ms  p99 %6.1f ms  "
+                                    + "%d unspent%n", TimeUnit.NANOSECONDS.toSeconds(now - start),
+                            (done - completedAtReport) * 1e9 / (now - lastReport), done,
+                            latency.getP50Nanos() / 1e6, latency.getP99Nanos() / 1e6, generator.getUnspentCount());
+                    lastReport = now;
+                    completedAtReport = done;
+                }
+            }
+            while (!pending.isEmpty()) {
+                pending.poll().join();
+            }
+            long elapsed = System.nanoTime() - start;
+            LatencySnapshot latency = overall.snapshot();
+            System.out.printf("%d transactions in %.1f s: %.0f tx/s, batch p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    completed.get(), elapsed / 1e9, completed.get() * 1e9 / elapsed, latency.getP50Nanos() / 1e6,
+                    latency.getP99Nanos() / 1e6, latency.getMaxNanos() / 1e6);
+            EngineMetrics metrics = engine.getMetrics();
+            if (metrics != null) {
+                System.out.printf("%d epochs, rejected %s, signature p99 %.1f ms, validation p99 %.1f ms, "
+                                + "apply p99 %.1f ms%n", metrics.getEpochsProcessed(),
+                        metrics.getTransactionsRejectedByReason(),
+                        metrics.getSignatureVerificationLatency().getP99Nanos() / 1e6,
+                        metrics.getValidationLatency().getP99Nanos() / 1e6,
+                        metrics.getPoolApplyLatency().getP99Nanos() / 1e6);
+            }
+            System.out.printf("Accepted %d of %d, expected %d%n", accepted.get(), completed.get(),
+                    generator.getExpectedValid());
+            if (accepted.get() != generator.getExpectedValid()) {
+                throw new IllegalStateException("Engine accepted " + accepted.get() + " transactions, the workload "
+                        + "expected " + generator.getExpectedValid());
+            }
+            return accepted.get();
+        } finally {
+            engine.destroy();
+        }
+    }
+}
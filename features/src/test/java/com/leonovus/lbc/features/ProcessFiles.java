@@ -1,25 +1,58 @@
 package com.leonovus.lbc.features;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.stream.Collectors;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.leonovus.lbc.engine.api.Engine;
 import com.leonovus.lbc.engine.api.EngineFactory;
+import com.leonovus.lbc.engine.api.EngineMetrics;
 import com.leonovus.lbc.engine.api.Resource;
 import com.leonovus.lbc.engine.basic.*;
+import com.leonovus.lbc.engine.benchmarks.WorkloadConfig;
+import com.leonovus.lbc.engine.benchmarks.WorkloadGenerator;
+import com.leonovus.lbc.engine.benchmarks.WorkloadRunner;
 import org.junit.Before;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 public class ProcessFiles {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private List<EngineFactory> engineFactories;
 
     private void loadEngineFactories() {
@@ -117,9 +150,8 @@ public class ProcessFiles {
         tx1.addOutput(5, pk_alice.getPublic());
         tx1.addOutput(3, pk_alice.getPublic());
         tx1.addOutput(2, pk_alice.getPublic());
-        // Note that in the real world fixed-point types would be used for the values, not doubles.
-        // Doubles exhibit floating-point rounding errors. This type should be for example BigInteger
-        // and denote the smallest coin fractions (Satoshi in Bitcoin).
+        // Values are longs which denote the smallest coin fractions (Satoshi in Bitcoin), so there are
+        // no floating-point rounding errors.
 
         // There is only one (at position 0) Transaction.Input in tx2
         // and it contains the coin from Bob, therefore I have to sign with the private key from Bob
@@ -165,9 +197,1131 @@ public class ProcessFiles {
 
         basicEngine.destroy();
     }
+    /**
+     * Bob gives his tokens to Alice, then the engine is restarted and has to rebuild the ledger from its epoch log
+     */
+    @Test
+    public void canRestoreLedgerFromEpochLog() throws NoSuchAlgorithmException, SignatureException, IOException {
+        BasicEngineConfig config = new BasicEngineConfig();
+        config.setLogDirectory(temporaryFolder.newFolder("lbc-epochs"));
+        config.setLogSyncCommit(true);
+        config.setUtxoCommitmentEnabled(true);
+        EngineFactory factory = new BasicEngineFactory(config);
+
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 1, 10);
+        UTXOPool ledger = ledgerOf(tx);
+        UTXOPool genesis = new UTXOPool(ledger);
+        Engine basicEngine = factory.createEngine();
+        basicEngine.init(ledger);
+
+        Transaction tx1 = pay(tx, 0, pk_bob, pk_alice, 5, 5);
+        basicEngine.onResourceCreated(epoch(tx1));
+        byte[] stateRoot = ((BasicEngine) basicEngine).getStateRoot();
+        basicEngine.destroy();
+
+        BasicEngine restartedEngine = (BasicEngine) factory.createEngine();
+        restartedEngine.init(genesis);
+
+        assertThat(genesis.contains(new UTXO(tx.getHash(), 0)), is(false));
+        assertThat(genesis.contains(new UTXO(tx1.getHash(), 0)), is(true));
+        assertThat(genesis.contains(new UTXO(tx1.getHash(), 1)), is(true));
+        assertThat(Arrays.equals(restartedEngine.getStateRoot(), stateRoot), is(true));
+
+        restartedEngine.destroy();
+    }
+
+    /**
+     * Bob pays Alice, who pays Bob back; rolling back the second epoch must restore the ledger, state root,
+     * log and chain of the first, and the undo journal must survive a restart
+     */
+    @Test
+    public void canRollBackEpochs() throws NoSuchAlgorithmException, SignatureException, IOException {
+        BasicEngineConfig config = new BasicEngineConfig();
+        config.setLogDirectory(temporaryFolder.newFolder("lbc-epochs"));
+        config.setBlockDirectory(temporaryFolder.newFolder("lbc-blocks"));
+        config.setLogSyncCommit(true);
+        config.setUtxoCommitmentEnabled(true);
+        config.setUndoHistory(10);
+        EngineFactory factory = new BasicEngineFactory(config);
+
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 1, 10);
+        UTXOPool ledger = ledgerOf(tx);
+        UTXOPool genesis = new UTXOPool(ledger);
+
+        BasicEngine basicEngine = (BasicEngine) factory.createEngine();
+        basicEngine.init(ledger);
+        byte[] genesisRoot = basicEngine.getStateRoot();
+
+        Transaction tx1 = pay(tx, 0, pk_bob, pk_alice, 5, 5);
+        basicEngine.onResourceCreated(epoch(tx1));
+        byte[] stateRoot = basicEngine.getStateRoot();
+
+        Transaction tx2 = pay(tx1, 0, pk_alice, pk_bob, 5);
+        basicEngine.onResourceCreated(epoch(tx2));
+        assertThat(basicEngine.getBlockStore().getHeight(), is(2L));
+
+        basicEngine.rollback(1);
+        assertThat(ledger.contains(new UTXO(tx1.getHash(), 0)), is(true));
+        assertThat(ledger.contains(new UTXO(tx2.getHash(), 0)), is(false));
+        assertThat(ledger.getTxOutput(new UTXO(tx1.getHash(), 0)).value, is(5L));
+        assertThat(Arrays.equals(basicEngine.getStateRoot(), stateRoot), is(true));
+        assertThat(basicEngine.getBlockStore().getHeight(), is(1L));
+        assertThat(basicEngine.getBlockStore().getTransaction(tx2.getHash()), nullValue());
+        try {
+            basicEngine.rollback(2);
+            throw new AssertionError("Rolled back more epochs than journaled");
+        } catch (IllegalArgumentException expected) {
+            // only the first epoch is left
+        }
+
+        basicEngine.onResourceCreated(epoch(tx2));
+        assertThat(ledger.contains(new UTXO(tx2.getHash(), 0)), is(true));
+        basicEngine.destroy();
+
+        BasicEngine restartedEngine = (BasicEngine) factory.createEngine();
+        restartedEngine.init(genesis);
+        assertThat(genesis.contains(new UTXO(tx2.getHash(), 0)), is(true));
+        assertThat(restartedEngine.getUndoJournal().size(), is(2));
+        assertThat(restartedEngine.getBlockStore().getTransaction(tx2.getHash()), notNullValue());
+
+        restartedEngine.rollback(2);
+        assertThat(genesis.contains(new UTXO(tx.getHash(), 0)), is(true));
+        assertThat(genesis.size(), is(1));
+        assertThat(Arrays.equals(restartedEngine.getStateRoot(), genesisRoot), is(true));
+        assertThat(restartedEngine.getBlockStore().getHeight(), is(0L));
+        restartedEngine.destroy();
+    }
+
+    /**
+     * Bob pays Alice with a transaction made by a builder: it must be accepted like a mutable one, with the
+     * same hash, and resist any change
+     */
+    @Test
+    public void canRunBasicEngineWithFrozenTransaction() throws NoSuchAlgorithmException, SignatureException {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 1, 10);
+        UTXOPool ledger = ledgerOf(tx);
+        Engine basicEngine = new BasicEngineFactory().createEngine();
+        basicEngine.init(ledger);
+
+        Transaction.Builder builder = new Transaction.Builder()
+                .addInput(tx.getHash(), 0)
+                .addOutput(4, pk_alice.getPublic())
+                .addOutput(6, pk_bob.getPublic());
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        try {
+            sig.initSign(pk_bob.getPrivate());
+            sig.update(builder.getRawDataToSign(0));
+            builder.addSignature(sig.sign(), 0);
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
+        Transaction tx1 = builder.build();
+
+        Transaction mutable = new Transaction(tx1);
+        mutable.computeHash();
+        assertThat(tx1.isFrozen(), is(true));
+        assertThat(Arrays.equals(tx1.getHash(), mutable.getHash()), is(true));
+        tx1.getInput(0).signature[0] ^= 1;
+        tx1.getHash()[0] ^= 1;
+        assertThat(Arrays.equals(tx1.getHash(), mutable.getHash()), is(true));
+        try {
+            tx1.addOutput(1, pk_alice.getPublic());
+            throw new AssertionError("A frozen transaction was changed");
+        } catch (IllegalStateException expected) {
+        }
+
+        basicEngine.onResourceCreated(epoch(tx1));
+
+        assertThat(ledger.contains(new UTXO(tx.getHash(), 0)), is(false));
+        assertThat(ledger.contains(new UTXO(mutable.getHash(), 0)), is(true));
+        assertThat(ledger.getTxOutput(new UTXO(mutable.getHash(), 1)).value, is(6L));
+
+        basicEngine.destroy();
+    }
+
+    /**
+     * Bob pays Alice with block sealing on: the stored block must carry a nonce meeting the difficulty, and a
+     * reopened store must accept it
+     */
+    @Test
+    public void canSealBlocksWithProofOfWork() throws NoSuchAlgorithmException, SignatureException, IOException {
+        File blockDirectory = temporaryFolder.newFolder("lbc-blocks");
+        BasicEngineConfig config = new BasicEngineConfig();
+        config.setBlockDirectory(blockDirectory);
+        config.setBlockDifficulty(12);
+        config.setMiningParallelism(2);
+        BasicEngine basicEngine = (BasicEngine) new BasicEngineFactory(config).createEngine();
+
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 1, 10);
+        basicEngine.init(ledgerOf(tx));
+
+        Transaction tx1 = pay(tx, 0, pk_bob, pk_alice, 10);
+        basicEngine.onResourceCreated(epoch(tx1));
+
+        Block block = basicEngine.getBlockStore().getBlock(0);
+        assertThat(block.getDifficulty(), is(12));
+        assertThat(block.isSealed(), is(true));
+        basicEngine.destroy();
+
+        try (BlockStore store = new BlockStore(blockDirectory, 64 << 20)) {
+            assertThat(store.getHeight(), is(1L));
+            assertThat(store.getBlock(0).getNonce(), is(block.getNonce()));
+            assertThat(store.getTransaction(tx1.getHash()), notNullValue());
+        }
+
+        // a segment of another layout version must be refused, not parsed
+        try (RandomAccessFile segment = new RandomAccessFile(new File(blockDirectory, "blocks-00000.dat"), "rw")) {
+            segment.seek(4);
+            segment.writeInt(0);
+        }
+        try {
+            new BlockStore(blockDirectory, 64 << 20).close();
+            throw new AssertionError("A block segment of another version was opened");
+        } catch (IOException expected) {
+            assertThat(expected.getMessage().contains("supported version"), is(true));
+        }
+    }
+
+    /**
+     * Bob pays Alice, the ledger is snapshotted, then Alice pays Tim; engines restarted from the snapshot,
+     * lazily or not, must replay only the payment to Tim and know every balance
+     */
+    @Test
+    public void canStartFromLedgerSnapshot() throws NoSuchAlgorithmException, SignatureException, IOException {
+        File directory = temporaryFolder.newFolder("lbc-snapshot");
+        BasicEngineConfig config = new BasicEngineConfig();
+        config.setLogDirectory(directory);
+        config.setSnapshotFile(new File(directory, "ledger.snapshot"));
+
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        KeyPair pk_tim = generateKeyPair();
+        int coins = 10000;
+        Transaction tx = coinbase(pk_bob, coins, 1);
+        UTXOPool ledger = ledgerOf(tx);
+        // not a SHA-256 hash
+        ledger.addUTXO(new UTXO(new byte[] {1, 2, 3}, 0), new Transaction.Output(7, pk_tim.getPublic()));
+
+        BasicEngine basicEngine = new BasicEngine(config);
+        basicEngine.init(ledger);
+        Transaction toAlice = pay(tx, 0, pk_bob, pk_alice, 1);
+        basicEngine.onResourceCreated(epoch(toAlice));
+        basicEngine.writeSnapshot(config.getSnapshotFile());
+
+        basicEngine.onResourceCreated(epoch(pay(toAlice, 0, pk_alice, pk_tim, 1)));
+        basicEngine.destroy();
+        File log = new File(directory, "epochs.log");
+        byte[] logged = Files.readAllBytes(log.toPath());
+
+        for (boolean lazy : new boolean[] {true, false}) {
+            // both rounds start from the same log
+            Files.write(log.toPath(), logged);
+            config.setSnapshotLazy(lazy);
+            BasicEngine restartedEngine = new BasicEngine(config);
+            restartedEngine.init(null);
+            restartedEngine.whenIndexed().join();
+            AddressIndex index = restartedEngine.getAddressIndex();
+            assertThat(index.getBalance(pk_bob.getPublic()), is(coins - 1L));
+            assertThat(index.getBalance(pk_alice.getPublic()), is(0L));
+            assertThat(index.getBalance(pk_tim.getPublic()), is(8L));
+
+            Transaction again = pay(tx, 0, pk_bob, pk_tim, 1);
+            Transaction last = pay(tx, coins - 1, pk_bob, pk_tim, 1);
+            restartedEngine.onResourceCreated(epoch(again, last));
+            assertThat(index.getBalance(pk_tim.getPublic()), is(9L));
+            assertThat(index.getUTXOs(pk_tim.getPublic()).contains(new UTXO(last.getHash(), 0)), is(true));
+            restartedEngine.destroy();
+        }
+    }
+
+    /**
+     * Bob pays Alice and Tim with Ed25519 keys; the scheme must match RFC 8032 and the engine must accept the
+     * payments signed by Bob but not the one Tim forges in his name
+     */
+    @Test
+    public void canRunBasicEngineWithEd25519Signatures() {
+        Ed25519SignatureScheme scheme = new Ed25519SignatureScheme();
+        // RFC 8032, 7.1, test 1
+        PrivateKey rfcKey = Ed25519SignatureScheme.privateKey(fromHex(
+                "9d61b19deffd5a60ba844af492ec2cc44449c5697b326919703bac031cae7f60"));
+        PublicKey rfcPublicKey = Ed25519SignatureScheme.decodePublicKey(fromHex(
+                "302a300506032b6570032100d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a"));
+        byte[] rfcSignature = fromHex("e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e065224901555fb8821590a3"
+                + "3bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b");
+        assertThat(Arrays.equals(scheme.sign(rfcKey, new byte[0]), rfcSignature), is(true));
+        assertThat(scheme.verify(rfcPublicKey, new byte[0], rfcSignature), is(true));
+        assertThat(scheme.verify(rfcPublicKey, new byte[] {0}, rfcSignature), is(false));
+
+        BasicEngineConfig config = new BasicEngineConfig();
+        config.setSignatureScheme(scheme);
+        Engine basicEngine = new BasicEngineFactory(config).createEngine();
+
+        KeyPair pk_bob = scheme.generateKeyPair();
+        KeyPair pk_alice = scheme.generateKeyPair();
+        KeyPair pk_tim = scheme.generateKeyPair();
+
+        Transaction tx = new Transaction();
+        tx.addInput(BigInteger.valueOf(0).toByteArray(), 0);
+        tx.addOutput(10, pk_bob.getPublic());
+        tx.addOutput(10, pk_bob.getPublic());
+        tx.addOutput(10, pk_bob.getPublic());
+        signTx(tx, pk_bob.getPrivate(), 0, scheme);
+
+        UTXOPool ledger = ledgerOf(tx);
+        basicEngine.init(ledger);
+
+        Transaction[] txs = new Transaction[3];
+        for (int i = 0; i < txs.length; i++) {
+            txs[i] = new Transaction();
+            txs[i].addInput(tx.getHash(), i);
+            txs[i].addOutput(10, (i == 2 ? pk_tim : pk_alice).getPublic());
+            signTx(txs[i], (i == 2 ? pk_tim : pk_bob).getPrivate(), 0, scheme);
+        }
+        basicEngine.onResourceCreated(epoch(txs));
+
+        assertThat(ledger.contains(new UTXO(txs[0].getHash(), 0)), is(true));
+        assertThat(ledger.contains(new UTXO(txs[1].getHash(), 0)), is(true));
+        assertThat(ledger.contains(new UTXO(txs[2].getHash(), 0)), is(false));
+        assertThat(ledger.contains(new UTXO(tx.getHash(), 2)), is(true));
+
+        basicEngine.destroy();
+    }
+
+    /**
+     * Bob and Tim both try to take Alice's coins, on two threads at the same time: every coin must go to
+     * exactly one of them
+     */
+    @Test
+    public void concurrentEpochsSpendingTheSameOutputHaveOneWinner()
+            throws NoSuchAlgorithmException, SignatureException, InterruptedException, ExecutionException {
+        KeyPair pk_alice = generateKeyPair();
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_tim = generateKeyPair();
+        int coins = 20;
+        Transaction tx = coinbase(pk_alice, coins, 1);
+        UTXOPool ledger = new UTXOPool(new StripedUTXOStore());
+        addOutputs(ledger, tx);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        TxHandler handler = new TxHandler(ledger, SignatureVerifier.sequential(), null, executor, 2);
+
+        List<Callable<Transaction[]>> epochs = new ArrayList<>();
+        for (KeyPair thief : new KeyPair[] {pk_bob, pk_tim}) {
+            Transaction[] txs = new Transaction[coins];
+            for (int i = 0; i < coins; i++) {
+                // Bob goes from the first coin, Tim from the last one
+                txs[i] = pay(tx, thief == pk_bob ? i : coins - 1 - i, pk_alice, thief, 1);
+            }
+            epochs.add(() -> handler.handleTxs(txs));
+        }
+        List<Future<Transaction[]>> results = executor.invokeAll(epochs);
+        executor.shutdown();
+
+        boolean[] taken = new boolean[coins];
+        for (Future<Transaction[]> result : results) {
+            for (Transaction accepted : result.get()) {
+                int coin = accepted.getInput(0).outputIndex;
+                assertThat(taken[coin], is(false));
+                taken[coin] = true;
+            }
+        }
+        for (int i = 0; i < coins; i++) {
+            assertThat(taken[i], is(true));
+            assertThat(ledger.contains(new UTXO(tx.getHash(), i)), is(false));
+        }
+        assertThat(ledger.size(), is(coins));
+    }
+
+    /**
+     * Bob pays Alice 30 times and Alice pays every coin on to Tim; the payments are written to a transaction
+     * file, which is loaded into the engine in batches of 8, plus one forged payment which must be dropped
+     */
+    @Test
+    public void canBulkLoadTransactionFile() throws NoSuchAlgorithmException, SignatureException, IOException {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        KeyPair pk_tim = generateKeyPair();
+        int coins = 30;
+        Transaction tx = coinbase(pk_bob, coins, 1);
+        UTXOPool ledger = ledgerOf(tx);
+
+        File file = temporaryFolder.newFile("transactions.lbct");
+        List<Transaction> toTim = new ArrayList<>();
+        try (TransactionFileWriter writer = new TransactionFileWriter(file)) {
+            for (int i = 0; i < coins; i++) {
+                Transaction toAlice = pay(tx, i, pk_bob, pk_alice, 1);
+                writer.write(toAlice);
+                toTim.add(pay(toAlice, 0, pk_alice, pk_tim, 1));
+            }
+            for (Transaction payment : toTim) {
+                writer.write(payment);
+            }
+            // Alice signs for a coin of Tim
+            writer.write(pay(toTim.get(0), 0, pk_alice, pk_alice, 1));
+            assertThat(writer.getCount(), is(2L * coins + 1));
+        }
+
+        Engine basicEngine = getEngineFactory("basic").createEngine();
+        basicEngine.init(ledger);
+        BulkLoader.Result result = new BulkLoader(basicEngine, 8, 4).load(file);
+        basicEngine.destroy();
+
+        assertThat(result.getTransactions(), is(2L * coins + 1));
+        assertThat(result.getAccepted(), is(2L * coins));
+        assertThat(result.getBytes(), is(file.length()));
+        assertThat(ledger.size(), is(coins));
+        for (Transaction payment : toTim) {
+            assertThat(ledger.contains(new UTXO(payment.getHash(), 0)), is(true));
+        }
+    }
+
+    /** An inner node of a Merkle tree must not pass for a leaf: {@code [a, b, c]} and {@code [ab, c]} differ */
+    @Test
+    public void merkleRootSeparatesLeavesFromInnerNodes() throws NoSuchAlgorithmException {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        byte[] a = sha256.digest(new byte[] {'a'});
+        byte[] b = sha256.digest(new byte[] {'b'});
+        byte[] c = sha256.digest(new byte[] {'c'});
+        byte[] leafA = sha256.digest(concat(new byte[] {0}, a));
+        byte[] leafB = sha256.digest(concat(new byte[] {0}, b));
+        byte[] root = MerkleTree.root(new byte[][] {a, b, c});
+
+        assertThat(Arrays.equals(root, MerkleTree.root(new byte[][] {a, b, c})), is(true));
+        assertThat(Arrays.equals(root, MerkleTree.root(new byte[][] {sha256.digest(concat(a, b)), c})), is(false));
+        assertThat(Arrays.equals(root, MerkleTree.root(new byte[][] {
+                sha256.digest(concat(new byte[] {1}, concat(leafA, leafB))), c})), is(false));
+        assertThat(Arrays.equals(root, MerkleTree.root(new byte[][] {a, b, c, c})), is(false));
+    }
+
+    /**
+     * Random adds, removes and re-adds of outputs, with the filter resized between epochs: it must hold every
+     * output of an exact set of them, count them exactly and answer "maybe" for few others
+     */
+    @Test
+    public void utxoFilterFollowsThePool() throws NoSuchAlgorithmException {
+        PublicKey owner = generateKeyPair().getPublic();
+        Random random = new Random(7);
+        UTXOPool ledger = new UTXOPool();
+        UTXOFilter filter = new UTXOFilter(ledger);
+        long initialSize = filter.getByteSize();
+        Set<UTXO> expected = new HashSet<>();
+        List<UTXO> present = new ArrayList<>();
+        List<UTXO> removed = new ArrayList<>();
+
+        for (int epoch = 0; epoch < 200; epoch++) {
+            for (int i = 0; i < 100; i++) {
+                int draw = random.nextInt(10);
+                if (draw < 3 && !present.isEmpty()) {
+                    UTXO utxo = present.remove(random.nextInt(present.size()));
+                    ledger.removeUTXO(utxo);
+                    expected.remove(utxo);
+                    removed.add(utxo);
+                } else {
+                    UTXO utxo = draw == 3 && !removed.isEmpty() ? removed.remove(random.nextInt(removed.size()))
+                            : new UTXO(randomHash(random), random.nextInt(4));
+                    ledger.addUTXO(utxo, new Transaction.Output(1, owner));
+                    expected.add(utxo);
+                    present.add(utxo);
+                }
+            }
+            filter.resizeIfNeeded();
+            assertThat(filter.size(), is(expected.size()));
+            if (epoch % 20 == 19) {
+                for (UTXO utxo : expected) {
+                    assertThat(filter.mightContain(utxo.getTxHash(), utxo.getIndex()), is(true));
+                }
+            }
+        }
+        assertThat(filter.getByteSize() > initialSize, is(true));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            UTXO utxo = new UTXO(randomHash(random), 0);
+            if (!expected.contains(utxo) && filter.mightContain(utxo.getTxHash(), utxo.getIndex())) {
+                falsePositives++;
+            }
+        }
+        // about one in 8000 expected
+        assertThat(falsePositives < 100, is(true));
+        filter.detach();
+    }
+
+    /**
+     * Random adds, removes and re-adds of outputs into few buckets, which grow deep tries: after every epoch the
+     * root must equal the one of a commitment built from scratch over the same outputs, and proofs must hold
+     * for the outputs in the pool only
+     */
+    @Test
+    public void utxoCommitmentDependsOnTheOutputsOnly() throws NoSuchAlgorithmException {
+        PublicKey owner = generateKeyPair().getPublic();
+        Random random = new Random(3);
+        UTXOPool ledger = new UTXOPool();
+        UTXOCommitment commitment = new UTXOCommitment(ledger, 2);
+        assertThat(Arrays.equals(commitment.commit(), new byte[32]), is(true));
+        List<UTXO> present = new ArrayList<>();
+        List<UTXO> removed = new ArrayList<>();
+
+        for (int epoch = 0; epoch < 40; epoch++) {
+            // the pool grows for 30 epochs, then empties
+            for (int i = 0; i < (epoch < 30 ? 100 : 200) && (epoch < 30 || !present.isEmpty()); i++) {
+                int draw = random.nextInt(10);
+                if (epoch >= 30 || draw < 3 && !present.isEmpty()) {
+                    UTXO utxo = present.remove(random.nextInt(present.size()));
+                    ledger.removeUTXO(utxo);
+                    removed.add(utxo);
+                } else {
+                    UTXO utxo = draw == 3 && !removed.isEmpty() ? removed.remove(random.nextInt(removed.size()))
+                            : new UTXO(randomHash(random), random.nextInt(4));
+                    ledger.addUTXO(utxo, new Transaction.Output(1 + random.nextInt(3), owner));
+                    present.add(utxo);
+                }
+            }
+            byte[] root = commitment.commit();
+            List<UTXO> utxos = ledger.getAllUTXO();
+            Collections.reverse(utxos);
+            UTXOPool copy = new UTXOPool();
+            for (UTXO utxo : utxos) {
+                copy.addUTXO(utxo, ledger.getTxOutput(utxo));
+            }
+            assertThat(Arrays.equals(new UTXOCommitment(copy, 2).commit(), root), is(true));
+
+            for (int i = 0; i < 10 && !present.isEmpty(); i++) {
+                UTXO utxo = present.get(random.nextInt(present.size()));
+                Transaction.Output output = ledger.getTxOutput(utxo);
+                UTXOCommitment.Proof proof = UTXOCommitment.Proof.decode(commitment.prove(utxo).encode());
+                assertThat(proof.verify(root, utxo, output), is(true));
+                assertThat(proof.verify(root, utxo, new Transaction.Output(output.value + 1, owner)), is(false));
+                assertThat(proof.verify(new byte[32], utxo, output), is(false));
+            }
+            if (!removed.isEmpty()) {
+                assertThat(commitment.prove(removed.get(0)), nullValue());
+            }
+        }
+        assertThat(ledger.size(), is(0));
+        assertThat(Arrays.equals(commitment.commit(), new byte[32]), is(true));
+        commitment.detach();
+    }
+
+    /**
+     * A seeded workload applied in parallel, then partly rolled back, which gives spent outputs back to their
+     * addresses: the address index must match a full rescan of the ledger after each
+     */
+    @Test
+    public void addressIndexMatchesARescanOfTheLedger() throws IOException {
+        WorkloadConfig workload = new WorkloadConfig();
+        workload.setSeed(11);
+        workload.setKeys(40);
+        workload.setGenesisOutputs(400);
+        workload.setAddressReuse(0.8);
+        WorkloadGenerator generator = new WorkloadGenerator(workload);
+        UTXOPool ledger = new UTXOPool(new StripedUTXOStore());
+        UTXOPool genesis = generator.genesis();
+        for (UTXO utxo : genesis.getAllUTXO()) {
+            ledger.addUTXO(utxo, genesis.getTxOutput(utxo));
+        }
+
+        BasicEngineConfig config = new BasicEngineConfig();
+        config.setSignatureScheme(generator.getSignatureScheme());
+        config.setApplyParallelism(4);
+        config.setUndoHistory(5);
+        config.setJmxEnabled(false);
+        BasicEngine basicEngine = new BasicEngine(config);
+        basicEngine.init(ledger);
+        for (int i = 0; i < 20; i++) {
+            basicEngine.onResourceCreated(epoch(generator.nextBatch(200)));
+        }
+        assertIndexed(basicEngine.getAddressIndex(), ledger);
+
+        basicEngine.rollback(5);
+        assertIndexed(basicEngine.getAddressIndex(), ledger);
+        basicEngine.destroy();
+    }
+
+    /**
+     * Bob submits payments with different fees to the mempool of the engine: a double spend and a forgery are
+     * refused, the highest fee payment is proposed first, and a pending payment is dropped once an epoch from
+     * elsewhere spends its coin
+     */
+    @Test
+    public void canProposeEpochsFromMempool() throws NoSuchAlgorithmException, SignatureException {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 3, 10);
+        UTXOPool ledger = ledgerOf(tx);
+        BasicEngineConfig config = new BasicEngineConfig();
+        config.setMempoolBytes(1 << 20);
+        BasicEngine basicEngine = new BasicEngine(config);
+        basicEngine.init(ledger);
+
+        Transaction cheap = pay(tx, 0, pk_bob, pk_alice, 9);
+        Transaction dear = pay(tx, 1, pk_bob, pk_alice, 5);
+        Transaction pending = pay(tx, 2, pk_bob, pk_alice, 8);
+        assertThat(basicEngine.submit(cheap), is(true));
+        assertThat(basicEngine.submit(dear), is(true));
+        assertThat(basicEngine.submit(pending), is(true));
+        assertThat(basicEngine.submit(pay(tx, 0, pk_bob, pk_bob, 9)), is(false));
+        Transaction forged = new Transaction();
+        forged.addInput(tx.getHash(), 0);
+        forged.addOutput(1, pk_alice.getPublic());
+        signTx(forged, pk_alice.getPrivate(), 0);
+        assertThat(basicEngine.submit(forged), is(false));
+
+        Resource proposed = basicEngine.proposeFromMempool(1, 1 << 20).join();
+        assertThat(((BasicResource) proposed).getProposedTransactions()[0], is(dear));
+        assertThat(ledger.contains(new UTXO(dear.getHash(), 0)), is(true));
+        assertThat(basicEngine.getMempool().size(), is(2));
+
+        basicEngine.onResourceCreated(epoch(pay(tx, 2, pk_bob, pk_bob, 10)));
+        assertThat(basicEngine.getMempool().size(), is(1));
+        proposed = basicEngine.proposeFromMempool(10, 1 << 20).join();
+        assertThat(((BasicResource) proposed).getProposedTransactions().length, is(1));
+        assertThat(ledger.contains(new UTXO(cheap.getHash(), 0)), is(true));
+        assertThat(ledger.contains(new UTXO(pending.getHash(), 0)), is(false));
+        assertThat(basicEngine.proposeFromMempool(10, 1 << 20).join(), nullValue());
+        basicEngine.destroy();
+    }
+
+    /**
+     * A seeded workload of chained payments, with invalid transactions and double spends mixed in, streamed
+     * into an engine: it must accept exactly the valid ones
+     */
+    @Test
+    public void acceptsExactlyTheValidTransactionsOfAWorkload() {
+        WorkloadConfig config = new WorkloadConfig();
+        config.setSeed(42);
+        config.setKeys(50);
+        config.setGenesisOutputs(500);
+        config.setInvalidRatio(0.1);
+        config.setDoubleSpendRatio(0.1);
+        WorkloadGenerator generator = new WorkloadGenerator(config);
+
+        long accepted = WorkloadRunner.run(generator, 5000, 100, 4, 60);
+
+        assertThat(accepted, is(generator.getExpectedValid()));
+        assertThat(accepted < generator.getGenerated(), is(true));
+    }
+
     /**
      * Test Utilities
      */
+    /**
+     * Case is that verifying an epoch on several threads accepts exactly the transactions verifying it on one
+     * thread does, whatever is wrong with the others
+     */
+    @Test
+    public void parallelVerifierAgreesWithTheSequentialOne() throws NoSuchAlgorithmException, SignatureException {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 200, 1);
+        Random random = new Random(1);
+
+        // two inputs each, so that the inputs of some transactions fall in different batches
+        Transaction[] txs = new Transaction[100];
+        PublicKey[][] keys = new PublicKey[txs.length][];
+        boolean[] expected = new boolean[txs.length];
+        for (int t = 0; t < txs.length; t++) {
+            // 0: valid, 1: signed by Alice, 2: second input unsigned, 3: unknown output, 4: tampered signature
+            int flaw = random.nextInt(5);
+            txs[t] = new Transaction();
+            txs[t].addInput(tx.getHash(), 2 * t);
+            txs[t].addInput(tx.getHash(), 2 * t + 1);
+            txs[t].addOutput(2, pk_alice.getPublic());
+            signTx(txs[t], (flaw == 1 ? pk_alice : pk_bob).getPrivate(), 0);
+            if (flaw != 2) {
+                signTx(txs[t], pk_bob.getPrivate(), 1);
+            }
+            if (flaw == 4) {
+                byte[] signature = txs[t].getInput(1).signature.clone();
+                signature[signature.length / 2] ^= 1;
+                txs[t].addSignature(signature, 1);
+                txs[t].computeHash();
+            }
+            keys[t] = new PublicKey[] {pk_bob.getPublic(), flaw == 3 ? null : pk_bob.getPublic()};
+            expected[t] = flaw == 0;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            boolean[] sequential = SignatureVerifier.sequential().verify(txs, keys);
+            boolean[] parallel = new SignatureVerifier(executor, 4).verify(txs, keys);
+            assertThat(Arrays.equals(sequential, expected), is(true));
+            assertThat(Arrays.equals(parallel, sequential), is(true));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Case is that the transaction id and the signed data keep the layout they always had: every input as
+     * previous hash, output index and signature, then every output as value and encoded address
+     */
+    @Test
+    public void rawTransactionBytesKeepTheirLayout() throws NoSuchAlgorithmException {
+        String address = "302a300506032b6570032100"
+                + "0102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f20";
+        PublicKey key = Ed25519SignatureScheme.decodePublicKey(fromHex(address));
+        Transaction tx = new Transaction();
+        tx.addInput(fromHex("aabbcc"), 1);
+        tx.addInput(fromHex("dd"), 258);
+        tx.addSignature(fromHex("0102"), 0);
+        tx.addOutput(5, key);
+        tx.addOutput(300, key);
+
+        String outputs = "0000000000000005" + address + "000000000000012c" + address;
+        byte[] rawTx = fromHex("aabbcc" + "00000001" + "0102" + "dd" + "00000102" + outputs);
+        assertThat(Arrays.equals(tx.getRawTx(), rawTx), is(true));
+        assertThat(Arrays.equals(tx.getRawDataToSign(0), fromHex("aabbcc" + "00000001" + outputs)), is(true));
+        assertThat(Arrays.equals(tx.getRawDataToSign(1), fromHex("dd" + "00000102" + outputs)), is(true));
+
+        Transaction frozen = tx.freeze();
+        assertThat(Arrays.equals(frozen.getRawTx(), rawTx), is(true));
+        assertThat(Arrays.equals(frozen.getRawDataToSign(1), tx.getRawDataToSign(1)), is(true));
+        tx.computeHash();
+        assertThat(Arrays.equals(frozen.getHash(), MessageDigest.getInstance("SHA-256").digest(rawTx)), is(true));
+        assertThat(Arrays.equals(tx.getHash(), frozen.getHash()), is(true));
+    }
+
+    /**
+     * Case is that a transaction comes out of its framed encoding as it went in, absent fields included
+     */
+    @Test
+    public void transactionCodecRoundTrips() throws NoSuchAlgorithmException, SignatureException {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction signed = pay(coinbase(pk_bob, 2, 3), 1, pk_bob, pk_alice, 1, 2);
+        Transaction unhashed = new Transaction();
+        unhashed.addInput(signed.getHash(), 0);
+        unhashed.addInput(null, 1);
+        unhashed.addOutput(4, pk_bob.getPublic());
+        Transaction empty = new Transaction();
+        Transaction[] txs = {signed, unhashed, empty, signed.freeze()};
+
+        int size = 0;
+        for (Transaction tx : txs) {
+            assertThat(TransactionCodec.encode(tx).length, is(TransactionCodec.encodedSize(tx)));
+            size += TransactionCodec.encodedSize(tx);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Transaction tx : txs) {
+            TransactionCodec.encode(tx, buffer);
+        }
+        buffer.flip();
+        for (Transaction tx : txs) {
+            Transaction decoded = TransactionCodec.decode(buffer);
+            assertThat(Arrays.equals(decoded.getHash(), tx.getHash()), is(true));
+            assertThat(decoded.numInputs(), is(tx.numInputs()));
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input in = tx.getInput(i);
+                Transaction.Input decodedIn = decoded.getInput(i);
+                assertThat(Arrays.equals(decodedIn.prevTxHash, in.prevTxHash), is(true));
+                assertThat(decodedIn.outputIndex, is(in.outputIndex));
+                assertThat(Arrays.equals(decodedIn.signature, in.signature), is(true));
+            }
+            assertThat(decoded.numOutputs(), is(tx.numOutputs()));
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                assertThat(decoded.getOutputValue(i), is(tx.getOutputValue(i)));
+                assertThat(decoded.getOutputAddress(i) == tx.getOutputAddress(i), is(true));
+            }
+            assertThat(Arrays.equals(decoded.getRawTx(), tx.getRawTx()), is(true));
+        }
+        assertThat(buffer.hasRemaining(), is(false));
+        assertThat(unhashed.getHash(), nullValue());
+        assertThat(unhashed.getInput(1).prevTxHash, nullValue());
+        assertThat(unhashed.getInput(0).signature, nullValue());
+    }
+
+    /**
+     * Case is that the compact store, on the heap or off it, holds exactly what the default store holds while
+     * it grows and empties again
+     */
+    @Test
+    public void compactUTXOStoreMatchesHashUTXOStore() {
+        Ed25519SignatureScheme scheme = new Ed25519SignatureScheme();
+        PublicKey[] owners = new PublicKey[8];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = scheme.generateKeyPair().getPublic();
+        }
+        Random random = new Random(5);
+        // few enough UTXOs that most removals hit a stored one and shift the entries probed after it back
+        UTXO[] utxos = new UTXO[20000];
+        for (int i = 0; i < utxos.length; i++) {
+            // some hashes are not SHA-256 ones and are kept on the side
+            byte[] hash = i % 100 == 0 ? new byte[] {(byte) i, (byte) (i >> 8)} : randomHash(random);
+            utxos[i] = new UTXO(hash, random.nextInt(3));
+        }
+
+        for (boolean offHeap : new boolean[] {false, true}) {
+            CompactUTXOStore store = new CompactUTXOStore(offHeap);
+            HashUTXOStore expected = new HashUTXOStore();
+            for (int op = 0; op < 200000; op++) {
+                UTXO utxo = utxos[random.nextInt(utxos.length)];
+                // mostly puts, then mostly removals, twice
+                boolean growing = op / 50000 % 2 == 0;
+                if (random.nextInt(10) < (growing ? 3 : 7)) {
+                    store.remove(utxo);
+                    expected.remove(utxo);
+                } else {
+                    Transaction.Output txOut = new Transaction.Output(random.nextInt(1000),
+                            owners[random.nextInt(owners.length)]);
+                    store.put(utxo, txOut);
+                    expected.put(utxo, txOut);
+                }
+                assertThat(store.contains(utxo), is(expected.contains(utxo)));
+                if (op % 10000 == 9999) {
+                    assertStored(store, expected);
+                }
+            }
+            assertStored(store.copy(), expected);
+
+            for (UTXO utxo : utxos) {
+                store.remove(utxo);
+            }
+            assertThat(store.size(), is(0));
+            assertThat(store.keys().isEmpty(), is(true));
+        }
+    }
+
+    /**
+     * Case is that the compact store refuses sizes its table can not hold instead of failing to allocate it
+     */
+    @Test
+    public void compactUTXOStoreRejectsTablesItCanNotHold() {
+        // 2^26 slots would take 3 GB, more than a direct buffer holds
+        try {
+            new CompactUTXOStore(true, 30000000);
+            throw new AssertionError("An off-heap table of 30M UTXOs was allocated");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new CompactUTXOStore(false, Integer.MAX_VALUE);
+            throw new AssertionError("An on-heap table of 2^31 UTXOs was allocated");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Case is that the future of a queued resource completes with the transactions of it which were accepted
+     */
+    @Test
+    public void canProcessResourcesAsynchronously() throws NoSuchAlgorithmException, SignatureException {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        KeyPair pk_tim = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 3, 1);
+        UTXOPool ledger = ledgerOf(tx);
+        BasicEngine basicEngine = new BasicEngine();
+        basicEngine.init(ledger);
+
+        Transaction toAlice = pay(tx, 0, pk_bob, pk_alice, 1);
+        // Alice signs for a coin of Bob
+        Transaction forged = pay(tx, 1, pk_alice, pk_alice, 1);
+        Transaction doubleSpend = pay(tx, 0, pk_bob, pk_tim, 1);
+        Transaction toTim = pay(tx, 2, pk_bob, pk_tim, 1);
+        CompletableFuture<Resource> first = basicEngine.onResourceCreatedAsync(epoch(toAlice, forged));
+        CompletableFuture<Resource> second = basicEngine.onResourceCreatedAsync(epoch(doubleSpend, toTim));
+        CompletableFuture<Resource> empty = basicEngine.onResourceCreatedAsync(epoch());
+
+        assertThat(Arrays.asList(((BasicResource) first.join()).getProposedTransactions()),
+                is(Collections.singletonList(toAlice)));
+        assertThat(Arrays.asList(((BasicResource) second.join()).getProposedTransactions()),
+                is(Collections.singletonList(toTim)));
+        assertThat(empty.isCompletedExceptionally(), is(true));
+        assertThat(ledger.contains(new UTXO(toAlice.getHash(), 0)), is(true));
+        assertThat(ledger.contains(new UTXO(tx.getHash(), 1)), is(true));
+        basicEngine.destroy();
+    }
+
+    /**
+     * Case is that submitters wait while the ingestion queue is full, and that the resources which waited in
+     * it are processed together
+     */
+    @Test
+    public void ingestionQueueHoldsSubmittersBackAndCoalescesWhatWaited() throws NoSuchAlgorithmException,
+            SignatureException, InterruptedException, ExecutionException {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 4, 1);
+        UTXOPool ledger = ledgerOf(tx);
+        CountDownLatch applying = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // holds the pipeline thread in the first epoch until released
+        ledger.addListener(new UTXOPoolListener() {
+            @Override
+            public void utxoAdded(UTXO utxo, Transaction.Output txOut) {
+                applying.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void utxoRemoved(UTXO utxo, Transaction.Output txOut) {
+            }
+        });
+        BasicEngineConfig config = new BasicEngineConfig();
+        config.setIngestionQueueCapacity(2);
+        config.setJmxEnabled(false);
+        BasicEngine basicEngine = new BasicEngine(config);
+        basicEngine.init(ledger);
+
+        List<CompletableFuture<Resource>> results = new ArrayList<>();
+        results.add(basicEngine.onResourceCreatedAsync(epoch(pay(tx, 0, pk_bob, pk_alice, 1))));
+        applying.await();
+        results.add(basicEngine.onResourceCreatedAsync(epoch(pay(tx, 1, pk_bob, pk_alice, 1))));
+        results.add(basicEngine.onResourceCreatedAsync(epoch(pay(tx, 2, pk_bob, pk_alice, 1))));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            BasicResource last = epoch(pay(tx, 3, pk_bob, pk_alice, 1));
+            Future<CompletableFuture<Resource>> queued = executor.submit(
+                    () -> basicEngine.onResourceCreatedAsync(last));
+            Thread.sleep(200);
+            assertThat(queued.isDone(), is(false));
+
+            release.countDown();
+            results.add(queued.get());
+        } finally {
+            executor.shutdown();
+        }
+        for (CompletableFuture<Resource> result : results) {
+            assertThat(((BasicResource) result.join()).getProposedTransactions().length, is(1));
+        }
+        // the two resources queued behind the first epoch make up one
+        assertThat(basicEngine.getMetrics().getEpochsProcessed() <= 3, is(true));
+        assertThat(ledger.size(), is(4));
+        basicEngine.destroy();
+    }
+
+    /**
+     * Case is that the engine metrics count what an epoch accepted and why it rejected the rest, both in the
+     * snapshot and through JMX
+     */
+    @Test
+    public void engineMetricsCountAcceptedAndRejectedTransactions() throws Exception {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 2, 1);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName engines = new ObjectName("com.leonovus.lbc.engine:type=BasicEngine,*");
+        Set<ObjectName> registered = server.queryNames(engines, null);
+        BasicEngine basicEngine = new BasicEngine();
+        basicEngine.init(ledgerOf(tx));
+        Set<ObjectName> names = server.queryNames(engines, null);
+        names.removeAll(registered);
+        assertThat(names.size(), is(1));
+        ObjectName name = names.iterator().next();
+
+        // Bob spends his first coin twice, Alice signs for his second one
+        basicEngine.onResourceCreated(epoch(pay(tx, 0, pk_bob, pk_alice, 1), pay(tx, 0, pk_bob, pk_bob, 1),
+                pay(tx, 1, pk_alice, pk_alice, 1)));
+
+        EngineMetrics metrics = basicEngine.getMetrics();
+        assertThat(metrics.getEpochsProcessed(), is(1L));
+        assertThat(metrics.getTransactionsAccepted(), is(1L));
+        assertThat(metrics.getTransactionsRejected(), is(2L));
+        Map<String, Long> expected = new HashMap<>();
+        expected.put(RejectionReason.DOUBLE_SPEND.name(), 1L);
+        expected.put(RejectionReason.INVALID_SIGNATURE.name(), 1L);
+        assertThat(metrics.getTransactionsRejectedByReason(), is(expected));
+        assertThat(metrics.getUtxoPoolSize(), is(2L));
+        assertThat(server.getAttribute(name, "TransactionsAccepted"), is((Object) 1L));
+        assertThat(server.getAttribute(name, "TransactionsRejected"), is((Object) 2L));
+
+        basicEngine.destroy();
+        assertThat(server.isRegistered(name), is(false));
+    }
+
+    /**
+     * Case is that a transaction verified once is answered by the signature cache when it comes again
+     */
+    @Test
+    public void signatureCacheAnswersResubmittedTransactions() throws NoSuchAlgorithmException, SignatureException {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 1, 1);
+        SignatureCache cache = new SignatureCache(1000);
+        SignatureVerifier verifier = new SignatureVerifier(null, 1, cache);
+        Transaction[] txs = {pay(tx, 0, pk_bob, pk_alice, 1)};
+        PublicKey[][] keys = {{pk_bob.getPublic()}};
+
+        assertThat(verifier.verify(txs, keys)[0], is(true));
+        assertThat(cache.getHits(), is(0L));
+        assertThat(cache.size(), is(1));
+        long hashed = verifier.getBytesHashed();
+
+        assertThat(verifier.verify(txs, keys)[0], is(true));
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getHitRatio(), is(0.5));
+        // the signature was not checked again
+        assertThat(verifier.getBytesHashed(), is(hashed));
+
+        UTXOPool ledger = ledgerOf(tx);
+        TxHandler handler = new TxHandler(ledger, verifier);
+        assertThat(handler.handleTxs(txs).length, is(1));
+        assertThat(cache.getHits(), is(2L));
+    }
+
+    /**
+     * Case is that the signature cache does not vouch for a verified signature copied onto other outputs
+     */
+    @Test
+    public void signatureCacheDoesNotVouchForReusedSignatures() throws NoSuchAlgorithmException, SignatureException {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        KeyPair pk_tim = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 1, 1);
+        SignatureCache cache = new SignatureCache(1000);
+        SignatureVerifier verifier = new SignatureVerifier(null, 1, cache);
+        Transaction toAlice = pay(tx, 0, pk_bob, pk_alice, 1);
+        PublicKey[][] keys = {{pk_bob.getPublic()}};
+        assertThat(verifier.verify(new Transaction[] {toAlice}, keys)[0], is(true));
+
+        // Tim takes the hash and signature of Bob's payment to Alice and pays himself
+        Transaction forged = new Transaction();
+        forged.addInput(tx.getHash(), 0);
+        forged.addOutput(1, pk_tim.getPublic());
+        forged.addSignature(toAlice.getInput(0).signature, 0);
+        forged.setHash(toAlice.getHash());
+        assertThat(verifier.verify(new Transaction[] {forged}, keys)[0], is(false));
+
+        UTXOPool ledger = ledgerOf(tx);
+        TxHandler handler = new TxHandler(ledger, verifier);
+        assertThat(handler.handleTxs(new Transaction[] {forged}).length, is(0));
+        assertThat(cache.getHits(), is(0L));
+        assertThat(ledger.contains(new UTXO(tx.getHash(), 0)), is(true));
+        assertThat(handler.handleTxs(new Transaction[] {toAlice}).length, is(1));
+    }
+
+    /**
+     * Case is that equal keys, however they were obtained, share one interned address
+     */
+    @Test
+    public void equalKeysShareOneAddress() throws GeneralSecurityException {
+        PublicKey bob = generateKeyPair().getPublic();
+        PublicKey sameBob = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(bob.getEncoded()));
+        assertThat(sameBob == bob, is(false));
+        Address address = Address.of(bob);
+        assertThat(Address.of(sameBob) == address, is(true));
+        assertThat(Address.decode(bob.getEncoded()) == address, is(true));
+        assertThat(Address.of(generateKeyPair().getPublic()) == address, is(false));
+
+        // decoded first, then asked for by key
+        PublicKey alice = generateKeyPair().getPublic();
+        Address decoded = Address.decode(alice.getEncoded());
+        assertThat(Address.of(alice) == decoded, is(true));
+        assertThat(decoded.getKey().equals(alice), is(true));
+
+        PublicKey tim = new Ed25519SignatureScheme().generateKeyPair().getPublic();
+        PublicKey sameTim = Ed25519SignatureScheme.decodePublicKey(tim.getEncoded());
+        assertThat(Address.of(sameTim) == Address.of(tim), is(true));
+        assertThat(Address.decode(tim.getEncoded()) == Address.of(tim), is(true));
+    }
+
+    /**
+     * Case is that the blocks of a rollback can not be truncated: the rollback must fail, but leave the ledger,
+     * log and undo journal agreeing on the epochs that are left
+     */
+    @Test
+    public void rollbackKeepsLedgerAndLogInStepWhenTruncationFails()
+            throws NoSuchAlgorithmException, SignatureException, IOException {
+        BasicEngineConfig config = new BasicEngineConfig();
+        config.setLogDirectory(temporaryFolder.newFolder("lbc-epochs"));
+        File blockDirectory = temporaryFolder.newFolder("lbc-blocks");
+        config.setBlockDirectory(blockDirectory);
+        // every block gets a segment of its own
+        config.setBlockSegmentSize(256);
+        config.setUndoHistory(10);
+
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 1, 10);
+        UTXOPool ledger = ledgerOf(tx);
+        UTXOPool genesis = new UTXOPool(ledger);
+
+        BasicEngine basicEngine = (BasicEngine) new BasicEngineFactory(config).createEngine();
+        basicEngine.init(ledger);
+        Transaction tx1 = pay(tx, 0, pk_bob, pk_alice, 10);
+        Transaction tx2 = pay(tx1, 0, pk_alice, pk_bob, 10);
+        Transaction tx3 = pay(tx2, 0, pk_bob, pk_alice, 10);
+        basicEngine.onResourceCreated(epoch(tx1));
+        basicEngine.onResourceCreated(epoch(tx2));
+        basicEngine.onResourceCreated(epoch(tx3));
+        assertThat(basicEngine.getBlockStore().getHeight(), is(3L));
+
+        // a directory in place of the last segment can not be deleted
+        File[] segments = blockDirectory.listFiles();
+        Arrays.sort(segments);
+        File lastSegment = segments[segments.length - 1];
+        assertThat(lastSegment.delete() && lastSegment.mkdir(), is(true));
+        assertThat(new File(lastSegment, "in-the-way").createNewFile(), is(true));
+        try {
+            basicEngine.rollback(2);
+            throw new AssertionError("Rolled back blocks which could not be truncated");
+        } catch (IOException expected) {
+            // the log was truncated before the blocks
+        }
+        assertThat(ledger.contains(new UTXO(tx1.getHash(), 0)), is(true));
+        assertThat(ledger.contains(new UTXO(tx2.getHash(), 0)), is(false));
+        assertThat(ledger.contains(new UTXO(tx3.getHash(), 0)), is(false));
+        assertThat(basicEngine.getUndoJournal().size(), is(1));
+        basicEngine.destroy();
+
+        config.setBlockDirectory(null);
+        BasicEngine restartedEngine = (BasicEngine) new BasicEngineFactory(config).createEngine();
+        restartedEngine.init(genesis);
+        assertThat(genesis.contains(new UTXO(tx1.getHash(), 0)), is(true));
+        assertThat(genesis.contains(new UTXO(tx2.getHash(), 0)), is(false));
+        assertThat(restartedEngine.getUndoJournal().size(), is(1));
+        restartedEngine.destroy();
+    }
+
+    /**
+     * Case is that epochs which could not be truncated are replayed from a log that is still appended to:
+     * the replay must see every record written, and appends go on after it
+     */
+    @Test
+    public void epochLogReplaysAfterAppends() throws NoSuchAlgorithmException, SignatureException, IOException {
+        KeyPair pk_bob = generateKeyPair();
+        KeyPair pk_alice = generateKeyPair();
+        Transaction tx = coinbase(pk_bob, 1, 10);
+        Transaction tx1 = pay(tx, 0, pk_bob, pk_alice, 10);
+        Transaction tx2 = pay(tx1, 0, pk_alice, pk_bob, 10);
+
+        File logFile = new File(temporaryFolder.newFolder("lbc-epochs"), "epochs.log");
+        try (EpochLog epochLog = new EpochLog(logFile, 10)) {
+            epochLog.append(new Transaction[]{tx});
+            epochLog.append(new Transaction[]{tx1});
+            long end = epochLog.append(new Transaction[]{tx2});
+
+            List<Long> sequences = new ArrayList<>();
+            List<Transaction> txs = new ArrayList<>();
+            epochLog.replay(1, (sequence, epochTxs) -> {
+                sequences.add(sequence);
+                txs.addAll(Arrays.asList(epochTxs));
+            });
+            assertThat(sequences, is(Arrays.asList(1L, 2L)));
+            assertThat(Arrays.equals(txs.get(0).getHash(), tx1.getHash()), is(true));
+            assertThat(Arrays.equals(txs.get(1).getHash(), tx2.getHash()), is(true));
+            assertThat(epochLog.getNextSequence(), is(3L));
+
+            assertThat(epochLog.append(new Transaction[]{tx}) > end, is(true));
+            assertThat(epochLog.getNextSequence(), is(4L));
+        }
+        try (EpochLog epochLog = new EpochLog(logFile, 10)) {
+            List<Long> sequences = new ArrayList<>();
+            epochLog.replay((sequence, epochTxs) -> sequences.add(sequence));
+            assertThat(sequences, is(Arrays.asList(0L, 1L, 2L, 3L)));
+        }
+    }
+
     private EngineFactory getEngineFactory(String engineName) {
         return engineFactories.stream().filter(e -> e.getName().toLowerCase().equals(engineName.toLowerCase()))
                 .findFirst()
@@ -178,6 +1332,52 @@ public class ProcessFiles {
                 });
     }
 
+    private static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+        return KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    }
+
+    /** @return a root transaction giving {@code owner} {@code coins} outputs of {@code value} each */
+    private Transaction coinbase(KeyPair owner, int coins, long value) throws SignatureException {
+        Transaction tx = new Transaction();
+        tx.addInput(BigInteger.valueOf(0).toByteArray(), 0);
+        for (int i = 0; i < coins; i++) {
+            tx.addOutput(value, owner.getPublic());
+        }
+        signTx(tx, owner.getPrivate(), 0);
+        return tx;
+    }
+
+    /** @return a ledger holding every output of {@code tx} */
+    private static UTXOPool ledgerOf(Transaction tx) {
+        UTXOPool ledger = new UTXOPool();
+        addOutputs(ledger, tx);
+        return ledger;
+    }
+
+    private static void addOutputs(UTXOPool ledger, Transaction tx) {
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            ledger.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+    }
+
+    /** @return a transaction in which {@code payer} pays output {@code index} of {@code from} to {@code payee} */
+    private Transaction pay(Transaction from, int index, KeyPair payer, KeyPair payee, long... values)
+            throws SignatureException {
+        Transaction tx = new Transaction();
+        tx.addInput(from.getHash(), index);
+        for (long value : values) {
+            tx.addOutput(value, payee.getPublic());
+        }
+        signTx(tx, payer.getPrivate(), 0);
+        return tx;
+    }
+
+    private static BasicResource epoch(Transaction... txs) {
+        BasicResource resource = new BasicResource();
+        resource.setProposedTransactions(txs);
+        return resource;
+    }
+
     public void signTx(Transaction tx, PrivateKey sk, int input) throws SignatureException {
         Signature sig;
         try {
@@ -188,8 +1388,61 @@ public class ProcessFiles {
             throw new RuntimeException(e);
         }
         tx.addSignature(sig.sign(),input);
-        // Note that this method is incorrectly named, and should not in fact override the Java
-        // object finalize garbage collection related method.
-        tx.finalize();
+        tx.computeHash();
+    }
+
+    public void signTx(Transaction tx, PrivateKey sk, int input, SignatureScheme scheme) {
+        tx.addSignature(scheme.sign(sk, tx.getRawDataToSign(input)), input);
+        tx.computeHash();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /** Checks {@code index} against balances and outputs rebuilt from every output of {@code ledger} */
+    private static void assertIndexed(AddressIndex index, UTXOPool ledger) {
+        Map<Address, Long> balances = new HashMap<>();
+        Map<Address, Set<UTXO>> utxos = new HashMap<>();
+        for (UTXO utxo : ledger.getAllUTXO()) {
+            Transaction.Output output = ledger.getTxOutput(utxo);
+            Address address = Address.of(output.address);
+            balances.merge(address, output.value, Long::sum);
+            utxos.computeIfAbsent(address, a -> new HashSet<>()).add(utxo);
+        }
+        assertThat(index.getAddressCount(), is(balances.size()));
+        for (Map.Entry<Address, Long> balance : balances.entrySet()) {
+            assertThat(index.getBalance(balance.getKey()), is(balance.getValue()));
+            List<UTXO> indexed = index.getUTXOs(balance.getKey());
+            assertThat(indexed.size(), is(utxos.get(balance.getKey()).size()));
+            assertThat(new HashSet<>(indexed), is(utxos.get(balance.getKey())));
+        }
+    }
+
+    /** Asserts that {@code store} holds the same UTXOs as {@code expected}, with the same outputs */
+    private static void assertStored(UTXOStore store, UTXOStore expected) {
+        assertThat(store.size(), is(expected.size()));
+        assertThat(new HashSet<>(store.keys()).equals(new HashSet<>(expected.keys())), is(true));
+        for (UTXO utxo : expected.keys()) {
+            Transaction.Output txOut = store.get(utxo);
+            assertThat(txOut.value, is(expected.get(utxo).value));
+            assertThat(txOut.getAddress() == expected.get(utxo).getAddress(), is(true));
+        }
+    }
+
+    private static byte[] randomHash(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return hash;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
     }
 }